@@ -0,0 +1,178 @@
+package org.avi.concurrency;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Pool container tuned for borrow/return by the same threads over and over.
+ *
+ * Each entry's state is an int changed by CAS, so whoever wins the CAS owns the entry
+ * wherever they found it. Borrowing tries, in order:
+ *   1. the calling thread's own list of entries it returned before - no shared writes
+ *      beyond the CAS on an entry nobody else is likely to touch;
+ *   2. a scan of the shared copy-on-write list, stealing any idle entry;
+ *   3. waiting on a handoff queue that returning threads feed directly while anyone waits.
+ *
+ * While anyone is waiting, a returned entry is passed through the (fair) handoff queue still
+ * marked IN_USE, so it goes to the longest waiter and a thread arriving later cannot grab it
+ * first: waiters are served first-come first-served.
+ */
+class ConcurrentBag<T extends ConcurrentBag.Entry> {
+    static final int NOT_IN_USE = 0;
+    static final int IN_USE = 1;
+    static final int REMOVED = -1;
+
+    private static final int MAX_THREAD_LOCAL_ENTRIES = 16;
+
+    // Told when a borrower found nothing idle, so the owner can create entries in the background
+    interface Listener {
+        void addBagItem(int waiting);
+    }
+
+    abstract static class Entry {
+        private static final AtomicIntegerFieldUpdater<Entry> STATE =
+                AtomicIntegerFieldUpdater.newUpdater(Entry.class, "state");
+
+        private volatile int state;
+
+        boolean compareAndSet(int expected, int update) {
+            return STATE.compareAndSet(this, expected, update);
+        }
+
+        int state() {
+            return state;
+        }
+
+        // A full volatile write: the waiter check that follows it must not move ahead of it
+        void setState(int update) {
+            STATE.set(this, update);
+        }
+    }
+
+    private final CopyOnWriteArrayList<T> shared = new CopyOnWriteArrayList<>();
+    private final ThreadLocal<List<T>> threadList = ThreadLocal.withInitial(() -> new ArrayList<>(MAX_THREAD_LOCAL_ENTRIES));
+    private final SynchronousQueue<T> handoffQueue = new SynchronousQueue<>(true);
+    private final AtomicInteger waiters = new AtomicInteger();
+    private final Listener listener;
+
+    ConcurrentBag(Listener listener) {
+        this.listener = listener;
+    }
+
+    // Step 1 alone: an idle entry this thread returned before, now IN_USE, or null. Never waits
+    T poll() {
+        if (waiters.get() == 0) {
+            List<T> local = threadList.get();
+            for (int i = local.size() - 1; i >= 0; i--) {
+                T entry = local.remove(i);
+                if (entry.compareAndSet(NOT_IN_USE, IN_USE)) {
+                    return entry;
+                }
+            }
+        }
+        return null;
+    }
+
+    // Returns an entry now IN_USE, or null if none became free within the timeout
+    T borrow(long timeout, TimeUnit unit) throws InterruptedException {
+        T local = poll();
+        if (local != null) {
+            return local;
+        }
+
+        int waiting = waiters.incrementAndGet();
+        try {
+            // Anything idle here went idle while nobody waited; anything freed from now on
+            // is handed over directly, so scanning never takes an entry meant for a waiter
+            for (T entry : shared) {
+                if (entry.compareAndSet(NOT_IN_USE, IN_USE)) {
+                    return entry;
+                }
+            }
+            listener.addBagItem(waiting);
+            // Handed-over entries are still IN_USE: ownership passes with them
+            return handoffQueue.poll(timeout, unit);
+        } finally {
+            waiters.decrementAndGet();
+        }
+    }
+
+    // Hands the entry to the longest waiter if there is one, else marks it idle and remembers it for this thread
+    void requite(T entry) {
+        if (handOff(entry)) {
+            List<T> local = threadList.get();
+            if (local.size() < MAX_THREAD_LOCAL_ENTRIES) {
+                local.add(entry);
+            }
+        }
+    }
+
+    void add(T entry) {
+        shared.add(entry);
+        // Someone may be waiting for exactly this entry
+        if (waiters.get() > 0 && entry.compareAndSet(NOT_IN_USE, IN_USE)) {
+            handOff(entry);
+        }
+    }
+
+    // Caller owns the entry (IN_USE). Returns true if it ended up idle rather than handed over
+    private boolean handOff(T entry) {
+        while (true) {
+            for (int i = 0; waiters.get() > 0; i++) {
+                if (handoffQueue.offer(entry)) {
+                    return false;
+                } else if ((i & 0xff) == 0xff) {
+                    LockSupport.parkNanos(10_000);
+                } else {
+                    Thread.yield();
+                }
+            }
+            // A waiter arriving now scans the list and finds the entry idle. One that counted
+            // itself before this write may already have scanned past it, so look again and
+            // take the entry back for it if so
+            entry.setState(NOT_IN_USE);
+            if (waiters.get() == 0) {
+                return true;
+            }
+            if (!entry.compareAndSet(NOT_IN_USE, IN_USE)) {
+                return false; // a waiter's scan got it
+            }
+        }
+    }
+
+    // Removes an entry the caller has borrowed; stale thread-local references are skipped by the CAS
+    boolean remove(T entry) {
+        return entry.compareAndSet(IN_USE, REMOVED) && shared.remove(entry);
+    }
+
+    // Removes an entry only while it is idle, so it is never taken from under a borrower
+    boolean removeIdle(T entry) {
+        return entry.compareAndSet(NOT_IN_USE, REMOVED) && shared.remove(entry);
+    }
+
+    List<T> values() {
+        return new ArrayList<>(shared);
+    }
+
+    int size() {
+        return shared.size();
+    }
+
+    int idleCount() {
+        int idle = 0;
+        for (T entry : shared) {
+            if (entry.state() == NOT_IN_USE) idle++;
+        }
+        return idle;
+    }
+
+    int waitingThreads() {
+        return waiters.get();
+    }
+}
@@ -2,66 +2,697 @@ package org.avi.concurrency;
 
 import java.sql.Connection;
 import java.sql.DriverManager;
+import java.sql.PreparedStatement;
 import java.sql.SQLException;
-import java.util.concurrent.ArrayBlockingQueue;
-import java.util.concurrent.BlockingQueue;
+import java.sql.SQLTransientConnectionException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongFieldUpdater;
+import java.util.concurrent.atomic.LongAdder;
 
-public class ConnectionPool {
-    private final BlockingQueue<Connection> connectionPool;
-    private final int poolSize;
+/**
+ * Elastic JDBC connection pool.
+ *
+ * minSize connections are opened in parallel at startup. When a borrower finds nothing idle,
+ * it asks a background creator thread for more (up to maxSize) and waits for a returned or
+ * newly created connection, so a borrowing thread never pays the connect latency itself.
+ * A housekeeper closes idle connections not borrowed for idleTimeout (down to minSize) and
+ * tops the pool back up. Each connection is retired when its own maxLifetime runs out;
+ * lifetimes are jittered so connections opened together do not all expire together. A pool at
+ * minSize opens the replacement first and closes the expired connection only once the new one
+ * is in, so lifetime retirement never shrinks it below minSize.
+ *
+ * Borrowers get a ProxyConnection that returns the connection to the pool on close(), so
+ * try-with-resources works. An open transaction is rolled back and changed settings are put
+ * back on the way in, and a connection that cannot be reset is retired. getConnection gives up after connectionTimeout, and waiters are
+ * served in arrival order. Borrow waits and hold times can be recorded in histograms, and a
+ * connection held past the leak detection threshold is reported with the stack that borrowed it.
+ * With both off, an uncontended borrow and return reads the clock once.
+ */
+public final class ConnectionPool {
 
-    private final String jdbcUrl;
-    private final String user;
-    private final String password;
+    public interface ConnectionFactory {
+        Connection create() throws SQLException;
+    }
+
+    // Connections used within this window are handed out without an isValid round trip
+    private static final long VALIDATION_BYPASS_NANOS = TimeUnit.MILLISECONDS.toNanos(500);
+    private static final int VALIDATION_TIMEOUT_SECONDS = 1;
+    private static final long DEFAULT_CONNECTION_TIMEOUT_MILLIS = 30_000;
+    // Latencies in nanoseconds, up to an hour, to 2 significant digits
+    private static final long MAX_RECORDED_NANOS = TimeUnit.HOURS.toNanos(1);
+    private static final int LATENCY_DIGITS = 2;
+
+    // A pooled connection; its bag state says whether someone has borrowed it
+    static final class PoolEntry extends ConcurrentBag.Entry {
+        // Only the borrower writes it, so an ordered store is enough: no fence on every borrow
+        private static final AtomicLongFieldUpdater<PoolEntry> LAST_BORROWED =
+                AtomicLongFieldUpdater.newUpdater(PoolEntry.class, "lastBorrowed");
+
+        final Connection connection;
+        volatile long lastBorrowed; // validation and idle timeout count from here
+        volatile boolean evicted; // retire on return instead of reusing
+        ScheduledFuture<?> expiryTask; // retires the entry when its lifetime runs out; null for no limit
+        StatementCache statements; // created on first prepare; used by the borrower, then by the closer
+
+        PoolEntry(Connection connection) {
+            this.connection = connection;
+            this.lastBorrowed = System.nanoTime();
+        }
+    }
+
+    private final ConnectionFactory factory;
+    private final int minSize;
+    private final int maxSize;
+    private final long idleTimeoutNanos;
+    private final long maxLifetimeNanos;
+
+    private final ConcurrentBag<PoolEntry> bag = new ConcurrentBag<>(this::addBagItem);
+    private final AtomicInteger pendingCreates = new AtomicInteger();
+    private final ThreadPoolExecutor creator;
+    private final ExecutorService closer;
+    private final ScheduledThreadPoolExecutor housekeeper;
+    private volatile boolean shutdown;
+
+    private volatile long connectionTimeoutNanos = TimeUnit.MILLISECONDS.toNanos(DEFAULT_CONNECTION_TIMEOUT_MILLIS);
+    private volatile long leakDetectionThresholdNanos; // 0 = off
+    private volatile boolean recordLatencies;
+    volatile int statementCacheSize; // 0 = off
+    private final HdrHistogram borrowWait = new HdrHistogram(MAX_RECORDED_NANOS, LATENCY_DIGITS);
+    private final HdrHistogram holdTime = new HdrHistogram(MAX_RECORDED_NANOS, LATENCY_DIGITS);
+    private final LongAdder timeouts = new LongAdder();
+    private final LongAdder leaks = new LongAdder();
+    final LongAdder statementHits = new LongAdder();
+    final LongAdder statementMisses = new LongAdder();
 
     public ConnectionPool(String jdbcUrl, String user, String password, int poolSize)
             throws SQLException {
-        this.jdbcUrl = jdbcUrl;
-        this.user = user;
-        this.password = password;
-        this.poolSize = poolSize;
-        this.connectionPool = new ArrayBlockingQueue<>(poolSize);
+        this(() -> DriverManager.getConnection(jdbcUrl, user, password), poolSize);
+    }
+
+    // Fixed-size pool: no growth, idle timeout or lifetime limit
+    public ConnectionPool(ConnectionFactory factory, int poolSize) throws SQLException {
+        this(factory, poolSize, poolSize, 0, 0);
+    }
+
+    /**
+     * idleTimeoutMillis and maxLifetimeMillis of 0 disable the corresponding retirement.
+     */
+    public ConnectionPool(ConnectionFactory factory, int minSize, int maxSize,
+                          long idleTimeoutMillis, long maxLifetimeMillis) throws SQLException {
+        if (minSize < 0 || maxSize < 1 || minSize > maxSize) {
+            throw new IllegalArgumentException("Require 0 <= minSize <= maxSize and maxSize >= 1");
+        }
+        this.factory = factory;
+        this.minSize = minSize;
+        this.maxSize = maxSize;
+        this.idleTimeoutNanos = TimeUnit.MILLISECONDS.toNanos(idleTimeoutMillis);
+        this.maxLifetimeNanos = TimeUnit.MILLISECONDS.toNanos(maxLifetimeMillis);
+
+        this.creator = new ThreadPoolExecutor(1, 1, 0, TimeUnit.MILLISECONDS,
+                new LinkedBlockingQueue<>(maxSize), daemon("pool-creator"), new ThreadPoolExecutor.DiscardPolicy());
+        this.closer = Executors.newSingleThreadExecutor(daemon("pool-closer"));
+        this.housekeeper = new ScheduledThreadPoolExecutor(1, daemon("pool-housekeeper"));
+        housekeeper.setRemoveOnCancelPolicy(true); // leak checks are cancelled on almost every return
+
         initializeConnections();
+
+        long period = housekeepingPeriodMillis(idleTimeoutMillis);
+        housekeeper.scheduleWithFixedDelay(this::houseKeep, period, period, TimeUnit.MILLISECONDS);
     }
 
+    private static ThreadFactory daemon(String name) {
+        return runnable -> {
+            Thread thread = new Thread(runnable, name);
+            thread.setDaemon(true);
+            return thread;
+        };
+    }
+
+    private static long housekeepingPeriodMillis(long idleTimeoutMillis) {
+        long period = 30_000;
+        if (idleTimeoutMillis > 0) period = Math.min(period, idleTimeoutMillis / 4);
+        return Math.max(period, 50);
+    }
+
+    // Opens minSize connections concurrently; startup costs about one connect, not minSize of them
     private void initializeConnections() throws SQLException {
-        for (int i = 0; i < poolSize; i++) {
-            Connection conn = DriverManager.getConnection(jdbcUrl, user, password);
-            connectionPool.offer(conn);
+        if (minSize == 0) {
+            return;
+        }
+        ExecutorService starters = Executors.newFixedThreadPool(Math.min(minSize, 16), daemon("pool-starter"));
+        try {
+            List<Future<PoolEntry>> futures = new ArrayList<>();
+            for (int i = 0; i < minSize; i++) {
+                futures.add(starters.submit(this::newEntry));
+            }
+            for (Future<PoolEntry> future : futures) {
+                try {
+                    bag.add(future.get());
+                } catch (ExecutionException e) {
+                    shutdown();
+                    throw e.getCause() instanceof SQLException ? (SQLException) e.getCause()
+                            : new SQLException("Failed to open connection", e.getCause());
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    shutdown();
+                    throw new SQLException("Interrupted while opening connections", e);
+                }
+            }
+        } finally {
+            starters.shutdownNow();
+        }
+    }
+
+    private PoolEntry newEntry() throws SQLException {
+        Connection connection = factory.create();
+        if (maxLifetimeNanos == 0) {
+            return new PoolEntry(connection);
+        }
+        // Up to 2.5% earlier, so a batch opened together retires over a spread of time
+        long lifetime = maxLifetimeNanos - (long) (maxLifetimeNanos * 0.025 * ThreadLocalRandom.current().nextDouble());
+        PoolEntry entry = new PoolEntry(connection);
+        entry.expiryTask = housekeeper.schedule(() -> expire(entry), lifetime, TimeUnit.NANOSECONDS);
+        return entry;
+    }
+
+    /**
+     * Housekeeper, when the entry's lifetime runs out. Above minSize, or with no room under
+     * maxSize for a replacement, it goes now (or on return if borrowed). Otherwise it stays in
+     * use until its replacement has been opened and added.
+     */
+    private void expire(PoolEntry entry) {
+        if (shutdown || entry.state() == ConcurrentBag.REMOVED) {
+            return;
+        }
+        if (bag.size() > minSize || bag.size() + pendingCreates.get() >= maxSize) {
+            if (bag.removeIdle(entry)) {
+                discard(entry);
+                fillPool();
+            } else {
+                entry.evicted = true;
+            }
+            return;
+        }
+        pendingCreates.incrementAndGet();
+        creator.execute(() -> replace(entry));
+    }
+
+    // Creator thread: adds the expired entry's replacement, then retires it
+    private void replace(PoolEntry expired) {
+        try {
+            if (shutdown) {
+                return;
+            }
+            try {
+                bag.add(newEntry());
+            } catch (SQLException e) {
+                // Keep serving the old connection rather than shrink the pool; try again shortly
+                System.err.println("Failed to open replacement connection: " + e.getMessage());
+                housekeeper.schedule(() -> expire(expired), 1, TimeUnit.SECONDS);
+                return;
+            }
+            if (bag.removeIdle(expired)) {
+                discard(expired);
+            } else {
+                expired.evicted = true;
+            }
+        } finally {
+            pendingCreates.decrementAndGet();
+        }
+    }
+
+    // Bag callback from a borrower that found nothing idle
+    private void addBagItem(int waiting) {
+        if (waiting - pendingCreates.get() > 0) {
+            requestCreate();
+        }
+    }
+
+    private void requestCreate() {
+        if (shutdown || bag.size() + pendingCreates.get() >= maxSize) {
+            return;
+        }
+        pendingCreates.incrementAndGet();
+        creator.execute(this::createConnection);
+    }
+
+    // Runs on the creator thread; retries with backoff while the connection is still wanted
+    private void createConnection() {
+        try {
+            for (long backoff = 50; !shutdown && bag.size() < maxSize; backoff = Math.min(backoff * 2, 5_000)) {
+                if (bag.size() >= minSize && bag.waitingThreads() == 0) {
+                    return; // demand went away
+                }
+                try {
+                    bag.add(newEntry());
+                    return;
+                } catch (SQLException e) {
+                    System.err.println("Failed to open pooled connection: " + e.getMessage());
+                }
+                try {
+                    Thread.sleep(backoff);
+                } catch (InterruptedException e) {
+                    return;
+                }
+            }
+        } finally {
+            pendingCreates.decrementAndGet();
+        }
+    }
+
+    private void fillPool() {
+        int needed = minSize - bag.size() - pendingCreates.get();
+        for (int i = 0; i < needed; i++) {
+            requestCreate();
+        }
+    }
+
+    public void setConnectionTimeoutMillis(long millis) {
+        this.connectionTimeoutNanos = TimeUnit.MILLISECONDS.toNanos(millis);
+    }
+
+    /**
+     * Connections held longer than this are reported, with the stack that borrowed them.
+     * 0 turns detection off; when on, every borrow pays for capturing a stack trace.
+     */
+    public void setLeakDetectionThresholdMillis(long millis) {
+        this.leakDetectionThresholdNanos = TimeUnit.MILLISECONDS.toNanos(millis);
+    }
+
+    /**
+     * Records borrow waits and hold times in the histograms. Off by default: it reads the
+     * clock on every return as well as on every borrow.
+     */
+    public void setRecordLatencies(boolean recordLatencies) {
+        this.recordLatencies = recordLatencies;
+    }
+
+    /**
+     * Keeps up to this many PreparedStatements per connection, so a borrower preparing SQL an
+     * earlier borrower already prepared skips the round trip. 0 (the default) turns caching off;
+     * a connection's cache is sized when it first prepares a statement.
+     */
+    public void setStatementCacheSize(int size) {
+        if (size < 0) throw new IllegalArgumentException("size must be >= 0");
+        this.statementCacheSize = size;
+    }
+
+    // Waits up to the connection timeout (30 s unless configured)
+    public Connection getConnection() throws SQLException, InterruptedException {
+        return getConnection(connectionTimeoutNanos, TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * Returns a connection whose close() gives it back to the pool. Throws
+     * SQLTransientConnectionException if none could be had within the timeout.
+     */
+    public Connection getConnection(long timeout, TimeUnit unit) throws SQLException, InterruptedException {
+        long timeoutNanos = unit.toNanos(timeout);
+        // A connection this thread returned before is taken without waiting: the clock starts after
+        PoolEntry entry = bag.poll();
+        long start = System.nanoTime();
+        long now = start;
+        while (true) {
+            if (entry == null) {
+                entry = bag.borrow(timeoutNanos - (now - start), TimeUnit.NANOSECONDS);
+                now = System.nanoTime();
+                if (entry == null) {
+                    break;
+                }
+            }
+            if (entry.evicted || (now - entry.lastBorrowed > VALIDATION_BYPASS_NANOS && !isAlive(entry.connection))) {
+                retire(entry);
+                entry = null;
+                now = System.nanoTime();
+                if (now - start >= timeoutNanos) {
+                    break;
+                }
+                continue;
+            }
+            PoolEntry.LAST_BORROWED.lazySet(entry, now);
+            if (recordLatencies) {
+                borrowWait.record(now - start);
+            }
+            long leakThresholdNanos = leakDetectionThresholdNanos;
+            return leakThresholdNanos > 0 ? watchForLeak(entry, now, leakThresholdNanos) : new ProxyConnection(this, entry, now);
         }
+        throw timedOut(now - start);
     }
 
-    public Connection getConnection() throws InterruptedException {
-        return connectionPool.take(); // blocks if empty
+    // Slow paths stay out of getConnection, so the common borrow is small enough to inline
+    private SQLTransientConnectionException timedOut(long waited) {
+        if (recordLatencies) {
+            borrowWait.record(waited);
+        }
+        timeouts.increment();
+        return new SQLTransientConnectionException(String.format(
+                "Connection not available after %d ms (total=%d, active=%d, idle=%d, waiting=%d)",
+                waited / 1_000_000, totalConnections(), activeConnections(), idleConnections(), pendingThreads()));
     }
 
+    private ProxyConnection watchForLeak(PoolEntry entry, long borrowedAt, long thresholdNanos) {
+        ProxyConnection handle = new ProxyConnection(this, entry, borrowedAt, new Exception("Connection borrowed here"));
+        handle.leakTask = housekeeper.schedule(() -> reportLeak(handle), thresholdNanos, TimeUnit.NANOSECONDS);
+        return handle;
+    }
+
+    private static boolean isAlive(Connection connection) {
+        try {
+            return connection.isValid(VALIDATION_TIMEOUT_SECONDS);
+        } catch (SQLException e) {
+            return false;
+        }
+    }
+
+    // Same as connection.close()
     public void releaseConnection(Connection connection) {
         if (connection != null) {
-            connectionPool.offer(connection); // returns it to the pool
+            if (!(connection instanceof ProxyConnection) || ((ProxyConnection) connection).pool != this) {
+                throw new IllegalArgumentException("Connection does not belong to this pool");
+            }
+            ((ProxyConnection) connection).close();
         }
     }
 
+    void returnConnection(ProxyConnection handle) {
+        PoolEntry entry = handle.entry;
+        if (recordLatencies) {
+            holdTime.record(System.nanoTime() - handle.borrowedAt);
+        }
+        if (handle.borrowTrace != null) {
+            leakCheckDone(handle);
+        }
+        // Expiry while borrowed is flagged by the housekeeper, so returning needs no lifetime check
+        if (entry.evicted || !handle.resetState()) {
+            retire(entry);
+        } else {
+            bag.requite(entry); // returns it to the pool
+        }
+    }
+
+    private void leakCheckDone(ProxyConnection handle) {
+        handle.leakTask.cancel(false);
+        if (handle.leakReported) {
+            System.err.printf("Previously reported leaked connection %s returned after %d ms%n",
+                    handle.entry.connection, (System.nanoTime() - handle.borrowedAt) / 1_000_000);
+        }
+    }
+
+    private void reportLeak(ProxyConnection handle) {
+        if (handle.closed == 0) {
+            handle.leakReported = true;
+            leaks.increment();
+            System.err.printf("Connection leak detection triggered: %s held for %d ms%n", handle.entry.connection,
+                    (System.nanoTime() - handle.borrowedAt) / 1_000_000);
+            handle.borrowTrace.printStackTrace();
+        }
+    }
+
+    // Caller has borrowed the entry: drop it from the pool, close it off-thread and top up
+    private void retire(PoolEntry entry) {
+        if (bag.remove(entry)) {
+            discard(entry);
+        }
+        fillPool();
+    }
+
+    private void discard(PoolEntry entry) {
+        if (entry.expiryTask != null) {
+            entry.expiryTask.cancel(false);
+        }
+        closer.execute(() -> {
+            try {
+                if (entry.statements != null) {
+                    entry.statements.closeAll();
+                }
+                entry.connection.close();
+            } catch (SQLException e) {
+                System.err.println("Failed to close pooled connection: " + e.getMessage());
+            }
+        });
+    }
+
+    private void houseKeep() {
+        long now = System.nanoTime();
+        for (PoolEntry entry : bag.values()) {
+            if (idleTimeoutNanos > 0 && bag.size() > minSize
+                    && now - entry.lastBorrowed > idleTimeoutNanos && bag.removeIdle(entry)) {
+                discard(entry);
+            }
+        }
+        fillPool();
+    }
+
+    public int totalConnections() {
+        return bag.size();
+    }
+
+    public int idleConnections() {
+        return bag.idleCount();
+    }
+
+    public int activeConnections() {
+        return Math.max(0, bag.size() - bag.idleCount());
+    }
+
+    // Threads currently waiting in getConnection
+    public int pendingThreads() {
+        return bag.waitingThreads();
+    }
+
+    // Nanoseconds from calling getConnection to getting a connection (or timing out), while recording latencies
+    public HdrHistogram borrowWaitHistogram() {
+        return borrowWait;
+    }
+
+    // Nanoseconds from getConnection returning to close(), while recording latencies
+    public HdrHistogram holdTimeHistogram() {
+        return holdTime;
+    }
+
+    public long connectionTimeouts() {
+        return timeouts.sum();
+    }
+
+    public long leaksDetected() {
+        return leaks.sum();
+    }
+
+    public long statementCacheHits() {
+        return statementHits.sum();
+    }
+
+    public long statementCacheMisses() {
+        return statementMisses.sum();
+    }
+
+    @Override
+    public String toString() {
+        return String.format("ConnectionPool[total=%d active=%d idle=%d waiting=%d timeouts=%d leaks=%d%n"
+                        + "  statement cache: hits=%d misses=%d%n  borrow wait: %s%n  hold time:   %s]",
+                totalConnections(), activeConnections(), idleConnections(), pendingThreads(), connectionTimeouts(),
+                leaksDetected(), statementCacheHits(), statementCacheMisses(), inMicros(borrowWait), inMicros(holdTime));
+    }
+
+    private static String inMicros(HdrHistogram nanos) {
+        long[] p = nanos.percentiles(50, 99, 99.9);
+        return String.format("count=%d p50=%dus p99=%dus p99.9=%dus max=%dus", nanos.count(),
+                p[0] / 1_000, p[1] / 1_000, p[2] / 1_000, nanos.max() / 1_000);
+    }
+
     public void shutdown() throws SQLException {
-        for (Connection conn : connectionPool) {
-            conn.close();
+        shutdown = true;
+        housekeeper.shutdownNow();
+        creator.shutdownNow();
+        for (PoolEntry entry : bag.values()) {
+            if (bag.removeIdle(entry) || bag.remove(entry)) {
+                if (entry.statements != null) {
+                    entry.statements.closeAll();
+                }
+                entry.connection.close();
+            }
         }
+        closer.shutdown();
     }
 
-    public static void main(String[] args) throws SQLException, InterruptedException {
-        ConnectionPool pool = new ConnectionPool(
-                "jdbc:mysql://localhost:3306/testdb", "user", "password", 10
-        );
+    @SuppressWarnings("try") // the demo holds connections without using them
+    public static void main(String[] args) throws Exception {
+        InMemoryJdbc database = new InMemoryJdbc(50);
 
-        // Get connection from pool
-        Connection conn = pool.getConnection();
+        long start = System.nanoTime();
+        ConnectionPool pool = new ConnectionPool(database, 10, 30, 1_000, 4_000);
+        System.out.printf("Opened %d connections (50 ms each) in %d ms%n", pool.totalConnections(),
+                (System.nanoTime() - start) / 1_000_000);
 
-        try {
+        // Get connection from pool; close() hands it back
+        try (Connection conn = pool.getConnection()) {
             // Use the connection
-        } finally {
-            pool.releaseConnection(conn); // Always release it
+        }
+
+        // A burst of 30 threads each holding a connection for 200 ms grows the pool in the background
+        List<Thread> burst = new ArrayList<>();
+        for (int i = 0; i < 30; i++) {
+            Thread thread = new Thread(() -> {
+                try (Connection c = pool.getConnection()) {
+                    Thread.sleep(200);
+                } catch (SQLException e) {
+                    System.err.println(e.getMessage());
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            });
+            burst.add(thread);
+            thread.start();
+        }
+        for (Thread thread : burst) {
+            thread.join();
+        }
+        System.out.println("After burst: total=" + pool.totalConnections() + " idle=" + pool.idleConnections());
+
+        Thread.sleep(1_600);
+        System.out.println("After idle timeout: total=" + pool.totalConnections());
+
+        database.breakOpenConnections();
+        Thread.sleep(600); // past the validation bypass window
+        for (int i = 0; i < 5; i++) {
+            try (Connection c = pool.getConnection()) {
+                System.out.println("Borrowed valid connection: " + c.isValid(1));
+            }
+        }
+
+        Thread.sleep(4_500);
+        System.out.println("After max lifetime: total=" + pool.totalConnections()
+                + " opened=" + database.opened() + " closed=" + database.closed());
+
+        database.setConnectLatencyMillis(0);
+        ConnectionPool small = new ConnectionPool(database, 2);
+        small.setRecordLatencies(true);
+
+        // Borrowing from an exhausted pool fails after the timeout instead of blocking forever
+        Connection first = small.getConnection();
+        Connection second = small.getConnection();
+        try {
+            small.getConnection(100, TimeUnit.MILLISECONDS);
+        } catch (SQLTransientConnectionException e) {
+            System.out.println("Timed out: " + e.getMessage());
+        }
+
+        // Waiters are served in the order they arrived
+        List<Integer> served = new CopyOnWriteArrayList<>();
+        List<Thread> waiters = new ArrayList<>();
+        for (int i = 0; i < 6; i++) {
+            int id = i;
+            Thread thread = new Thread(() -> {
+                try (Connection c = small.getConnection()) {
+                    served.add(id);
+                    Thread.sleep(5);
+                } catch (SQLException e) {
+                    System.err.println(e.getMessage());
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            });
+            waiters.add(thread);
+            thread.start();
+            Thread.sleep(20); // queue up one at a time
+        }
+        System.out.println("Waiting: " + small.pendingThreads());
+        first.close();
+        second.close();
+        for (Thread thread : waiters) {
+            thread.join();
+        }
+        System.out.println("Arrival order 0..5, served order " + served);
+
+        // A connection held past the threshold is reported with the stack that borrowed it
+        small.setLeakDetectionThresholdMillis(200);
+        try (Connection leaky = small.getConnection()) {
+            Thread.sleep(400);
+        }
+        small.setLeakDetectionThresholdMillis(0);
+        System.out.println(small);
+
+        // Each borrow prepares a few of 40 recurring queries; a server-side prepare costs 200 us
+        database.setPrepareLatencyMicros(200);
+        for (int cacheSize : new int[]{0, 64}) {
+            ConnectionPool statements = new ConnectionPool(database, 4);
+            statements.setStatementCacheSize(cacheSize);
+            statements.setRecordLatencies(true);
+            int preparedBefore = database.prepared();
+            start = System.nanoTime();
+            for (int i = 0; i < 5_000; i++) {
+                try (Connection c = statements.getConnection()) {
+                    for (int q = 0; q < 3; q++) {
+                        try (PreparedStatement ps = c.prepareStatement("SELECT * FROM t" + (i * 7 + q) % 40 + " WHERE id = ?")) {
+                            ps.setLong(1, i);
+                            ps.executeQuery();
+                        }
+                    }
+                }
+            }
+            System.out.printf("Statement cache size %d: %d ms, %d prepare round trips%n", cacheSize,
+                    (System.nanoTime() - start) / 1_000_000, database.prepared() - preparedBefore);
+            System.out.println(statements);
+            statements.shutdown();
+        }
+        System.out.println("Statements left open after shutdown: " + database.openStatements());
+
+        // Settings one borrower changes on a cached statement are put back before the next one gets it
+        ConnectionPool reused = new ConnectionPool(database, 1);
+        reused.setStatementCacheSize(8);
+        try (Connection c = reused.getConnection(); PreparedStatement ps = c.prepareStatement("SELECT * FROM t0")) {
+            ps.setMaxRows(1);
+            ps.setQueryTimeout(5);
+        }
+        try (Connection c = reused.getConnection(); PreparedStatement ps = c.prepareStatement("SELECT * FROM t0")) {
+            System.out.println("Next borrower's cached statement: maxRows=" + ps.getMaxRows()
+                    + " queryTimeout=" + ps.getQueryTimeout() + ", cache hits=" + reused.statementCacheHits());
+        }
+
+        // Nor does a transaction left open, or a changed connection setting
+        try (Connection c = reused.getConnection()) {
+            c.setAutoCommit(false);
+            c.setReadOnly(true);
+            c.setTransactionIsolation(Connection.TRANSACTION_SERIALIZABLE);
+            try (PreparedStatement ps = c.prepareStatement("UPDATE t0 SET v = 1")) {
+                ps.executeUpdate();
+            }
+        }
+        try (Connection c = reused.getConnection()) {
+            System.out.println("Next borrower's connection: autoCommit=" + c.getAutoCommit() + " readOnly=" + c.isReadOnly()
+                    + " isolation=" + c.getTransactionIsolation() + ", rollbacks=" + database.rollbacks());
+        }
+        reused.shutdown();
+        database.setPrepareLatencyMicros(0);
+
+        // Uncontended borrow/return cost on a fixed-size pool with no connect latency
+        ConnectionPool fixed = new ConnectionPool(database, 10);
+        int iterations = 10_000_000;
+        for (int round = 0; round < 3; round++) {
+            start = System.nanoTime();
+            for (int i = 0; i < iterations; i++) {
+                fixed.getConnection().close();
+            }
+            System.out.printf("Uncontended borrow + return: %.1f ns%n", (double) (System.nanoTime() - start) / iterations);
         }
 
         // On shutdown
+        fixed.shutdown();
+        small.shutdown();
         pool.shutdown();
     }
 }
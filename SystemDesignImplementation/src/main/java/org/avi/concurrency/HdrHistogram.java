@@ -0,0 +1,234 @@
+package org.avi.concurrency;
+
+import java.io.ByteArrayOutputStream;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * High-dynamic-range histogram of values from 0 to highestTrackableValue, kept to
+ * significantDigits of precision (1-5) in log-linear buckets.
+ *
+ * Values below 2^subBucketBits each have their own bucket. Above that, every power of two is
+ * split into 2^(subBucketBits - 1) equal buckets, so a bucket is never wider than
+ * 10^-significantDigits of the values it holds: at 3 digits, a microsecond to an hour takes
+ * 23,221 buckets in one long[]. Recording is a lock-free increment; snapshots copy the
+ * array without stopping writers, and histograms with the same precision can be added
+ * together, in process or after encode() has shipped them from another node.
+ */
+public class HdrHistogram {
+    private static final VarHandle COUNT = MethodHandles.arrayElementVarHandle(long[].class);
+
+    private final long highestTrackableValue;
+    private final int significantDigits;
+    private final int subBucketBits; // values below 2^subBucketBits are counted exactly
+    private final int subBucketHalf;
+    private final long[] counts;
+    private final AtomicLong min = new AtomicLong(Long.MAX_VALUE);
+    private final AtomicLong max = new AtomicLong();
+
+    public HdrHistogram(long highestTrackableValue, int significantDigits) {
+        checkArguments(highestTrackableValue, significantDigits);
+        this.highestTrackableValue = highestTrackableValue;
+        this.significantDigits = significantDigits;
+        long distinct = 2 * (long) Math.pow(10, significantDigits);
+        this.subBucketBits = 64 - Long.numberOfLeadingZeros(distinct - 1);
+        this.subBucketHalf = 1 << (subBucketBits - 1);
+        this.counts = new long[index(highestTrackableValue) + 1];
+    }
+
+    // For callers that create histograms later and want bad settings rejected up front
+    static void checkArguments(long highestTrackableValue, int significantDigits) {
+        if (significantDigits < 1 || significantDigits > 5) {
+            throw new IllegalArgumentException("significantDigits must be between 1 and 5");
+        }
+        if (highestTrackableValue < 2) {
+            throw new IllegalArgumentException("highestTrackableValue must be >= 2");
+        }
+    }
+
+    // Values below 0 count as 0 and values above highestTrackableValue as highestTrackableValue
+    public void record(long value) {
+        value = Math.min(Math.max(value, 0), highestTrackableValue);
+        // min and max first: whoever sees this count also sees them
+        long current;
+        while (value < (current = min.get()) && !min.compareAndSet(current, value)) {
+            // retry
+        }
+        while (value > (current = max.get()) && !max.compareAndSet(current, value)) {
+            // retry
+        }
+        COUNT.getAndAdd(counts, index(value), 1L);
+    }
+
+    private int index(long value) {
+        int exponent = 63 - Long.numberOfLeadingZeros(value) - (subBucketBits - 1);
+        if (exponent <= 0) {
+            return (int) value;
+        }
+        return exponent * subBucketHalf + (int) (value >>> exponent);
+    }
+
+    private long lowestValue(int index) {
+        if (index < 2 * subBucketHalf) {
+            return index;
+        }
+        int exponent = index / subBucketHalf - 1;
+        return (long) (index - exponent * subBucketHalf) << exponent;
+    }
+
+    private long highestValue(int index) {
+        return lowestValue(index + 1) - 1;
+    }
+
+    public long count() {
+        long count = 0;
+        for (int i = 0; i < counts.length; i++) {
+            count += (long) COUNT.getAcquire(counts, i);
+        }
+        return count;
+    }
+
+    // 0 when nothing was recorded
+    public long min() {
+        long value = min.get();
+        return value == Long.MAX_VALUE ? 0 : value;
+    }
+
+    public long max() {
+        return max.get();
+    }
+
+    // Highest value of the bucket holding the given percentile (0-100), capped at max()
+    public long percentile(double percentile) {
+        return percentiles(percentile)[0];
+    }
+
+    /**
+     * Several percentiles, in ascending order, from one walk over the buckets. Counts only
+     * grow, so the walk always reaches the ranks taken from the total read just before it.
+     */
+    public long[] percentiles(double... percentiles) {
+        long total = count();
+        long highest = max.get();
+        long[] values = new long[percentiles.length];
+        long seen = 0;
+        int i = -1;
+        for (int p = 0; p < percentiles.length && total > 0; p++) {
+            long rank = Math.max(1, (long) Math.ceil(total * Math.min(percentiles[p], 100.0) / 100.0));
+            while (seen < rank) {
+                seen += (long) COUNT.getAcquire(counts, ++i);
+            }
+            values[p] = Math.min(highestValue(i), highest);
+        }
+        return values;
+    }
+
+    /**
+     * Copy of the histogram as it is now, taken without stopping writers: a record racing with
+     * the copy is either in it or not, and the copy's min and max cover every value it counts.
+     */
+    public HdrHistogram snapshot() {
+        HdrHistogram copy = new HdrHistogram(highestTrackableValue, significantDigits);
+        for (int i = 0; i < counts.length; i++) {
+            copy.counts[i] = (long) COUNT.getAcquire(counts, i);
+        }
+        copy.min.set(min.get());
+        copy.max.set(max.get());
+        return copy;
+    }
+
+    // Adds other's counts to this one's; other's values above highestTrackableValue land in the top bucket
+    public void add(HdrHistogram other) {
+        if (other.subBucketBits != subBucketBits) {
+            throw new IllegalArgumentException("Cannot add a histogram of " + other.significantDigits
+                    + " significant digits to one of " + significantDigits);
+        }
+        for (int i = 0; i < other.counts.length; i++) {
+            long count = (long) COUNT.getAcquire(other.counts, i);
+            if (count > 0) {
+                COUNT.getAndAdd(counts, Math.min(i, counts.length - 1), count);
+            }
+        }
+        if (other.min.get() != Long.MAX_VALUE) {
+            long value = Math.min(other.min.get(), highestTrackableValue);
+            long current;
+            while (value < (current = min.get()) && !min.compareAndSet(current, value)) {
+                // retry
+            }
+            value = Math.min(other.max.get(), highestTrackableValue);
+            while (value > (current = max.get()) && !max.compareAndSet(current, value)) {
+                // retry
+            }
+        }
+    }
+
+    /**
+     * Compact form for shipping to another node: precision, range, min and max, then each
+     * non-empty bucket as (gap from the previous one, count), all as varints.
+     */
+    public byte[] encode() {
+        ByteArrayOutputStream buckets = new ByteArrayOutputStream();
+        int previous = -1;
+        for (int i = 0; i < counts.length; i++) {
+            long count = (long) COUNT.getAcquire(counts, i);
+            if (count > 0) {
+                writeVarLong(buckets, i - previous);
+                writeVarLong(buckets, count);
+                previous = i;
+            }
+        }
+        // min and max read after the counts, so they cover every value encoded
+        ByteArrayOutputStream out = new ByteArrayOutputStream(buckets.size() + 32);
+        out.write(significantDigits);
+        writeVarLong(out, highestTrackableValue);
+        writeVarLong(out, min());
+        writeVarLong(out, max());
+        out.writeBytes(buckets.toByteArray());
+        return out.toByteArray();
+    }
+
+    public static HdrHistogram decode(byte[] bytes) {
+        ByteBuffer in = ByteBuffer.wrap(bytes);
+        int significantDigits = in.get();
+        HdrHistogram histogram = new HdrHistogram(readVarLong(in), significantDigits);
+        long min = readVarLong(in);
+        long max = readVarLong(in);
+        int index = -1;
+        while (in.hasRemaining()) {
+            index += (int) readVarLong(in);
+            histogram.counts[index] = readVarLong(in);
+        }
+        if (index >= 0) {
+            histogram.min.set(min);
+            histogram.max.set(max);
+        }
+        return histogram;
+    }
+
+    private static void writeVarLong(ByteArrayOutputStream out, long value) {
+        while ((value & ~0x7FL) != 0) {
+            out.write((int) (value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        out.write((int) value);
+    }
+
+    private static long readVarLong(ByteBuffer in) {
+        long value = 0;
+        for (int shift = 0; ; shift += 7) {
+            byte b = in.get();
+            value |= (long) (b & 0x7F) << shift;
+            if (b >= 0) {
+                return value;
+            }
+        }
+    }
+
+    @Override
+    public String toString() {
+        long[] p = percentiles(50, 90, 99, 99.9);
+        return String.format("count=%d p50=%d p90=%d p99=%d p99.9=%d max=%d", count(), p[0], p[1], p[2], p[3], max());
+    }
+}
@@ -0,0 +1,183 @@
+package org.avi.concurrency;
+
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * In-memory stand-in for a JDBC driver, for exercising ConnectionPool without a database.
+ * Connections and prepared statements are dynamic proxies that track closed/broken state and
+ * remember what their setters were given, for the matching getters; everything else is a no-op. Connect and prepare latency and connect failures can be injected,
+ * and open connections can be "broken" to simulate a database restart.
+ */
+class InMemoryJdbc implements ConnectionPool.ConnectionFactory {
+    private final AtomicInteger opened = new AtomicInteger();
+    private final AtomicInteger closed = new AtomicInteger();
+    private final AtomicInteger prepared = new AtomicInteger();
+    private final AtomicInteger openStatements = new AtomicInteger();
+    private final AtomicInteger rollbacks = new AtomicInteger();
+    private final Map<Connection, AtomicBoolean> broken = new ConcurrentHashMap<>();
+    private volatile long connectLatencyMillis;
+    private volatile boolean failing;
+    private volatile long prepareLatencyMicros;
+
+    InMemoryJdbc(long connectLatencyMillis) {
+        this.connectLatencyMillis = connectLatencyMillis;
+    }
+
+    @Override
+    public Connection create() throws SQLException {
+        if (connectLatencyMillis > 0) {
+            try {
+                Thread.sleep(connectLatencyMillis);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new SQLException("Interrupted while connecting", e);
+            }
+        }
+        if (failing) {
+            throw new SQLException("Connection refused");
+        }
+        AtomicBoolean isClosed = new AtomicBoolean();
+        AtomicBoolean isBroken = new AtomicBoolean();
+        Map<String, Object> properties = new HashMap<>(); // used by one borrower at a time
+        properties.put("AutoCommit", true);
+        properties.put("TransactionIsolation", Connection.TRANSACTION_READ_COMMITTED);
+        Connection connection = (Connection) Proxy.newProxyInstance(Connection.class.getClassLoader(),
+                new Class<?>[]{Connection.class}, (proxy, method, args) -> {
+                    switch (method.getName()) {
+                        case "close":
+                            if (isClosed.compareAndSet(false, true)) {
+                                closed.incrementAndGet();
+                                broken.remove((Connection) proxy);
+                            }
+                            return null;
+                        case "isClosed":
+                            return isClosed.get();
+                        case "isValid":
+                            return !isClosed.get() && !isBroken.get();
+                        case "hashCode":
+                            return System.identityHashCode(proxy);
+                        case "equals":
+                            return proxy == args[0];
+                        case "toString":
+                            return "InMemoryConnection@" + Integer.toHexString(System.identityHashCode(proxy));
+                        default:
+                            if (isClosed.get()) throw new SQLException("Connection is closed");
+                            if (isBroken.get()) throw new SQLException("Connection reset");
+                            if (method.getName().equals("prepareStatement")) {
+                                return prepare((Connection) proxy, (String) args[0]);
+                            }
+                            if (method.getName().equals("rollback")) {
+                                rollbacks.incrementAndGet();
+                            }
+                            return property(properties, method, args);
+                    }
+                });
+        broken.put(connection, isBroken);
+        opened.incrementAndGet();
+        return connection;
+    }
+
+    // A server-side prepare: one round trip
+    private PreparedStatement prepare(Connection connection, String sql) {
+        if (prepareLatencyMicros > 0) {
+            LockSupport.parkNanos(prepareLatencyMicros * 1_000);
+        }
+        prepared.incrementAndGet();
+        openStatements.incrementAndGet();
+        AtomicBoolean isClosed = new AtomicBoolean();
+        Map<String, Object> properties = new HashMap<>();
+        return (PreparedStatement) Proxy.newProxyInstance(PreparedStatement.class.getClassLoader(),
+                new Class<?>[]{PreparedStatement.class}, (proxy, method, args) -> {
+                    switch (method.getName()) {
+                        case "close":
+                            if (isClosed.compareAndSet(false, true)) {
+                                openStatements.decrementAndGet();
+                            }
+                            return null;
+                        case "isClosed":
+                            return isClosed.get();
+                        case "getConnection":
+                            return connection;
+                        case "hashCode":
+                            return System.identityHashCode(proxy);
+                        case "equals":
+                            return proxy == args[0];
+                        case "toString":
+                            return "InMemoryStatement[" + sql + "]";
+                        default:
+                            if (isClosed.get()) throw new SQLException("Statement is closed");
+                            return property(properties, method, args);
+                    }
+                });
+    }
+
+    // setX(value) is remembered and returned by getX()/isX(); anything else returns a default
+    private static Object property(Map<String, Object> properties, Method method, Object[] args) {
+        String name = method.getName();
+        int arity = args == null ? 0 : args.length;
+        if (name.startsWith("set") && arity == 1) {
+            properties.put(name.substring(3), args[0]);
+            return null;
+        }
+        String property = name.startsWith("get") ? name.substring(3) : name.startsWith("is") ? name.substring(2) : null;
+        if (property != null && arity == 0 && properties.containsKey(property)) {
+            return properties.get(property);
+        }
+        return defaultValue(method.getReturnType());
+    }
+
+    private static Object defaultValue(Class<?> type) {
+        if (type == boolean.class) return false;
+        if (type == int.class) return 0;
+        if (type == long.class) return 0L;
+        return null;
+    }
+
+    // Every currently open connection starts failing validation, like after a server restart
+    void breakOpenConnections() {
+        broken.values().forEach(flag -> flag.set(true));
+    }
+
+    void setFailing(boolean failing) {
+        this.failing = failing;
+    }
+
+    void setConnectLatencyMillis(long millis) {
+        this.connectLatencyMillis = millis;
+    }
+
+    void setPrepareLatencyMicros(long micros) {
+        this.prepareLatencyMicros = micros;
+    }
+
+    // Statements prepared so far, i.e. prepare round trips
+    int prepared() {
+        return prepared.get();
+    }
+
+    int openStatements() {
+        return openStatements.get();
+    }
+
+    int rollbacks() {
+        return rollbacks.get();
+    }
+
+    int opened() {
+        return opened.get();
+    }
+
+    int closed() {
+        return closed.get();
+    }
+}
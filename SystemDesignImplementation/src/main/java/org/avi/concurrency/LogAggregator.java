@@ -1,17 +1,128 @@
 package org.avi.concurrency;
 
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryUsage;
+import java.net.URLDecoder;
+import java.net.URLEncoder;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
 import java.util.*;
 import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
 
-public class LogAggregator {
-    Map<String, Deque<String>> logMap;
+/**
+ * Recent log lines per node. In memory, each node keeps its last capacity lines in a lock-free
+ * ring. In off-heap mode those lines are UTF-8 in deflated off-heap blocks instead, so the
+ * window costs the heap (and the collector) next to nothing.
+ *
+ * In durable mode each node appends to its own directory of memory-mapped segments, with
+ * size- and age-based retention, and reads (recent lines, time ranges) walk the mapped files
+ * backwards; what was logged survives a restart.
+ *
+ * With search enabled, every line is also tokenized into a per-node inverted index, trimmed
+ * as lines age out, and search() fans a query out across nodes on the ForkJoin pool.
+ */
+public class LogAggregator implements AutoCloseable {
+
+    // Sees each line as a read-only view of the mapped file; return false to stop
+    @FunctionalInterface
+    public interface LogVisitor {
+        boolean visit(long offset, long timestampMillis, ByteBuffer line);
+    }
+
+    // One lock-free ring per node (or off-heap block ring): appends are O(1) whatever the capacity
+    Map<String, RecentLines> logMap;
     int capacity;
+    private final int blockBytes; // off-heap mode only
+
+    // Durable mode only
+    // Node directories are prefixed, so no node ID ("", ".", "..") can resolve outside its own
+    private static final String NODE_DIR_PREFIX = "node-";
+    private final Map<String, SegmentedLog> logs = new ConcurrentHashMap<>();
+    private final Path directory;
+    private final int segmentBytes;
+    private final long retentionBytes;
+    private final long retentionMillis;
+    private final ScheduledExecutorService housekeeper;
+
+    private static final int BACKFILL_BATCH = 4096; // lines looked up at once when enableSearch indexes a ring
+    private final Map<String, LogIndex> indexes = new ConcurrentHashMap<>();
+    private volatile boolean searchEnabled;
+
     public LogAggregator( int capacity) {
         logMap = new ConcurrentHashMap<>();
         this.capacity = capacity;
+        this.blockBytes = 0;
+        this.directory = null;
+        this.segmentBytes = 0;
+        this.retentionBytes = 0;
+        this.retentionMillis = 0;
+        this.housekeeper = null;
     }
-    public static void main(String[] args) {
+
+    /**
+     * Off-heap mode: each node's last capacity lines are kept as UTF-8 in off-heap blocks of
+     * blockBytes, deflated once full, and decoded only when a read returns them. close()
+     * releases the memory.
+     */
+    public LogAggregator(int capacity, int blockBytes) {
+        if (blockBytes < 1024) throw new IllegalArgumentException("blockBytes must be >= 1024");
+        this.logMap = new ConcurrentHashMap<>();
+        this.capacity = capacity;
+        this.blockBytes = blockBytes;
+        this.directory = null;
+        this.segmentBytes = 0;
+        this.retentionBytes = 0;
+        this.retentionMillis = 0;
+        this.housekeeper = null;
+    }
+
+    /**
+     * Durable mode: one subdirectory of segment files per node under directory, reopened on
+     * restart. getRecentLogs still returns at most capacity lines. retentionBytes (per node)
+     * and retentionMillis of 0 disable that limit. Every second, appended data is flushed to
+     * disk and retention is applied.
+     */
+    public LogAggregator(int capacity, Path directory, int segmentBytes, long retentionBytes, long retentionMillis)
+            throws IOException {
+        if (segmentBytes < 1024) throw new IllegalArgumentException("segmentBytes must be >= 1024");
+        this.logMap = new ConcurrentHashMap<>();
+        this.capacity = capacity;
+        this.blockBytes = 0;
+        this.directory = directory;
+        this.segmentBytes = segmentBytes;
+        this.retentionBytes = retentionBytes;
+        this.retentionMillis = retentionMillis;
+        Files.createDirectories(directory);
+        try (Stream<Path> nodes = Files.list(directory)) {
+            for (Path nodeDir : (Iterable<Path>) nodes.filter(Files::isDirectory)::iterator) {
+                String name = nodeDir.getFileName().toString();
+                if (!name.startsWith(NODE_DIR_PREFIX)) {
+                    continue;
+                }
+                String nodeId = URLDecoder.decode(name.substring(NODE_DIR_PREFIX.length()), StandardCharsets.UTF_8);
+                logs.put(nodeId, new SegmentedLog(nodeDir, segmentBytes, retentionBytes, retentionMillis));
+            }
+        }
+        this.housekeeper = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "log-housekeeper");
+            t.setDaemon(true);
+            return t;
+        });
+        housekeeper.scheduleWithFixedDelay(this::houseKeep, 1, 1, TimeUnit.SECONDS);
+    }
+
+    public static void main(String[] args) throws InterruptedException, IOException {
         LogAggregator agg = new LogAggregator(3);
         agg.addLog("node1", "A");
         agg.addLog("node1", "B");
@@ -19,31 +130,357 @@ public class LogAggregator {
         agg.addLog("node1", "D");
         System.out.println(agg.getRecentLogs("node1"));  // returns ["D", "C", "B"]
         System.out.println(agg.getAllNodes());
+
+        // 4 writers on one node with a large window, while a reader keeps taking snapshots
+        LogAggregator big = new LogAggregator(100_000);
+        int perThread = 2_000_000;
+        List<Thread> writers = new ArrayList<>();
+        long start = System.nanoTime();
+        for (int t = 0; t < 4; t++) {
+            int id = t;
+            Thread writer = new Thread(() -> {
+                for (int i = 0; i < perThread; i++) {
+                    big.addLog("node1", "writer" + id + " line " + i);
+                }
+            });
+            writers.add(writer);
+            writer.start();
+        }
+        Thread reader = new Thread(() -> {
+            while (writers.stream().anyMatch(Thread::isAlive)) {
+                big.getRecentLogs("node1");
+            }
+        });
+        reader.start();
+        for (Thread writer : writers) {
+            writer.join();
+        }
+        reader.join();
+        System.out.printf("%,d appends in %d ms, newest: %s%n", 4L * perThread,
+                (System.nanoTime() - start) / 1_000_000, big.getRecentLogs("node1").get(0));
+
+        // 3M lines over 10,000 nodes, 300 per node: Strings in heap rings vs off-heap blocks
+        for (int blockBytes : new int[]{0, 8 * 1024}) {
+            System.gc();
+            long heapBefore = usedHeap();
+            long gcBefore = gcMillis();
+            LogAggregator fleet = blockBytes == 0 ? new LogAggregator(300) : new LogAggregator(300, blockBytes);
+            Random random = new Random(7);
+            start = System.nanoTime();
+            for (int i = 0; i < 3_000_000; i++) {
+                fleet.addLog("node" + i % 10_000, sampleLine(random));
+            }
+            long loadMillis = (System.nanoTime() - start) / 1_000_000;
+            long gcDuringLoad = gcMillis() - gcBefore;
+            long gcBeforeFull = gcMillis();
+            System.gc();
+            long fullGcMillis = gcMillis() - gcBeforeFull;
+            long heap = usedHeap() - heapBefore;
+            long offHeap = 0;
+            long raw = 0;
+            long stored = 0;
+            for (RecentLines ring : fleet.logMap.values()) {
+                if (ring instanceof OffHeapLogRing blocks) {
+                    offHeap += blocks.offHeapBytes();
+                    long[] sizes = blocks.rawAndStoredBytes();
+                    raw += sizes[0];
+                    stored += sizes[1];
+                }
+            }
+            start = System.nanoTime();
+            for (int i = 0; i < 1_000; i++) {
+                fleet.getRecentLogs("node" + i);
+            }
+            long recentMicros = (System.nanoTime() - start) / 1_000 / 1_000;
+            System.out.printf("%-8s heap %,4d MB, off-heap %,4d MB%s, load %,d ms, GC %,d ms during load + %,d ms full, getRecentLogs %,d us%n",
+                    blockBytes == 0 ? "heap" : "off-heap", heap >> 20, offHeap >> 20,
+                    stored == 0 ? "" : String.format(" (deflated %.1fx)", (double) raw / stored),
+                    loadMillis, gcDuringLoad, fullGcMillis, recentMicros);
+            fleet.close();
+        }
+
+        // Search over 1M lines on 8 nodes, indexed as they arrive
+        LogAggregator searchable = new LogAggregator(125_000);
+        searchable.enableSearch();
+        Random random = new Random(1);
+        start = System.nanoTime();
+        for (int i = 0; i < 1_000_000; i++) {
+            searchable.addLog("node" + i % 8, sampleLine(random));
+        }
+        System.out.printf("Indexed 1,000,000 lines in %d ms%n", (System.nanoTime() - start) / 1_000_000);
+        // Median of 100 runs per query, after 200 to warm up the JIT
+        for (String query : new String[]{"error AND db timeout", "payments AND connection reset OR billing AND slow",
+                "user=4242", "warn retrying"}) {
+            Map<String, List<String>> hits = null;
+            long[] micros = new long[100];
+            for (int round = -200; round < micros.length; round++) {
+                start = System.nanoTime();
+                hits = searchable.search(query, null, 20);
+                if (round >= 0) {
+                    micros[round] = (System.nanoTime() - start) / 1_000;
+                }
+            }
+            Arrays.sort(micros);
+            System.out.printf("%-50s %3d hits on %d nodes in %,d us (median), e.g. %s%n", query,
+                    hits.values().stream().mapToInt(List::size).sum(), hits.size(), micros[micros.length / 2],
+                    hits.isEmpty() ? "-" : hits.values().iterator().next().get(0));
+        }
+        System.out.println("node3 only: " + searchable.search("error AND db timeout", List.of("node3"), 2));
+
+        // Durable mode: 64 KB segments, at most 512 KB per node
+        Path dir = Files.createTempDirectory("logs");
+        long before;
+        long after;
+        try (LogAggregator durable = new LogAggregator(3, dir, 64 * 1024, 512 * 1024, 0)) {
+            for (int i = 0; i < 10_000; i++) {
+                durable.addLog("node-" + i % 2, "request " + i + " served");
+            }
+            Thread.sleep(20);
+            before = System.currentTimeMillis();
+            for (int i = 10_000; i < 30_000; i++) {
+                durable.addLog("node-" + i % 2, "request " + i + " served");
+            }
+            after = System.currentTimeMillis();
+            Thread.sleep(20);
+            for (int i = 30_000; i < 40_000; i++) {
+                durable.addLog("node-" + i % 2, "request " + i + " served");
+            }
+            List<String> range = durable.getLogs("node-0", before, after, Integer.MAX_VALUE);
+            System.out.println("Time range: " + range.size() + " lines, " + range.get(0) + " .. " + range.get(range.size() - 1));
+            Thread.sleep(1_200); // housekeeper applies retention
+            System.out.println("node-0 segments after retention: " + durable.logs.get("node-0").segmentCount());
+        }
+        try (LogAggregator reopened = new LogAggregator(3, dir, 64 * 1024, 512 * 1024, 0)) {
+            System.out.println("After restart " + reopened.getAllNodes() + ": " + reopened.getRecentLogs("node-1"));
+            long[] counted = new long[1];
+            reopened.scanLogs("node-0", Long.MIN_VALUE, Long.MAX_VALUE, (offset, time, line) -> {
+                counted[0]++;
+                return true;
+            });
+            System.out.println("node-0 lines retained: " + counted[0]);
+        }
+        try (Stream<Path> files = Files.walk(dir)) {
+            files.sorted(Comparator.reverseOrder()).forEach(p -> p.toFile().delete());
+        }
+    }
+
+    private static final String[] LEVELS = {"INFO", "INFO", "INFO", "WARN", "ERROR"};
+    private static final String[] SERVICES = {"payments", "orders", "users", "search", "billing", "auth"};
+    private static final String[] EVENTS = {"request served", "cache miss", "db timeout", "retrying call", "connection reset", "slow query"};
+
+    private static String sampleLine(Random random) {
+        return LEVELS[random.nextInt(LEVELS.length)] + " " + SERVICES[random.nextInt(SERVICES.length)] + " "
+                + EVENTS[random.nextInt(EVENTS.length)] + " user=" + random.nextInt(10_000)
+                + " latency=" + random.nextInt(500) + "ms";
+    }
+
+    private static long usedHeap() {
+        MemoryUsage heap = ManagementFactory.getMemoryMXBean().getHeapMemoryUsage();
+        return heap.getUsed();
+    }
+
+    private static long gcMillis() {
+        long total = 0;
+        for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+            total += Math.max(0, gc.getCollectionTime());
+        }
+        return total;
     }
+
     public void addLog(String nodeId, String logLine) {
+        if (directory != null) {
+            SegmentedLog log = nodeLog(nodeId);
+            long offset;
+            try {
+                offset = log.append(System.currentTimeMillis(), logLine);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            if (searchEnabled) {
+                index(nodeId).add(offset, logLine, log.firstOffset());
+            }
+            return;
+        }
         // Atomic computeIfAbsent ensures thread-safe creation
-        Deque<String> deque = logMap.computeIfAbsent(nodeId, k -> new ConcurrentLinkedDeque<>());
+        RecentLines ring = logMap.computeIfAbsent(nodeId, k -> blockBytes > 0
+                ? new OffHeapLogRing(capacity, blockBytes)
+                : new LogRing(capacity));
+        long seq = ring.append(logLine);
+        if (searchEnabled) {
+            index(nodeId).add(seq, logLine, Math.max(0, ring.appended() - capacity));
+        }
+    }
 
-        synchronized (deque) {  // fine-grained lock, only per node
-            if (deque.size() >= capacity) {
-                deque.removeFirst(); // remove oldest
+    /**
+     * Starts indexing lines for search(), first indexing what every node already holds (for a
+     * reopened durable aggregator, everything retained on disk). Call it before logging starts.
+     */
+    public void enableSearch() {
+        searchEnabled = true;
+        if (directory != null) {
+            logs.forEach((nodeId, log) -> {
+                LogIndex index = index(nodeId);
+                long floor = log.firstOffset();
+                log.scanForward((offset, time, line) -> {
+                    index.add(offset, SegmentedLog.decode(line), floor);
+                    return true;
+                });
+            });
+        } else {
+            logMap.forEach((nodeId, ring) -> {
+                LogIndex index = index(nodeId);
+                long end = ring.appended();
+                long floor = Math.max(0, end - capacity);
+                // In batches, so an off-heap ring inflates each block once rather than once per line
+                for (long from = floor; from < end; from += BACKFILL_BATCH) {
+                    long[] seqs = new long[(int) Math.min(BACKFILL_BATCH, end - from)];
+                    for (int i = 0; i < seqs.length; i++) {
+                        seqs[i] = from + i;
+                    }
+                    String[] lines = ring.getAll(seqs);
+                    for (int i = 0; i < seqs.length; i++) {
+                        if (lines[i] != null) {
+                            index.add(seqs[i], lines[i], floor);
+                        }
+                    }
+                }
+            });
+        }
+    }
+
+    private LogIndex index(String nodeId) {
+        return indexes.computeIfAbsent(nodeId, k -> directory != null
+                ? new LogIndex(LogIndex.oneByOne(nodeLog(k)::read), 1024)
+                : new LogIndex(logMap.get(k)::getAll, Math.max(1024, capacity / 8)));
+    }
+
+    /**
+     * Lines matching query on each node, newest first and at most limit per node, searched on
+     * all nodes in parallel. The query is terms separated by OR and (optionally) AND, with AND
+     * binding tighter: "timeout OR error AND db". nodes restricts the search; null means all.
+     */
+    public Map<String, List<String>> search(String query, Collection<String> nodes, int limit) {
+        if (!searchEnabled) {
+            throw new IllegalStateException("Search is not enabled");
+        }
+        List<List<String>> clauses = LogIndex.parse(query);
+        List<String> targets = new ArrayList<>();
+        for (String nodeId : nodes == null ? indexes.keySet() : nodes) {
+            if (indexes.containsKey(nodeId)) {
+                targets.add(nodeId);
             }
-            deque.addLast(logLine);
         }
+        if (clauses.isEmpty() || targets.isEmpty()) {
+            return Collections.emptyMap();
+        }
+        return ForkJoinPool.commonPool().invoke(new SearchTask(targets, clauses, limit));
     }
 
-    public List<String> getRecentLogs(String nodeId) {
-        Deque<String> deque = logMap.get(nodeId);
-        if (deque == null) return Collections.emptyList();
+    // Splits the node list in halves until one node is left, then searches its index
+    @SuppressWarnings("serial") // ForkJoinTask is Serializable, but search tasks never leave the pool
+    private final class SearchTask extends RecursiveTask<Map<String, List<String>>> {
+        private final List<String> nodes;
+        private final List<List<String>> clauses;
+        private final int limit;
+
+        SearchTask(List<String> nodes, List<List<String>> clauses, int limit) {
+            this.nodes = nodes;
+            this.clauses = clauses;
+            this.limit = limit;
+        }
 
-        synchronized (deque) {
-            List<String> result = new ArrayList<>(deque);
-            Collections.reverse(result);
+        @Override
+        protected Map<String, List<String>> compute() {
+            if (nodes.size() == 1) {
+                Map<String, List<String>> result = new TreeMap<>();
+                List<String> hits = indexes.get(nodes.get(0)).search(clauses, limit);
+                if (!hits.isEmpty()) {
+                    result.put(nodes.get(0), hits);
+                }
+                return result;
+            }
+            int mid = nodes.size() / 2;
+            SearchTask left = new SearchTask(nodes.subList(0, mid), clauses, limit);
+            left.fork();
+            Map<String, List<String>> result = new SearchTask(nodes.subList(mid, nodes.size()), clauses, limit).compute();
+            result.putAll(left.join());
             return result;
         }
     }
 
+    private SegmentedLog nodeLog(String nodeId) {
+        return logs.computeIfAbsent(nodeId, k -> {
+            try {
+                Path nodeDir = directory.resolve(NODE_DIR_PREFIX + URLEncoder.encode(nodeId, StandardCharsets.UTF_8));
+                return new SegmentedLog(nodeDir, segmentBytes, retentionBytes, retentionMillis);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        });
+    }
+
+    // Newest first, read straight off the ring (or the mapped segments) without locking
+    public List<String> getRecentLogs(String nodeId) {
+        if (directory != null) {
+            SegmentedLog log = logs.get(nodeId);
+            return log == null ? Collections.emptyList() : log.recent(capacity);
+        }
+        RecentLines ring = logMap.get(nodeId);
+        if (ring == null) return Collections.emptyList();
+        return ring.recent(capacity);
+    }
+
+    /**
+     * Lines logged by the node with fromMillis <= time <= toMillis, newest first, at most
+     * limit of them. Durable mode only: the in-memory rings do not keep timestamps.
+     */
+    public List<String> getLogs(String nodeId, long fromMillis, long toMillis, int limit) {
+        requireDurable();
+        SegmentedLog log = logs.get(nodeId);
+        return log == null ? Collections.emptyList() : log.query(fromMillis, toMillis, limit);
+    }
+
+    // Like getLogs, but hands each line over as a view of the mapped file instead of a String
+    public void scanLogs(String nodeId, long fromMillis, long toMillis, LogVisitor visitor) {
+        requireDurable();
+        SegmentedLog log = logs.get(nodeId);
+        if (log != null) {
+            log.scanBackward(fromMillis, toMillis, visitor);
+        }
+    }
+
+    private void requireDurable() {
+        if (directory == null) {
+            throw new IllegalStateException("Time-range queries need durable mode");
+        }
+    }
+
     public List<String> getAllNodes() {
-        return new ArrayList<>(logMap.keySet());
+        return new ArrayList<>(directory != null ? logs.keySet() : logMap.keySet());
+    }
+
+    private void houseKeep() {
+        long now = System.currentTimeMillis();
+        for (SegmentedLog log : logs.values()) {
+            try {
+                log.flush();
+                log.enforceRetention(now);
+            } catch (IOException e) {
+                System.err.println("Log housekeeping failed: " + e.getMessage());
+            }
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (housekeeper != null) {
+            housekeeper.shutdownNow();
+        }
+        for (RecentLines ring : logMap.values()) {
+            ring.close();
+        }
+        for (SegmentedLog log : logs.values()) {
+            log.close();
+        }
     }
 }
@@ -0,0 +1,418 @@
+package org.avi.concurrency;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.Function;
+import java.util.function.LongFunction;
+
+/**
+ * Incremental inverted index over one node's log lines: term -> ids of the lines containing it.
+ *
+ * Line ids are the node's own sequence numbers (ring sequence or segment offset), so they grow
+ * as lines arrive and ids below the node's oldest retained line are dead. Posting lists are
+ * blocks of delta-encoded varints plus an uncompressed tail; lines that have aged out are
+ * trimmed a whole block at a time, and queries ignore any dead ids left in a partial block.
+ *
+ * A query is an OR of AND-clauses, evaluated newest first with cursors that seek backwards,
+ * skipping whole blocks by their first id, so it can stop as soon as it has enough hits.
+ */
+class LogIndex {
+    private static final int BLOCK_SIZE = 128;
+    private static final int MAX_TERM_LENGTH = 64;
+
+    private final Map<String, PostingList> terms = new HashMap<>();
+    private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+    private final Function<long[], String[]> lines; // ids -> their lines, null for those that have aged out
+    private final long trimEvery;
+    private long floor; // ids below this have aged out
+    private long trimmedAt;
+
+    LogIndex(Function<long[], String[]> lines, long trimEvery) {
+        this.lines = lines;
+        this.trimEvery = Math.max(1, trimEvery);
+    }
+
+    // For a source that reads one line as cheaply as many
+    static Function<long[], String[]> oneByOne(LongFunction<String> line) {
+        return ids -> {
+            String[] lines = new String[ids.length];
+            for (int i = 0; i < ids.length; i++) {
+                lines[i] = line.apply(ids[i]);
+            }
+            return lines;
+        };
+    }
+
+    /**
+     * Indexes a line. floor is the oldest id still retained; once it has moved trimEvery past
+     * the last trim, every posting list drops its dead blocks.
+     */
+    void add(long id, String line, long floor) {
+        List<String> tokens = tokenize(line);
+        lock.writeLock().lock();
+        try {
+            for (String token : tokens) {
+                terms.computeIfAbsent(token, k -> new PostingList()).add(id);
+            }
+            if (floor > this.floor) {
+                this.floor = floor;
+                if (floor - trimmedAt >= trimEvery) {
+                    trim();
+                }
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    // Write lock held
+    private void trim() {
+        for (Iterator<PostingList> it = terms.values().iterator(); it.hasNext(); ) {
+            PostingList postings = it.next();
+            postings.trim(floor);
+            if (postings.isEmpty()) {
+                it.remove();
+            }
+        }
+        trimmedAt = floor;
+    }
+
+    /**
+     * Up to limit lines matching any of the clauses (each clause: all of its terms), newest
+     * first. Terms must already be normalized with tokenize.
+     */
+    List<String> search(List<List<String>> clauses, int limit) {
+        List<String> hits = new ArrayList<>();
+        List<Long> ids = new ArrayList<>();
+        lock.readLock().lock();
+        try {
+            List<Cursor[]> cursors = new ArrayList<>();
+            for (List<String> clause : clauses) {
+                Cursor[] clauseCursors = new Cursor[clause.size()];
+                boolean possible = !clause.isEmpty();
+                for (int i = 0; i < clause.size() && possible; i++) {
+                    PostingList postings = terms.get(clause.get(i));
+                    if (postings == null) {
+                        possible = false;
+                    } else {
+                        clauseCursors[i] = postings.cursor();
+                    }
+                }
+                if (possible) {
+                    // Rarest term first: it proposes the fewest candidates
+                    Arrays.sort(clauseCursors, (a, b) -> Integer.compare(a.size(), b.size()));
+                    cursors.add(clauseCursors);
+                }
+            }
+            long target = Long.MAX_VALUE;
+            while (ids.size() < limit && !cursors.isEmpty()) {
+                long best = -1;
+                for (Cursor[] clause : cursors) {
+                    best = Math.max(best, seekAll(clause, target));
+                }
+                if (best < floor) {
+                    break;
+                }
+                ids.add(best);
+                target = best - 1;
+            }
+        } finally {
+            lock.readLock().unlock();
+        }
+        // Resolved outside the lock, all at once; a line that aged out meanwhile is skipped
+        for (String line : lines.apply(ids.stream().mapToLong(Long::longValue).toArray())) {
+            if (line != null) {
+                hits.add(line);
+            }
+        }
+        return hits;
+    }
+
+    // Largest id <= target present in every cursor, or -1
+    private static long seekAll(Cursor[] clause, long target) {
+        long candidate = target;
+        int agreed = 0;
+        for (int i = 0; agreed < clause.length; i = (i + 1) % clause.length) {
+            long id = clause[i].seek(candidate);
+            if (id < 0) {
+                return -1;
+            }
+            if (id == candidate) {
+                agreed++;
+            } else {
+                candidate = id;
+                agreed = 1;
+            }
+        }
+        return candidate;
+    }
+
+    int termCount() {
+        lock.readLock().lock();
+        try {
+            return terms.size();
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    // Lower-cased runs of letters and digits; longer runs are cut at MAX_TERM_LENGTH
+    static List<String> tokenize(String text) {
+        List<String> tokens = new ArrayList<>();
+        StringBuilder token = new StringBuilder();
+        for (int i = 0; i <= text.length(); i++) {
+            char c = i < text.length() ? text.charAt(i) : ' ';
+            if (Character.isLetterOrDigit(c)) {
+                if (token.length() < MAX_TERM_LENGTH) {
+                    token.append(Character.toLowerCase(c));
+                }
+            } else if (token.length() > 0) {
+                tokens.add(token.toString());
+                token.setLength(0);
+            }
+        }
+        return tokens;
+    }
+
+    /**
+     * "timeout OR error AND db": clauses separated by OR, terms within a clause ANDed (the AND
+     * keyword is optional). A word the tokenizer splits, like "user-42", requires all its parts.
+     */
+    static List<List<String>> parse(String query) {
+        List<List<String>> clauses = new ArrayList<>();
+        List<String> clause = new ArrayList<>();
+        for (String word : query.trim().split("\\s+")) {
+            if (word.equals("OR")) {
+                if (!clause.isEmpty()) clauses.add(clause);
+                clause = new ArrayList<>();
+            } else if (!word.equals("AND")) {
+                clause.addAll(tokenize(word));
+            }
+        }
+        if (!clause.isEmpty()) clauses.add(clause);
+        return clauses;
+    }
+
+    /**
+     * Ids in ascending order: sealed blocks of varint deltas (the first id absolute), then a
+     * sorted uncompressed tail. Lines of one node can be indexed slightly out of order by
+     * concurrent writers, so add() inserts into the tail, reopening the last block if needed.
+     */
+    static final class PostingList {
+        private byte[][] blocks = new byte[2][];
+        private long[] blockFirst = new long[2];
+        private long[] blockLast = new long[2];
+        private int[] blockCount = new int[2];
+        private int head; // live blocks are [head, blockEnd)
+        private int blockEnd;
+        private long[] tail = new long[8];
+        private int tailSize;
+        private int size;
+
+        void add(long id) {
+            while (blockEnd > head && id <= blockLast[blockEnd - 1]) {
+                reopenLastBlock();
+            }
+            int i = tailSize;
+            while (i > 0 && tail[i - 1] > id) {
+                i--;
+            }
+            if (i > 0 && tail[i - 1] == id) {
+                return; // term repeated in the same line
+            }
+            if (tailSize == tail.length) {
+                tail = Arrays.copyOf(tail, tailSize * 2);
+            }
+            System.arraycopy(tail, i, tail, i + 1, tailSize - i);
+            tail[i] = id;
+            tailSize++;
+            size++;
+            if (tailSize >= BLOCK_SIZE) {
+                sealTail();
+            }
+        }
+
+        private void sealTail() {
+            if (blockEnd == blocks.length) {
+                if (head > 0) {
+                    compact();
+                } else {
+                    int grown = blocks.length * 2;
+                    blocks = Arrays.copyOf(blocks, grown);
+                    blockFirst = Arrays.copyOf(blockFirst, grown);
+                    blockLast = Arrays.copyOf(blockLast, grown);
+                    blockCount = Arrays.copyOf(blockCount, grown);
+                }
+            }
+            byte[] out = new byte[tailSize * 10];
+            int length = 0;
+            long previous = 0;
+            for (int i = 0; i < tailSize; i++) {
+                long delta = tail[i] - previous;
+                previous = tail[i];
+                while ((delta & ~0x7FL) != 0) {
+                    out[length++] = (byte) ((delta & 0x7F) | 0x80);
+                    delta >>>= 7;
+                }
+                out[length++] = (byte) delta;
+            }
+            blocks[blockEnd] = Arrays.copyOf(out, length);
+            blockFirst[blockEnd] = tail[0];
+            blockLast[blockEnd] = tail[tailSize - 1];
+            blockCount[blockEnd] = tailSize;
+            blockEnd++;
+            tailSize = 0;
+        }
+
+        private void reopenLastBlock() {
+            blockEnd--;
+            int count = blockCount[blockEnd];
+            long[] merged = new long[Math.max(tail.length, count + tailSize + 1)];
+            decode(blocks[blockEnd], count, merged);
+            System.arraycopy(tail, 0, merged, count, tailSize);
+            blocks[blockEnd] = null;
+            tail = merged;
+            tailSize += count;
+        }
+
+        private void compact() {
+            int live = blockEnd - head;
+            System.arraycopy(blocks, head, blocks, 0, live);
+            System.arraycopy(blockFirst, head, blockFirst, 0, live);
+            System.arraycopy(blockLast, head, blockLast, 0, live);
+            System.arraycopy(blockCount, head, blockCount, 0, live);
+            Arrays.fill(blocks, live, blockEnd, null);
+            head = 0;
+            blockEnd = live;
+        }
+
+        // Drops whole blocks (and a tail prefix) below floor
+        void trim(long floor) {
+            while (head < blockEnd && blockLast[head] < floor) {
+                size -= blockCount[head];
+                blocks[head++] = null;
+            }
+            if (head == blockEnd && tailSize > 0 && tail[0] < floor) {
+                int dead = 0;
+                while (dead < tailSize && tail[dead] < floor) {
+                    dead++;
+                }
+                System.arraycopy(tail, dead, tail, 0, tailSize - dead);
+                tailSize -= dead;
+                size -= dead;
+            }
+            if (head > blockEnd / 2) {
+                compact();
+            }
+        }
+
+        boolean isEmpty() {
+            return head == blockEnd && tailSize == 0;
+        }
+
+        Cursor cursor() {
+            return new Cursor(this);
+        }
+
+        static void decode(byte[] data, int count, long[] out) {
+            long value = 0;
+            int p = 0;
+            for (int i = 0; i < count; i++) {
+                long delta = 0;
+                int shift = 0;
+                byte b;
+                do {
+                    b = data[p++];
+                    delta |= (long) (b & 0x7F) << shift;
+                    shift += 7;
+                } while (b < 0);
+                value += delta;
+                out[i] = value;
+            }
+        }
+    }
+
+    /**
+     * Walks one posting list from newest to oldest. seek(target) moves to the largest id
+     * <= target and returns it (or -1); targets only ever decrease. Valid under the read lock.
+     */
+    static final class Cursor {
+        private final PostingList list;
+        private long[] ids;
+        private int block; // index of the loaded block; list.blockEnd means the tail
+        private int pos; // ids[pos] is the current id
+        private long current = -1;
+        private boolean positioned;
+        private long[] scratch;
+
+        Cursor(PostingList list) {
+            this.list = list;
+            this.block = list.blockEnd;
+            this.ids = list.tail;
+            this.pos = list.tailSize;
+        }
+
+        int size() {
+            return list.size;
+        }
+
+        long seek(long target) {
+            if (positioned && current <= target) {
+                return current;
+            }
+            positioned = true;
+            // In the loaded block: ids[0..pos) are still ahead of us
+            if (pos > 0 && ids[0] <= target) {
+                pos = largestAtMost(ids, pos, target);
+                return current = ids[pos];
+            }
+            // Otherwise the newest earlier block whose first id is <= target
+            int lo = list.head;
+            int hi = block - 1;
+            int found = -1;
+            while (lo <= hi) {
+                int mid = (lo + hi) >>> 1;
+                if (list.blockFirst[mid] <= target) {
+                    found = mid;
+                    lo = mid + 1;
+                } else {
+                    hi = mid - 1;
+                }
+            }
+            if (found < 0) {
+                block = list.head;
+                pos = 0;
+                return current = -1;
+            }
+            int count = list.blockCount[found];
+            if (scratch == null || scratch.length < count) {
+                scratch = new long[Math.max(count, BLOCK_SIZE)];
+            }
+            PostingList.decode(list.blocks[found], count, scratch);
+            ids = scratch;
+            block = found;
+            pos = largestAtMost(ids, count, target);
+            return current = ids[pos];
+        }
+
+        // Index of the largest of ids[0..length) that is <= target; ids[0] <= target
+        private static int largestAtMost(long[] ids, int length, long target) {
+            int lo = 0;
+            int hi = length - 1;
+            while (lo < hi) {
+                int mid = (lo + hi + 1) >>> 1;
+                if (ids[mid] <= target) {
+                    lo = mid;
+                } else {
+                    hi = mid - 1;
+                }
+            }
+            return lo;
+        }
+    }
+}
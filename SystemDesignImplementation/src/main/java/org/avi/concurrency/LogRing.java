@@ -0,0 +1,91 @@
+package org.avi.concurrency;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Fixed-capacity ring holding the most recent lines of one node, without locks.
+ *
+ * An append claims a sequence number with one getAndIncrement and publishes the line into
+ * slot seq % capacity, tagged with its sequence. Readers walk backwards from the cursor and
+ * use the tags to tell what they see: the expected line, a slot whose writer has claimed but
+ * not yet published (skipped), or a slot already reused by a newer lap (everything older is
+ * gone too, so the walk stops). Nothing is copied twice or reversed.
+ */
+class LogRing implements RecentLines {
+
+    private static final class Slot {
+        final long seq;
+        final String line;
+
+        Slot(long seq, String line) {
+            this.seq = seq;
+            this.line = line;
+        }
+    }
+
+    private final int capacity;
+    private final AtomicReferenceArray<Slot> slots;
+    private final AtomicLong cursor = new AtomicLong(); // next sequence to claim
+
+    LogRing(int capacity) {
+        if (capacity <= 0) throw new IllegalArgumentException("capacity must be > 0");
+        this.capacity = capacity;
+        this.slots = new AtomicReferenceArray<>(capacity);
+    }
+
+    @Override
+    public long append(String line) {
+        long seq = cursor.getAndIncrement();
+        int index = (int) (seq % capacity);
+        Slot slot = new Slot(seq, line);
+        // Normally one CAS. It only retries if a writer a whole lap behind was stalled on this
+        // slot; a line that has already been lapped is out of the window and is dropped
+        Slot current;
+        do {
+            current = slots.get(index);
+            if (current != null && current.seq > seq) {
+                return seq;
+            }
+        } while (!slots.compareAndSet(index, current, slot));
+        return seq;
+    }
+
+    @Override
+    public String get(long seq) {
+        if (seq < 0) {
+            return null;
+        }
+        Slot slot = slots.get((int) (seq % capacity));
+        return slot != null && slot.seq == seq ? slot.line : null;
+    }
+
+    @Override
+    public List<String> recent(int limit) {
+        long end = cursor.get();
+        long start = Math.max(0, end - Math.min(limit, capacity));
+        List<String> result = new ArrayList<>((int) (end - start));
+        for (long seq = end - 1; seq >= start; seq--) {
+            Slot slot = slots.get((int) (seq % capacity));
+            if (slot == null || slot.seq < seq) {
+                continue; // claimed, not yet published
+            }
+            if (slot.seq > seq) {
+                break; // lapped while we were reading
+            }
+            result.add(slot.line);
+        }
+        return result;
+    }
+
+    @Override
+    public long appended() {
+        return cursor.get();
+    }
+
+    int capacity() {
+        return capacity;
+    }
+}
@@ -0,0 +1,349 @@
+package org.avi.concurrency;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.zip.CRC32C;
+
+/**
+ * One memory-mapped, preallocated segment file of a node's log.
+ *
+ * Record: [len int][crc32c int][offset long][timestamp long][line utf8][len int]. The trailing
+ * length lets readers walk backwards from the end. The unused tail of the file is zeros, which
+ * never checksum correctly, so recovery scans forward until a length, checksum or offset
+ * does not match.
+ *
+ * A sparse index holds one entry per INDEX_INTERVAL bytes: where the interval starts, its
+ * first offset, the min/max timestamp inside it and the max timestamp of everything before it.
+ * A time-range query skips intervals that cannot match and stops once nothing earlier can.
+ * Sealed segments write the index next to the data (.idx) so reopening does not rescan them.
+ *
+ * One appender at a time (the owning SegmentedLog's lock); any number of lock-free readers,
+ * which only look below the volatile end published after each append.
+ */
+class LogSegment implements AutoCloseable {
+    static final int HEADER_SIZE = 24;
+    static final int RECORD_OVERHEAD = HEADER_SIZE + 4;
+    static final int INDEX_INTERVAL = 4096;
+    private static final int INDEX_ENTRY_SIZE = 36;
+
+    final Path path;
+    final long baseOffset;
+    private final FileChannel channel;
+    private final MappedByteBuffer buffer;
+    private final int capacity;
+    private final CRC32C crc = new CRC32C(); // used under the append lock, or while opening
+
+    // Sparse index, sized for the whole segment up front so readers never see it reallocated
+    private final int[] positions;
+    private final long[] firstOffsets;
+    private final long[] minTimestamps;
+    private final long[] maxTimestamps;
+    private final long[] maxBefore;
+    private volatile int intervals;
+
+    private volatile int end; // bytes of complete records
+    private long nextOffset;
+    private volatile long minTimestamp = Long.MAX_VALUE;
+    private volatile long maxTimestamp = Long.MIN_VALUE;
+    private volatile boolean sealed;
+
+    private LogSegment(Path path, long baseOffset, FileChannel channel, MappedByteBuffer buffer, int capacity) {
+        this.path = path;
+        this.baseOffset = baseOffset;
+        this.channel = channel;
+        this.buffer = buffer;
+        this.capacity = capacity;
+        this.nextOffset = baseOffset;
+        int maxIntervals = capacity / INDEX_INTERVAL + 2;
+        this.positions = new int[maxIntervals];
+        this.firstOffsets = new long[maxIntervals];
+        this.minTimestamps = new long[maxIntervals];
+        this.maxTimestamps = new long[maxIntervals];
+        this.maxBefore = new long[maxIntervals];
+    }
+
+    static Path fileName(Path dir, long baseOffset, String suffix) {
+        return dir.resolve(String.format("%020d%s", baseOffset, suffix));
+    }
+
+    static LogSegment create(Path dir, long baseOffset, int capacity) throws IOException {
+        Path path = fileName(dir, baseOffset, ".log");
+        FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE_NEW, StandardOpenOption.READ,
+                StandardOpenOption.WRITE);
+        return new LogSegment(path, baseOffset, channel, channel.map(FileChannel.MapMode.READ_WRITE, 0, capacity), capacity);
+    }
+
+    /**
+     * Maps an existing segment. A sealed one with an intact index is mapped read-only as is;
+     * otherwise the records are rescanned, and an unsealed segment's torn tail is zeroed so
+     * appends can continue after the last intact record.
+     */
+    static LogSegment open(Path path, boolean active) throws IOException {
+        long baseOffset = Long.parseLong(path.getFileName().toString().replace(".log", ""));
+        FileChannel channel = FileChannel.open(path, active
+                ? new StandardOpenOption[]{StandardOpenOption.READ, StandardOpenOption.WRITE}
+                : new StandardOpenOption[]{StandardOpenOption.READ});
+        int capacity = (int) channel.size();
+        MappedByteBuffer buffer = channel.map(active ? FileChannel.MapMode.READ_WRITE : FileChannel.MapMode.READ_ONLY,
+                0, capacity);
+        LogSegment segment = new LogSegment(path, baseOffset, channel, buffer, capacity);
+        if (active || !segment.loadIndex()) {
+            segment.recover();
+        }
+        if (active) {
+            for (int i = segment.end; i < capacity; i++) {
+                if (buffer.get(i) != 0) buffer.put(i, (byte) 0);
+            }
+        } else {
+            segment.sealed = true;
+        }
+        return segment;
+    }
+
+    // Rebuilds end, offsets and the index from the records themselves
+    private void recover() {
+        int position = 0;
+        while (position + RECORD_OVERHEAD <= capacity) {
+            int length = buffer.getInt(position);
+            if (length < 0 || position + RECORD_OVERHEAD + length > capacity
+                    || buffer.getInt(position + HEADER_SIZE + length) != length
+                    || buffer.getLong(position + 8) != nextOffset
+                    || checksum(position, length) != buffer.getInt(position + 4)) {
+                break;
+            }
+            long timestamp = buffer.getLong(position + 16);
+            index(position, nextOffset, timestamp);
+            nextOffset++;
+            position += RECORD_OVERHEAD + length;
+            end = position;
+        }
+    }
+
+    private int checksum(int position, int length) {
+        crc.reset();
+        crc.update(buffer.slice(position + 8, 16 + length));
+        return (int) crc.getValue();
+    }
+
+    boolean fits(int lineLength) {
+        return end + RECORD_OVERHEAD + lineLength <= capacity;
+    }
+
+    // Caller holds the log's append lock and has checked fits()
+    long append(long timestamp, byte[] line) {
+        int position = end;
+        long offset = nextOffset++;
+        buffer.putInt(position, line.length);
+        buffer.putLong(position + 8, offset);
+        buffer.putLong(position + 16, timestamp);
+        buffer.put(position + HEADER_SIZE, line);
+        buffer.putInt(position + HEADER_SIZE + line.length, line.length);
+        buffer.putInt(position + 4, checksum(position, line.length));
+        index(position, offset, timestamp);
+        end = position + RECORD_OVERHEAD + line.length; // publishes the record to readers
+        return offset;
+    }
+
+    private void index(int position, long offset, long timestamp) {
+        int k = intervals - 1;
+        if (k < 0 || position >= positions[k] + INDEX_INTERVAL) {
+            k++;
+            positions[k] = position;
+            firstOffsets[k] = offset;
+            minTimestamps[k] = timestamp;
+            maxTimestamps[k] = timestamp;
+            maxBefore[k] = k == 0 ? Long.MIN_VALUE : Math.max(maxBefore[k - 1], maxTimestamps[k - 1]);
+            intervals = k + 1;
+        } else {
+            minTimestamps[k] = Math.min(minTimestamps[k], timestamp);
+            maxTimestamps[k] = Math.max(maxTimestamps[k], timestamp);
+        }
+        if (timestamp < minTimestamp) minTimestamp = timestamp;
+        if (timestamp > maxTimestamp) maxTimestamp = timestamp;
+    }
+
+    /**
+     * Visits records with from <= timestamp <= to, newest first, as read-only slices of the
+     * mapping. Returns false if the visitor asked to stop.
+     */
+    boolean scanBackward(long from, long to, LogAggregator.LogVisitor visitor) {
+        int limit = end; // read first: everything indexed below it is complete
+        int count = intervals;
+        for (int k = count - 1; k >= 0; k--) {
+            int start = positions[k];
+            if (start >= limit) {
+                continue; // indexed by an append that has not published yet
+            }
+            // The newest interval may still be growing, so its min/max are not trusted
+            boolean growing = k == count - 1 && !sealed;
+            if (growing || (minTimestamps[k] <= to && maxTimestamps[k] >= from)) {
+                int intervalEnd = k + 1 < count ? Math.min(positions[k + 1], limit) : limit;
+                for (int position = intervalEnd; position > start; ) {
+                    int length = buffer.getInt(position - 4);
+                    position -= RECORD_OVERHEAD + length;
+                    long timestamp = buffer.getLong(position + 16);
+                    if (timestamp >= from && timestamp <= to
+                            && !visitor.visit(buffer.getLong(position + 8), timestamp,
+                                    buffer.slice(position + HEADER_SIZE, length).asReadOnlyBuffer())) {
+                        return false;
+                    }
+                }
+            }
+            if (maxBefore[k] < from) {
+                break; // nothing earlier is recent enough
+            }
+        }
+        return true;
+    }
+
+    // Visits every record oldest first
+    void scanForward(LogAggregator.LogVisitor visitor) {
+        int limit = end;
+        for (int position = 0; position < limit; ) {
+            int length = buffer.getInt(position);
+            if (!visitor.visit(buffer.getLong(position + 8), buffer.getLong(position + 16),
+                    buffer.slice(position + HEADER_SIZE, length).asReadOnlyBuffer())) {
+                return;
+            }
+            position += RECORD_OVERHEAD + length;
+        }
+    }
+
+    // The line at this offset as a view of the mapping, or null; found via the sparse offset index
+    ByteBuffer read(long offset) {
+        int limit = end;
+        int lo = 0;
+        int hi = intervals - 1;
+        int k = -1;
+        while (lo <= hi) {
+            int mid = (lo + hi) >>> 1;
+            if (firstOffsets[mid] <= offset) {
+                k = mid;
+                lo = mid + 1;
+            } else {
+                hi = mid - 1;
+            }
+        }
+        if (k < 0) {
+            return null;
+        }
+        for (int position = positions[k]; position < limit; ) {
+            int length = buffer.getInt(position);
+            long current = buffer.getLong(position + 8);
+            if (current == offset) {
+                return buffer.slice(position + HEADER_SIZE, length).asReadOnlyBuffer();
+            }
+            if (current > offset) {
+                break;
+            }
+            position += RECORD_OVERHEAD + length;
+        }
+        return null;
+    }
+
+    // Flushes the data, writes the index file and stops further appends
+    void seal() throws IOException {
+        buffer.force();
+        ByteBuffer index = ByteBuffer.allocate(28 + intervals * INDEX_ENTRY_SIZE);
+        index.putInt(intervals).putInt(end).putLong(nextOffset).putLong(minTimestamp).putInt(0);
+        for (int k = 0; k < intervals; k++) {
+            index.putInt(positions[k]).putLong(firstOffsets[k]).putLong(minTimestamps[k])
+                    .putLong(maxTimestamps[k]).putLong(maxBefore[k]);
+        }
+        crc.reset();
+        crc.update(index.array(), 28, index.position() - 28);
+        index.putInt(24, (int) crc.getValue());
+        index.flip();
+        Path tmp = fileName(path.getParent(), baseOffset, ".idx.tmp");
+        try (FileChannel out = FileChannel.open(tmp, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            while (index.hasRemaining()) {
+                out.write(index);
+            }
+            out.force(true);
+        }
+        Files.move(tmp, fileName(path.getParent(), baseOffset, ".idx"), StandardCopyOption.ATOMIC_MOVE);
+        sealed = true;
+    }
+
+    private boolean loadIndex() throws IOException {
+        Path indexPath = fileName(path.getParent(), baseOffset, ".idx");
+        if (!Files.exists(indexPath)) {
+            return false;
+        }
+        ByteBuffer index = ByteBuffer.wrap(Files.readAllBytes(indexPath));
+        if (index.remaining() < 28) {
+            return false;
+        }
+        int count = index.getInt();
+        if (count < 0 || count > positions.length || index.remaining() != 24 + count * INDEX_ENTRY_SIZE) {
+            return false;
+        }
+        crc.reset();
+        crc.update(index.array(), 28, count * INDEX_ENTRY_SIZE);
+        if (index.getInt(24) != (int) crc.getValue()) {
+            return false;
+        }
+        int storedEnd = index.getInt();
+        long storedNext = index.getLong();
+        long storedMin = index.getLong();
+        index.getInt();
+        for (int k = 0; k < count; k++) {
+            positions[k] = index.getInt();
+            firstOffsets[k] = index.getLong();
+            minTimestamps[k] = index.getLong();
+            maxTimestamps[k] = index.getLong();
+            maxBefore[k] = index.getLong();
+            if (maxTimestamps[k] > maxTimestamp) maxTimestamp = maxTimestamps[k];
+        }
+        minTimestamp = storedMin;
+        nextOffset = storedNext;
+        intervals = count;
+        end = storedEnd;
+        return true;
+    }
+
+    void flush() {
+        if (!sealed) {
+            buffer.force();
+        }
+    }
+
+    long nextOffset() {
+        return nextOffset;
+    }
+
+    int size() {
+        return end;
+    }
+
+    long minTimestamp() {
+        return minTimestamp;
+    }
+
+    long maxTimestamp() {
+        return maxTimestamp;
+    }
+
+    boolean isEmpty() {
+        return end == 0;
+    }
+
+    // The mapping itself is released by the GC; on Linux it stays readable after the file is deleted
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+
+    void delete() throws IOException {
+        close();
+        Files.deleteIfExists(fileName(path.getParent(), baseOffset, ".idx"));
+        Files.deleteIfExists(path);
+    }
+}
@@ -1,57 +1,296 @@
 package org.avi.concurrency;
 
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.lang.management.ManagementFactory;
 import java.util.*;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.atomic.AtomicLong;
-import java.util.concurrent.atomic.DoubleAdder;
+import java.util.concurrent.atomic.LongAdder;
 
+/**
+ * Sliding window of the last size values of each metric. Recording is lock-free and allocates
+ * nothing once the metric exists; reads compute count, sum, min and max in one pass over the
+ * window, so they always agree with each other.
+ *
+ * Optionally each metric also keeps an HdrHistogram of every value it has recorded, for the
+ * percentiles an average hides.
+ */
 public class MetricsCollector {
-//    Map<String, Deque<Double>> metrics;
     int size;
     Map<String, MetricWindow> metricWindowMap;
-    DoubleAdder sum = new DoubleAdder();
-    AtomicLong totalRecords = new AtomicLong();
-    AtomicLong droppedRecords = new AtomicLong();
+    LongAdder totalRecords = new LongAdder();
+    LongAdder droppedRecords = new LongAdder();
+    private final long histogramMax; // 0: no histograms
+    private final int histogramDigits;
+
     public MetricsCollector(int size) {
-//        metrics = new ConcurrentHashMap<>();
+        if (size <= 0) throw new IllegalArgumentException("size must be > 0");
         metricWindowMap = new ConcurrentHashMap<>();
         this.size = size;
+        this.histogramMax = 0;
+        this.histogramDigits = 0;
     }
-    public static void main(String[] args) {
 
+    /**
+     * Also keeps a histogram per metric, tracking values (rounded to whole units) from 0 to
+     * highestTrackableValue to significantDigits of precision.
+     */
+    public MetricsCollector(int size, long highestTrackableValue, int significantDigits) {
+        if (size <= 0) throw new IllegalArgumentException("size must be > 0");
+        HdrHistogram.checkArguments(highestTrackableValue, significantDigits);
+        metricWindowMap = new ConcurrentHashMap<>();
+        this.size = size;
+        this.histogramMax = highestTrackableValue;
+        this.histogramDigits = significantDigits;
     }
-    public void record(String metricName, double value) {
-        MetricWindow window = metricWindowMap.computeIfAbsent(metricName, k -> new MetricWindow());
-        synchronized (window) {
-            if (window.values.size() >= size) {
-                double removed = window.values.removeFirst();
-                sum.add(-removed);
-                droppedRecords.incrementAndGet();
+
+    public static void main(String[] args) throws InterruptedException {
+        MetricsCollector collector = new MetricsCollector(3);
+        collector.record("latency", 10);
+        collector.record("latency", 20);
+        collector.record("latency", 30);
+        collector.record("latency", 40);
+        System.out.println(collector.getAverage("latency")); // 30.0, the average of 20, 30 and 40
+        System.out.println(collector.getSnapshot("latency"));
+
+        // 4 writers on 8 metrics while a reader checks every snapshot is self-consistent
+        MetricsCollector busy = new MetricsCollector(1_000, 3_600_000_000L, 3);
+        int perThread = 5_000_000;
+        List<Thread> writers = new ArrayList<>();
+        long start = System.nanoTime();
+        for (int t = 0; t < 4; t++) {
+            Thread writer = new Thread(() -> {
+                Random random = new Random();
+                for (int i = 0; i < perThread; i++) {
+                    busy.record("metric" + (i & 7), 100 + random.nextInt(900));
+                }
+            });
+            writers.add(writer);
+            writer.start();
+        }
+        long[] reads = new long[2];
+        Thread reader = new Thread(() -> {
+            while (writers.stream().anyMatch(Thread::isAlive)) {
+                WindowStats stats = busy.getSnapshot("metric3");
+                reads[0]++;
+                if (stats.count() > 0 && (stats.min() < 100 || stats.max() >= 1_000 || stats.count() > 1_000
+                        || stats.average() < stats.min() || stats.average() > stats.max())) {
+                    reads[1]++;
+                }
             }
-            window.values.addLast(value);
-            sum.add(value);
-            totalRecords.incrementAndGet();
+        });
+        reader.start();
+        for (Thread writer : writers) {
+            writer.join();
+        }
+        reader.join();
+        long millis = (System.nanoTime() - start) / 1_000_000;
+        System.out.printf("%,d records in %d ms (%,d/s), %,d snapshots, %d inconsistent, %s%n", 4L * perThread, millis,
+                4L * perThread * 1_000 / Math.max(1, millis), reads[0], reads[1], busy.getSnapshot("metric3"));
+        System.out.println(busy.getStats());
+
+        // The recording path allocates nothing once a metric exists
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        long threadId = Thread.currentThread().threadId();
+        long before = threads.getThreadAllocatedBytes(threadId);
+        for (int i = 0; i < 1_000_000; i++) {
+            busy.record("metric1", i);
+        }
+        System.out.println("Bytes allocated by 1,000,000 records: " + (threads.getThreadAllocatedBytes(threadId) - before));
+
+        // Request latencies in microseconds on two nodes: mostly ~150us, 2% stalls of 20-80ms
+        MetricsCollector[] nodes = {new MetricsCollector(1_000, 3_600_000_000L, 3), new MetricsCollector(1_000, 3_600_000_000L, 3)};
+        Random random = new Random(42);
+        for (int i = 0; i < 2_000_000; i++) {
+            double micros = random.nextInt(50) == 0 ? 20_000 + random.nextInt(60_000) : 150 + random.nextGaussian() * 20;
+            nodes[i & 1].record("request.latency", micros);
+        }
+        byte[] shipped = nodes[1].getHistogram("request.latency").encode();
+        nodes[0].mergeHistogram("request.latency", HdrHistogram.decode(shipped));
+        HdrHistogram merged = null;
+        long[] p = null;
+        long micros = 0;
+        for (int round = 0; round < 1_000; round++) { // timed once compiled
+            start = System.nanoTime();
+            merged = nodes[0].getHistogram("request.latency");
+            p = merged.percentiles(50, 90, 99, 99.9);
+            micros = (System.nanoTime() - start) / 1_000;
         }
+        System.out.printf("Window average %.0fus hides the tail; both nodes (%,d-byte encoding): p50=%dus p90=%dus p99=%dus p99.9=%dus max=%dus (snapshot + percentiles in %dus)%n",
+                nodes[0].getAverage("request.latency"), shipped.length, p[0], p[1], p[2], p[3], merged.max(), micros);
     }
+
+    public void record(String metricName, double value) {
+        MetricWindow window = window(metricName);
+        if (window.record(value)) {
+            droppedRecords.increment();
+        }
+        if (window.histogram != null) {
+            window.histogram.record(Math.round(value));
+        }
+        totalRecords.increment();
+    }
+
+    private MetricWindow window(String metricName) {
+        // get first: computeIfAbsent would allocate its capturing lambda on every call
+        MetricWindow window = metricWindowMap.get(metricName);
+        if (window == null) {
+            window = metricWindowMap.computeIfAbsent(metricName, k -> new MetricWindow(size,
+                    histogramMax > 0 ? new HdrHistogram(histogramMax, histogramDigits) : null));
+        }
+        return window;
+    }
+
     public double getAverage(String metricName) {
+        return getSnapshot(metricName).average();
+    }
+
+    // Count, sum, min and max of the values currently in the metric's window
+    public WindowStats getSnapshot(String metricName) {
         MetricWindow window = metricWindowMap.get(metricName);
-        if (window == null) return 0.0;
-        synchronized (window) {
-            return window.values.isEmpty() ? 0.0 :
-                    window.sum.sum() / window.values.size();
+        return window == null ? WindowStats.EMPTY : window.snapshot();
+    }
+
+    // Snapshot of the metric's histogram (p50, p99, ...), taken without stopping writers; null if unknown
+    public HdrHistogram getHistogram(String metricName) {
+        requireHistograms();
+        MetricWindow window = metricWindowMap.get(metricName);
+        return window == null ? null : window.histogram.snapshot();
+    }
+
+    // Folds in a histogram of the same metric from another collector or node, e.g. one decoded from HdrHistogram.encode()
+    public void mergeHistogram(String metricName, HdrHistogram histogram) {
+        requireHistograms();
+        window(metricName).histogram.add(histogram);
+    }
+
+    private void requireHistograms() {
+        if (histogramMax == 0) {
+            throw new IllegalStateException("Histograms are not enabled");
         }
     }
+
     public Map<String, Long> getStats() {
         return Map.of(
                 "totalMetrics", (long) metricWindowMap.size(),
-                "totalRecords", totalRecords.get(),
-                "droppedRecords", droppedRecords.get()
+                "totalRecords", totalRecords.sum(),
+                "droppedRecords", droppedRecords.sum()
         );
     }
 
+    public static final class WindowStats {
+        static final WindowStats EMPTY = new WindowStats(0, 0, Double.NaN, Double.NaN);
+
+        private final long count;
+        private final double sum;
+        private final double min;
+        private final double max;
+
+        WindowStats(long count, double sum, double min, double max) {
+            this.count = count;
+            this.sum = sum;
+            this.min = min;
+            this.max = max;
+        }
+
+        public long count() {
+            return count;
+        }
+
+        public double sum() {
+            return sum;
+        }
+
+        // NaN when the window is empty
+        public double min() {
+            return min;
+        }
+
+        public double max() {
+            return max;
+        }
+
+        public double average() {
+            return count == 0 ? 0.0 : sum / count;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("count=%d avg=%.2f min=%.2f max=%.2f", count, average(), min, max);
+        }
+    }
 }
 
+/**
+ * Preallocated ring of the last size values of one metric. A writer claims a sequence with
+ * one getAndIncrement, marks slot seq % size as being written, stores the value and publishes
+ * the slot tagged with its sequence. Readers take each slot's value only if its tag is the
+ * same before and after reading it, skipping slots that are mid-write or a lap out of date.
+ */
 class MetricWindow {
-    Deque<Double> values = new ArrayDeque<>();
-    DoubleAdder sum = new DoubleAdder();
+    private static final VarHandle VALUE = MethodHandles.arrayElementVarHandle(double[].class);
+    private static final VarHandle SEQ = MethodHandles.arrayElementVarHandle(long[].class);
+    private static final long EMPTY = -1;
+
+    private final double[] values;
+    private final long[] seqs; // seq published in each slot; -(seq + 2) while seq is writing it
+    private final AtomicLong cursor = new AtomicLong(); // next sequence to claim
+    final HdrHistogram histogram; // every value recorded, or null
+
+    MetricWindow(int size, HdrHistogram histogram) {
+        values = new double[size];
+        seqs = new long[size];
+        Arrays.fill(seqs, EMPTY);
+        this.histogram = histogram;
+    }
+
+    // Returns true if this record pushed a value out of the window
+    boolean record(double value) {
+        long seq = cursor.getAndIncrement();
+        int slot = (int) (seq % values.length);
+        for (int spins = 0; ; spins++) {
+            long tag = (long) SEQ.getVolatile(seqs, slot);
+            long owner = tag < EMPTY ? -tag - 2 : tag;
+            if (owner > seq) {
+                return true; // a writer a lap ahead got here first: this value is already out of the window
+            }
+            if (tag >= EMPTY && SEQ.compareAndSet(seqs, slot, tag, -seq - 2)) {
+                break;
+            }
+            // Only when the writer a lap behind is still on this slot
+            if (spins < 100) {
+                Thread.onSpinWait();
+            } else {
+                Thread.yield();
+            }
+        }
+        VALUE.setOpaque(values, slot, value);
+        SEQ.setRelease(seqs, slot, seq);
+        return seq >= values.length;
+    }
+
+    MetricsCollector.WindowStats snapshot() {
+        long start = cursor.get() - values.length;
+        long count = 0;
+        double sum = 0;
+        double min = Double.POSITIVE_INFINITY;
+        double max = Double.NEGATIVE_INFINITY;
+        for (int slot = 0; slot < values.length; slot++) {
+            long tag = (long) SEQ.getAcquire(seqs, slot);
+            if (tag < 0 || tag < start) {
+                continue; // empty, mid-write, or about to be replaced
+            }
+            double value = (double) VALUE.getOpaque(values, slot);
+            VarHandle.acquireFence();
+            if ((long) SEQ.getVolatile(seqs, slot) != tag) {
+                continue; // overwritten while reading: the value left the window
+            }
+            count++;
+            sum += value;
+            min = Math.min(min, value);
+            max = Math.max(max, value);
+        }
+        return count == 0 ? MetricsCollector.WindowStats.EMPTY : new MetricsCollector.WindowStats(count, sum, min, max);
+    }
 }
@@ -0,0 +1,433 @@
+package org.avi.concurrency;
+
+import java.lang.foreign.Arena;
+import java.lang.foreign.MemorySegment;
+import java.lang.foreign.ValueLayout;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * The last capacity lines of one node, kept off the heap as UTF-8.
+ *
+ * Lines are appended as [length][bytes] records to an active block of blockBytes. Once it is
+ * full, the block is deflated into a circular area holding the sealed blocks oldest first, and
+ * the active block starts over. Blocks whose lines have all left the window are freed from the
+ * front of the area, which doubles when the window no longer fits in it. The heap holds only a
+ * small descriptor per sealed block; Strings are decoded when a read asks for them.
+ *
+ * A lock guards the blocks. Reads copy the bytes they need under it, then inflate and decode
+ * after releasing it.
+ */
+class OffHeapLogRing implements RecentLines {
+    private static final int HEADER = Integer.BYTES;
+
+    // zlib state is a few hundred KB of native memory: one per thread, not one per node
+    private static final ThreadLocal<Deflater> DEFLATER = ThreadLocal.withInitial(() -> new Deflater(Deflater.BEST_SPEED));
+    private static final ThreadLocal<Inflater> INFLATER = ThreadLocal.withInitial(Inflater::new);
+    // zlib cannot take buffers of a shared arena, so blocks are deflated between heap scratch arrays
+    private static final ThreadLocal<byte[][]> SCRATCH = ThreadLocal.withInitial(() -> new byte[2][0]);
+
+    // A sealed block in the area; stored as is when deflating did not make it smaller
+    private static final class Block {
+        final long firstSeq;
+        final int count;
+        final int rawBytes;
+        final int storedBytes;
+        long offset; // moves when the area grows
+
+        Block(long firstSeq, int count, int rawBytes, int storedBytes, long offset) {
+            this.firstSeq = firstSeq;
+            this.count = count;
+            this.rawBytes = rawBytes;
+            this.storedBytes = storedBytes;
+            this.offset = offset;
+        }
+    }
+
+    // A block's bytes copied out under the lock, inflated and decoded after it is released
+    private static final class Copy {
+        final long firstSeq;
+        final int count;
+        final int rawBytes;
+        final byte[] bytes;
+
+        Copy(long firstSeq, int count, int rawBytes, byte[] bytes) {
+            this.firstSeq = firstSeq;
+            this.count = count;
+            this.rawBytes = rawBytes;
+            this.bytes = bytes;
+        }
+
+        MemorySegment records() {
+            if (bytes.length == rawBytes) {
+                return MemorySegment.ofArray(bytes);
+            }
+            Inflater inflater = INFLATER.get();
+            inflater.reset();
+            inflater.setInput(bytes);
+            byte[] raw = new byte[rawBytes];
+            try {
+                for (int n = 0; n < rawBytes; ) {
+                    int inflated = inflater.inflate(raw, n, rawBytes - n);
+                    if (inflated == 0 && (inflater.finished() || inflater.needsInput())) {
+                        throw new IllegalStateException("Truncated log block at seq " + firstSeq);
+                    }
+                    n += inflated;
+                }
+            } catch (DataFormatException e) {
+                throw new IllegalStateException("Corrupt log block at seq " + firstSeq, e);
+            }
+            return MemorySegment.ofArray(raw);
+        }
+
+        String line(long seq) {
+            MemorySegment records = records();
+            long position = 0;
+            for (long i = firstSeq; i < seq; i++) {
+                position += HEADER + records.get(ValueLayout.JAVA_INT_UNALIGNED, position);
+            }
+            return decode(records, position);
+        }
+
+        // Decodes the lines of sorted[from, to), all in this block, into lines[from, to)
+        void lines(long[] sorted, int from, int to, String[] lines) {
+            MemorySegment records = records();
+            long position = 0;
+            long seq = firstSeq;
+            for (int i = from; i < to; i++) {
+                for (; seq < sorted[i]; seq++) {
+                    position += HEADER + records.get(ValueLayout.JAVA_INT_UNALIGNED, position);
+                }
+                lines[i] = decode(records, position);
+            }
+        }
+
+        // Appends the lines with seq >= from, newest first
+        void linesNewestFirst(long from, List<String> out) {
+            MemorySegment records = records();
+            long[] positions = new long[count];
+            long position = 0;
+            for (int i = 0; i < count; i++) {
+                positions[i] = position;
+                position += HEADER + records.get(ValueLayout.JAVA_INT_UNALIGNED, position);
+            }
+            for (int i = count - 1; i >= 0 && firstSeq + i >= from; i--) {
+                out.add(decode(records, positions[i]));
+            }
+        }
+
+        private static String decode(MemorySegment records, long position) {
+            int length = records.get(ValueLayout.JAVA_INT_UNALIGNED, position);
+            byte[] utf8 = new byte[length];
+            MemorySegment.copy(records, ValueLayout.JAVA_BYTE, position + HEADER, utf8, 0, length);
+            return new String(utf8, StandardCharsets.UTF_8);
+        }
+    }
+
+    private final int capacity;
+    private final int blockBytes;
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Arena arena = Arena.ofShared();
+    private final MemorySegment active;
+    private int activeBytes;
+    private int activeCount;
+    private final ArrayDeque<Block> sealed = new ArrayDeque<>(); // oldest first
+    private Arena areaArena;
+    private MemorySegment area;
+    private long tail; // end of the newest sealed block in the area
+    private volatile long nextSeq;
+
+    OffHeapLogRing(int capacity, int blockBytes) {
+        if (capacity <= 0) throw new IllegalArgumentException("capacity must be > 0");
+        this.capacity = capacity;
+        this.blockBytes = blockBytes;
+        this.active = arena.allocate(blockBytes);
+    }
+
+    @Override
+    public long append(String line) {
+        byte[] utf8 = line.getBytes(StandardCharsets.UTF_8);
+        if (HEADER + utf8.length > blockBytes) {
+            throw new IllegalArgumentException("Log line of " + utf8.length + " bytes does not fit in a block");
+        }
+        lock.lock();
+        try {
+            if (activeBytes + HEADER + utf8.length > blockBytes) {
+                seal();
+            }
+            active.set(ValueLayout.JAVA_INT_UNALIGNED, activeBytes, utf8.length);
+            MemorySegment.copy(utf8, 0, active, ValueLayout.JAVA_BYTE, activeBytes + HEADER, utf8.length);
+            activeBytes += HEADER + utf8.length;
+            activeCount++;
+            long seq = nextSeq;
+            nextSeq = seq + 1;
+            retire();
+            return seq;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Lock held: deflates the active block into the area and starts it over
+    private void seal() {
+        byte[][] scratch = SCRATCH.get();
+        if (scratch[0].length < activeBytes) {
+            scratch[0] = new byte[blockBytes];
+            scratch[1] = new byte[blockBytes];
+        }
+        byte[] raw = scratch[0];
+        byte[] deflated = scratch[1];
+        MemorySegment.copy(active, ValueLayout.JAVA_BYTE, 0, raw, 0, activeBytes);
+        Deflater deflater = DEFLATER.get();
+        deflater.reset();
+        deflater.setInput(raw, 0, activeBytes);
+        deflater.finish();
+        int stored = 0;
+        while (!deflater.finished() && stored < activeBytes) {
+            stored += deflater.deflate(deflated, stored, activeBytes - stored);
+        }
+        boolean compressed = deflater.finished() && stored < activeBytes;
+        if (!compressed) {
+            stored = activeBytes;
+        }
+        long offset = reserve(stored);
+        if (compressed) {
+            MemorySegment.copy(deflated, 0, area, ValueLayout.JAVA_BYTE, offset, stored);
+        } else {
+            MemorySegment.copy(active, 0, area, offset, stored);
+        }
+        sealed.addLast(new Block(nextSeq - activeCount, activeCount, activeBytes, stored, offset));
+        tail = offset + stored;
+        activeBytes = 0;
+        activeCount = 0;
+    }
+
+    // Lock held: where in the area a block of up to length bytes can go, after the newest one
+    private long reserve(int length) {
+        if (area != null) {
+            if (sealed.isEmpty()) {
+                if (area.byteSize() >= length) {
+                    return 0;
+                }
+            } else {
+                long head = sealed.peekFirst().offset;
+                if (tail > head) {
+                    if (area.byteSize() - tail >= length) {
+                        return tail;
+                    }
+                    if (head > length) {
+                        return 0; // wrap, leaving the end unused this lap
+                    }
+                } else if (head - tail > length) {
+                    return tail;
+                }
+            }
+        }
+        grow(length);
+        return tail;
+    }
+
+    // Lock held: moves the sealed blocks, compacted, into an area at least twice the size
+    private void grow(int length) {
+        long live = 0;
+        for (Block block : sealed) {
+            live += block.storedBytes;
+        }
+        long size = area == null ? blockBytes : 2 * area.byteSize();
+        while (size < live + length) {
+            size *= 2;
+        }
+        Arena grownArena = Arena.ofShared();
+        MemorySegment grown = grownArena.allocate(size);
+        long offset = 0;
+        for (Block block : sealed) {
+            MemorySegment.copy(area, block.offset, grown, offset, block.storedBytes);
+            block.offset = offset;
+            offset += block.storedBytes;
+        }
+        if (areaArena != null) {
+            areaArena.close();
+        }
+        areaArena = grownArena;
+        area = grown;
+        tail = offset;
+    }
+
+    // Lock held: frees the sealed blocks whose lines have all left the window
+    private void retire() {
+        long windowStart = nextSeq - capacity;
+        while (!sealed.isEmpty() && sealed.peekFirst().firstSeq + sealed.peekFirst().count <= windowStart) {
+            sealed.pollFirst();
+        }
+    }
+
+    // Lock held
+    private Copy copy(Block block) {
+        byte[] bytes = area.asSlice(block.offset, block.storedBytes).toArray(ValueLayout.JAVA_BYTE);
+        return new Copy(block.firstSeq, block.count, block.rawBytes, bytes);
+    }
+
+    // Lock held
+    private Copy copyActive() {
+        byte[] bytes = active.asSlice(0, activeBytes).toArray(ValueLayout.JAVA_BYTE);
+        return new Copy(nextSeq - activeCount, activeCount, activeBytes, bytes);
+    }
+
+    @Override
+    public String get(long seq) {
+        Copy copy = null;
+        lock.lock();
+        try {
+            if (seq < 0 || seq < nextSeq - capacity || seq >= nextSeq) {
+                return null;
+            }
+            if (seq >= nextSeq - activeCount) {
+                copy = copyActive();
+            } else {
+                for (Iterator<Block> it = sealed.descendingIterator(); copy == null; ) {
+                    Block block = it.next();
+                    if (block.firstSeq <= seq) {
+                        copy = copy(block);
+                    }
+                }
+            }
+        } finally {
+            lock.unlock();
+        }
+        return copy.line(seq);
+    }
+
+    /**
+     * Copies each block holding any of seqs once under the lock, then inflates it once outside
+     * it, where get() per seq would copy and inflate a block for every line.
+     */
+    @Override
+    public String[] getAll(long[] seqs) {
+        long[] sorted = seqs.clone();
+        Arrays.sort(sorted);
+        String[] lines = new String[sorted.length];
+        List<Copy> copies = new ArrayList<>();
+        List<int[]> ranges = new ArrayList<>(); // the part of sorted each copy holds
+        lock.lock();
+        try {
+            int i = 0;
+            while (i < sorted.length && (sorted[i] < 0 || sorted[i] < nextSeq - capacity)) {
+                i++;
+            }
+            long activeFirst = nextSeq - activeCount;
+            Iterator<Block> blocks = sealed.iterator(); // oldest first, covering the window up to the active block
+            while (i < sorted.length && sorted[i] < activeFirst) {
+                Block block = blocks.next();
+                int from = i;
+                while (i < sorted.length && sorted[i] < block.firstSeq + block.count) {
+                    i++;
+                }
+                if (i > from) {
+                    copies.add(copy(block));
+                    ranges.add(new int[]{from, i});
+                }
+            }
+            int from = i;
+            while (i < sorted.length && sorted[i] < nextSeq) {
+                i++;
+            }
+            if (i > from) {
+                copies.add(copyActive());
+                ranges.add(new int[]{from, i});
+            }
+        } finally {
+            lock.unlock();
+        }
+        for (int c = 0; c < copies.size(); c++) {
+            copies.get(c).lines(sorted, ranges.get(c)[0], ranges.get(c)[1], lines);
+        }
+        String[] result = new String[seqs.length];
+        for (int i = 0; i < seqs.length; i++) {
+            result[i] = lines[Arrays.binarySearch(sorted, seqs[i])];
+        }
+        return result;
+    }
+
+    @Override
+    public List<String> recent(int limit) {
+        List<Copy> copies = new ArrayList<>();
+        long from;
+        lock.lock();
+        try {
+            long end = nextSeq;
+            from = Math.max(0, end - Math.min(limit, capacity));
+            if (from >= end) {
+                return new ArrayList<>();
+            }
+            long copiedFrom = end;
+            if (activeCount > 0) {
+                copies.add(copyActive());
+                copiedFrom -= activeCount;
+            }
+            for (Iterator<Block> it = sealed.descendingIterator(); it.hasNext() && copiedFrom > from; ) {
+                Block block = it.next();
+                copies.add(copy(block));
+                copiedFrom = block.firstSeq;
+            }
+        } finally {
+            lock.unlock();
+        }
+        List<String> result = new ArrayList<>(Math.min(limit, capacity));
+        for (Copy copy : copies) {
+            copy.linesNewestFirst(from, result);
+        }
+        return result;
+    }
+
+    @Override
+    public long appended() {
+        return nextSeq;
+    }
+
+    // Off-heap bytes reserved: the active block plus the area
+    long offHeapBytes() {
+        lock.lock();
+        try {
+            return blockBytes + (area == null ? 0 : area.byteSize());
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Records of the lines held, as UTF-8 and as stored
+    long[] rawAndStoredBytes() {
+        lock.lock();
+        try {
+            long raw = activeBytes;
+            long stored = activeBytes;
+            for (Block block : sealed) {
+                raw += block.rawBytes;
+                stored += block.storedBytes;
+            }
+            return new long[]{raw, stored};
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public void close() {
+        lock.lock();
+        try {
+            arena.close();
+            if (areaArena != null) {
+                areaArena.close();
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+}
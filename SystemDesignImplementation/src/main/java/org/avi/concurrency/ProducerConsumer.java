@@ -1,32 +1,124 @@
 package org.avi.concurrency;
 
 import org.avi.data.structures.java.MyBlockingQueue;
+import org.avi.data.structures.java.WaitStrategy;
 
+import java.util.function.Consumer;
+
+/**
+ * Runs the same parse -> enrich -> persist workload two ways and reports throughput:
+ * three threads chained by MyBlockingQueue, allocating a fresh event per message, and a
+ * RingPipeline whose stages read and write preallocated slots in place.
+ */
 public class ProducerConsumer {
-    public static void main(String[] args) {
-        MyBlockingQueue<Object> myBlockingQueue = new MyBlockingQueue<>(5);
-        Thread producerThread = new Thread(() -> {
-            for (int i = 0; i < 10; i++) {
-                System.out.println("Producer " + i);
-                try {
-                    myBlockingQueue.put(i);
-                    Thread.sleep(1000);
-                } catch (InterruptedException e) {
-                    throw new RuntimeException(e);
+    private static final int EVENTS = 5_000_000;
+    private static final int CAPACITY = 1024;
+    private static final String[] REGIONS = {"us-east", "us-west", "eu-central", "ap-south"};
+
+    // Mutable so the pipeline can reuse it; the queue version allocates one per message
+    static final class Event {
+        long raw;
+        int userId;
+        int amount;
+        String region;
+    }
+
+    private static void parse(Event event) {
+        event.userId = (int) (event.raw >>> 32);
+        event.amount = (int) event.raw;
+    }
+
+    private static void enrich(Event event) {
+        event.region = REGIONS[event.userId & 3];
+    }
+
+    private static long persist(Event event, long checksum) {
+        return checksum * 31 + event.userId + event.amount + event.region.length();
+    }
+
+    private static long rawEvent(long i) {
+        return (i % 10_000) << 32 | (i % 997);
+    }
+
+    private static final Event POISON = new Event();
+
+    public static void main(String[] args) throws InterruptedException {
+        for (int round = 0; round < 2; round++) {
+            System.out.println(round == 0 ? "-- warm-up --" : "-- measured --");
+            report("MyBlockingQueue chain", runQueues());
+            report("RingPipeline", runPipeline());
+        }
+    }
+
+    private static void report(String name, long[] result) {
+        System.out.printf("%-22s %,12d events/s (checksum %d)%n", name, EVENTS * 1_000_000_000L / result[0], result[1]);
+    }
+
+    // Returns {elapsed nanos, checksum}
+    private static long[] runQueues() throws InterruptedException {
+        MyBlockingQueue<Event> parsed = new MyBlockingQueue<>(CAPACITY);
+        MyBlockingQueue<Event> enriched = new MyBlockingQueue<>(CAPACITY);
+        MyBlockingQueue<Event> toPersist = new MyBlockingQueue<>(CAPACITY);
+        long[] checksum = new long[1];
+
+        Thread parser = new Thread(stage(parsed, enriched, ProducerConsumer::parse));
+        Thread enricher = new Thread(stage(enriched, toPersist, ProducerConsumer::enrich));
+        Thread persister = new Thread(() -> {
+            try {
+                long sum = 0;
+                for (Event event = toPersist.take(); event != POISON; event = toPersist.take()) {
+                    sum = persist(event, sum);
                 }
+                checksum[0] = sum;
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
             }
         });
-        Thread consumerThread = new Thread(() -> {
-            for (int i = 0; i < 6; i++) {
-                try {
-                    Object val = myBlockingQueue.take();
-                    System.out.println("Consuming " + val);
-                } catch (InterruptedException e) {
-                    throw new RuntimeException(e);
+        long start = System.nanoTime();
+        parser.start();
+        enricher.start();
+        persister.start();
+        for (long i = 0; i < EVENTS; i++) {
+            Event event = new Event();
+            event.raw = rawEvent(i);
+            parsed.put(event);
+        }
+        parsed.put(POISON);
+        persister.join();
+        return new long[]{System.nanoTime() - start, checksum[0]};
+    }
+
+    private static Runnable stage(MyBlockingQueue<Event> in, MyBlockingQueue<Event> out,
+                                  Consumer<Event> work) {
+        return () -> {
+            try {
+                Event event;
+                while ((event = in.take()) != POISON) {
+                    work.accept(event);
+                    out.put(event);
                 }
+                out.put(POISON);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
             }
-        });
-        producerThread.start();
-        consumerThread.start();
+        };
+    }
+
+    private static long[] runPipeline() throws InterruptedException {
+        long[] checksum = new long[1];
+        RingPipeline<Event> pipeline = new RingPipeline<>(CAPACITY, Event::new, WaitStrategy.blocking());
+        RingPipeline<Event>.Stage parse = pipeline.stage("parse", (event, seq, end) -> parse(event));
+        RingPipeline<Event>.Stage enrich = pipeline.stage("enrich", (event, seq, end) -> enrich(event), parse);
+        pipeline.stage("persist", (event, seq, end) -> checksum[0] = persist(event, checksum[0]), enrich);
+        pipeline.start();
+
+        long start = System.nanoTime();
+        for (long i = 0; i < EVENTS; i++) {
+            long sequence = pipeline.next();
+            pipeline.get(sequence).raw = rawEvent(i);
+            pipeline.publish(sequence);
+        }
+        pipeline.close();
+        return new long[]{System.nanoTime() - start, checksum[0]};
     }
 }
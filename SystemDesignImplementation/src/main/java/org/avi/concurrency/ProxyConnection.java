@@ -0,0 +1,517 @@
+package org.avi.concurrency;
+
+import java.sql.Array;
+import java.sql.Blob;
+import java.sql.CallableStatement;
+import java.sql.Clob;
+import java.sql.Connection;
+import java.sql.DatabaseMetaData;
+import java.sql.NClob;
+import java.sql.PreparedStatement;
+import java.sql.SQLClientInfoException;
+import java.sql.SQLException;
+import java.sql.SQLWarning;
+import java.sql.SQLXML;
+import java.sql.Savepoint;
+import java.sql.ShardingKey;
+import java.sql.Statement;
+import java.sql.Struct;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+
+/**
+ * What a borrower actually holds: one per borrow, so a handle kept after close() cannot
+ * touch the connection once someone else has it. close() returns the connection to the pool
+ * and prepareStatement goes through the connection's statement cache; every other call is
+ * passed straight to the pooled connection, with no reflection on the way.
+ *
+ * The first time a borrower changes auto-commit, read-only, isolation, catalog, schema or
+ * network timeout, the old value is read and kept. On return, a transaction left open by
+ * turning auto-commit off is rolled back and the old values are put back, so the next
+ * borrower gets the connection as the pool handed it out.
+ */
+final class ProxyConnection implements Connection {
+    private static final AtomicIntegerFieldUpdater<ProxyConnection> CLOSED =
+            AtomicIntegerFieldUpdater.newUpdater(ProxyConnection.class, "closed");
+
+    // Bits of changed: the settings this borrower changed
+    private static final int AUTO_COMMIT = 1;
+    private static final int READ_ONLY = 1 << 1;
+    private static final int ISOLATION = 1 << 2;
+    private static final int CATALOG = 1 << 3;
+    private static final int SCHEMA = 1 << 4;
+    private static final int NETWORK_TIMEOUT = 1 << 5;
+
+    final ConnectionPool pool;
+    final ConnectionPool.PoolEntry entry;
+    final long borrowedAt;
+    final Exception borrowTrace; // only captured while leak detection is on
+    ScheduledFuture<?> leakTask; // scheduled by the pool right after borrowing, when there is a borrowTrace
+    volatile int closed;
+    volatile boolean leakReported;
+    private List<ProxyStatement> openStatements; // statements from the cache path not yet closed by the caller
+    private int changed;
+    // Each setting's value before this borrower first changed it
+    private boolean autoCommitBefore;
+    private boolean readOnlyBefore;
+    private int isolationBefore;
+    private String catalogBefore;
+    private String schemaBefore;
+    private int networkTimeoutBefore;
+
+    ProxyConnection(ConnectionPool pool, ConnectionPool.PoolEntry entry, long borrowedAt) {
+        this(pool, entry, borrowedAt, null);
+    }
+
+    ProxyConnection(ConnectionPool pool, ConnectionPool.PoolEntry entry, long borrowedAt, Exception borrowTrace) {
+        this.pool = pool;
+        this.entry = entry;
+        this.borrowedAt = borrowedAt;
+        this.borrowTrace = borrowTrace;
+    }
+
+    private Connection delegate() throws SQLException {
+        if (closed != 0) {
+            throw new SQLException("Connection is closed");
+        }
+        return entry.connection;
+    }
+
+    // The connection, once the current value of setting is kept for the return
+    private Connection changing(int setting) throws SQLException {
+        Connection connection = delegate();
+        if ((changed & setting) == 0) {
+            switch (setting) {
+                case AUTO_COMMIT -> autoCommitBefore = connection.getAutoCommit();
+                case READ_ONLY -> readOnlyBefore = connection.isReadOnly();
+                case ISOLATION -> isolationBefore = connection.getTransactionIsolation();
+                case CATALOG -> catalogBefore = connection.getCatalog();
+                case SCHEMA -> schemaBefore = connection.getSchema();
+                default -> networkTimeoutBefore = connection.getNetworkTimeout();
+            }
+            changed |= setting;
+        }
+        return connection;
+    }
+
+    /**
+     * Rolls back a transaction left open with auto-commit off and puts back the settings this
+     * borrower changed. Returns false if that failed, and the connection is in an unknown state.
+     */
+    boolean resetState() {
+        if (changed == 0) {
+            return true;
+        }
+        Connection connection = entry.connection;
+        try {
+            if ((changed & AUTO_COMMIT) != 0) {
+                if (!connection.getAutoCommit()) {
+                    connection.rollback();
+                }
+                connection.setAutoCommit(autoCommitBefore);
+            }
+            if ((changed & READ_ONLY) != 0) {
+                connection.setReadOnly(readOnlyBefore);
+            }
+            if ((changed & ISOLATION) != 0) {
+                connection.setTransactionIsolation(isolationBefore);
+            }
+            if ((changed & CATALOG) != 0) {
+                connection.setCatalog(catalogBefore);
+            }
+            if ((changed & SCHEMA) != 0) {
+                connection.setSchema(schemaBefore);
+            }
+            if ((changed & NETWORK_TIMEOUT) != 0) {
+                connection.setNetworkTimeout(Runnable::run, networkTimeoutBefore);
+            }
+            return true;
+        } catch (SQLException e) {
+            System.err.println("Failed to reset connection " + connection + ": " + e.getMessage());
+            return false;
+        }
+    }
+
+    // prepareStatement(sql[, int...]) is cached; the int[]/String[] generated-key variants are not
+    @Override
+    public PreparedStatement prepareStatement(String sql) throws SQLException {
+        return prepare(sql);
+    }
+
+    @Override
+    public PreparedStatement prepareStatement(String sql, int resultSetType, int resultSetConcurrency) throws SQLException {
+        return prepare(sql, resultSetType, resultSetConcurrency);
+    }
+
+    @Override
+    public PreparedStatement prepareStatement(String sql, int resultSetType, int resultSetConcurrency,
+                                              int resultSetHoldability) throws SQLException {
+        return prepare(sql, resultSetType, resultSetConcurrency, resultSetHoldability);
+    }
+
+    @Override
+    public PreparedStatement prepareStatement(String sql, int autoGeneratedKeys) throws SQLException {
+        return prepare(sql, autoGeneratedKeys);
+    }
+
+    private PreparedStatement prepare(String sql, int... options) throws SQLException {
+        Connection connection = delegate();
+        int cacheSize = pool.statementCacheSize;
+        if (cacheSize == 0) {
+            return prepareOn(connection, sql, options);
+        }
+        StatementCache cache = entry.statements;
+        if (cache == null) {
+            cache = entry.statements = new StatementCache(cacheSize);
+        }
+        StatementCache.Key key = new StatementCache.Key(sql, options);
+        StatementCache.Cached cached = cache.checkOut(key);
+        ProxyStatement handle;
+        if (cached != null) {
+            pool.statementHits.increment();
+            handle = new ProxyStatement(this, cache, key, cached);
+        } else {
+            pool.statementMisses.increment();
+            PreparedStatement statement = prepareOn(connection, sql, options);
+            cached = cache.add(key, statement);
+            // If the cached copy is in use, this one is closed with the handle or the connection
+            handle = cached != null ? new ProxyStatement(this, cache, key, cached) : new ProxyStatement(this, statement);
+        }
+        synchronized (this) {
+            if (openStatements == null) {
+                openStatements = new ArrayList<>();
+            }
+            openStatements.add(handle);
+        }
+        return handle;
+    }
+
+    private static PreparedStatement prepareOn(Connection connection, String sql, int[] options) throws SQLException {
+        switch (options.length) {
+            case 0:
+                return connection.prepareStatement(sql);
+            case 1:
+                return connection.prepareStatement(sql, options[0]);
+            case 2:
+                return connection.prepareStatement(sql, options[0], options[1]);
+            default:
+                return connection.prepareStatement(sql, options[0], options[1], options[2]);
+        }
+    }
+
+    synchronized void statementClosed(ProxyStatement handle) {
+        openStatements.remove(handle);
+    }
+
+    /**
+     * Idempotent, as Connection.close() must be. Statements the caller left open are checked in.
+     * Only the close that wins the CAS returns the connection, even if two threads race to it.
+     */
+    @Override
+    public void close() {
+        if (CLOSED.compareAndSet(this, 0, 1)) {
+            if (openStatements != null) { // set by this borrower's own prepareStatement, if it cached any
+                List<ProxyStatement> leftOpen;
+                synchronized (this) {
+                    leftOpen = new ArrayList<>(openStatements);
+                }
+                for (ProxyStatement statement : leftOpen) {
+                    statement.close();
+                }
+            }
+            pool.returnConnection(this);
+        }
+    }
+
+    @Override
+    public boolean isClosed() throws SQLException {
+        return closed != 0 || entry.connection.isClosed();
+    }
+
+    @Override
+    public void setClientInfo(String name, String value) throws SQLClientInfoException {
+        if (closed != 0) {
+            throw new SQLClientInfoException("Connection is closed", Map.of());
+        }
+        entry.connection.setClientInfo(name, value);
+    }
+
+    @Override
+    public void setClientInfo(Properties properties) throws SQLClientInfoException {
+        if (closed != 0) {
+            throw new SQLClientInfoException("Connection is closed", Map.of());
+        }
+        entry.connection.setClientInfo(properties);
+    }
+
+    @Override
+    public Statement createStatement() throws SQLException {
+        return delegate().createStatement();
+    }
+
+    @Override
+    public CallableStatement prepareCall(String sql) throws SQLException {
+        return delegate().prepareCall(sql);
+    }
+
+    @Override
+    public String nativeSQL(String sql) throws SQLException {
+        return delegate().nativeSQL(sql);
+    }
+
+    @Override
+    public void setAutoCommit(boolean autoCommit) throws SQLException {
+        changing(AUTO_COMMIT).setAutoCommit(autoCommit);
+    }
+
+    @Override
+    public boolean getAutoCommit() throws SQLException {
+        return delegate().getAutoCommit();
+    }
+
+    @Override
+    public void commit() throws SQLException {
+        delegate().commit();
+    }
+
+    @Override
+    public void rollback() throws SQLException {
+        delegate().rollback();
+    }
+
+    @Override
+    public DatabaseMetaData getMetaData() throws SQLException {
+        return delegate().getMetaData();
+    }
+
+    @Override
+    public void setReadOnly(boolean readOnly) throws SQLException {
+        changing(READ_ONLY).setReadOnly(readOnly);
+    }
+
+    @Override
+    public boolean isReadOnly() throws SQLException {
+        return delegate().isReadOnly();
+    }
+
+    @Override
+    public void setCatalog(String catalog) throws SQLException {
+        changing(CATALOG).setCatalog(catalog);
+    }
+
+    @Override
+    public String getCatalog() throws SQLException {
+        return delegate().getCatalog();
+    }
+
+    @Override
+    public void setTransactionIsolation(int level) throws SQLException {
+        changing(ISOLATION).setTransactionIsolation(level);
+    }
+
+    @Override
+    public int getTransactionIsolation() throws SQLException {
+        return delegate().getTransactionIsolation();
+    }
+
+    @Override
+    public SQLWarning getWarnings() throws SQLException {
+        return delegate().getWarnings();
+    }
+
+    @Override
+    public void clearWarnings() throws SQLException {
+        delegate().clearWarnings();
+    }
+
+    @Override
+    public Statement createStatement(int resultSetType, int resultSetConcurrency) throws SQLException {
+        return delegate().createStatement(resultSetType, resultSetConcurrency);
+    }
+
+    @Override
+    public CallableStatement prepareCall(String sql, int resultSetType, int resultSetConcurrency) throws SQLException {
+        return delegate().prepareCall(sql, resultSetType, resultSetConcurrency);
+    }
+
+    @Override
+    public Map<String, Class<?>> getTypeMap() throws SQLException {
+        return delegate().getTypeMap();
+    }
+
+    @Override
+    public void setTypeMap(Map<String, Class<?>> map) throws SQLException {
+        delegate().setTypeMap(map);
+    }
+
+    @Override
+    public void setHoldability(int holdability) throws SQLException {
+        delegate().setHoldability(holdability);
+    }
+
+    @Override
+    public int getHoldability() throws SQLException {
+        return delegate().getHoldability();
+    }
+
+    @Override
+    public Savepoint setSavepoint() throws SQLException {
+        return delegate().setSavepoint();
+    }
+
+    @Override
+    public Savepoint setSavepoint(String name) throws SQLException {
+        return delegate().setSavepoint(name);
+    }
+
+    @Override
+    public void rollback(Savepoint savepoint) throws SQLException {
+        delegate().rollback(savepoint);
+    }
+
+    @Override
+    public void releaseSavepoint(Savepoint savepoint) throws SQLException {
+        delegate().releaseSavepoint(savepoint);
+    }
+
+    @Override
+    public Statement createStatement(int resultSetType, int resultSetConcurrency, int resultSetHoldability) throws SQLException {
+        return delegate().createStatement(resultSetType, resultSetConcurrency, resultSetHoldability);
+    }
+
+    @Override
+    public CallableStatement prepareCall(String sql, int resultSetType, int resultSetConcurrency,
+                                         int resultSetHoldability) throws SQLException {
+        return delegate().prepareCall(sql, resultSetType, resultSetConcurrency, resultSetHoldability);
+    }
+
+    @Override
+    public PreparedStatement prepareStatement(String sql, int[] columnIndexes) throws SQLException {
+        return delegate().prepareStatement(sql, columnIndexes);
+    }
+
+    @Override
+    public PreparedStatement prepareStatement(String sql, String[] columnNames) throws SQLException {
+        return delegate().prepareStatement(sql, columnNames);
+    }
+
+    @Override
+    public Clob createClob() throws SQLException {
+        return delegate().createClob();
+    }
+
+    @Override
+    public Blob createBlob() throws SQLException {
+        return delegate().createBlob();
+    }
+
+    @Override
+    public NClob createNClob() throws SQLException {
+        return delegate().createNClob();
+    }
+
+    @Override
+    public SQLXML createSQLXML() throws SQLException {
+        return delegate().createSQLXML();
+    }
+
+    @Override
+    public boolean isValid(int timeout) throws SQLException {
+        return delegate().isValid(timeout);
+    }
+
+    @Override
+    public String getClientInfo(String name) throws SQLException {
+        return delegate().getClientInfo(name);
+    }
+
+    @Override
+    public Properties getClientInfo() throws SQLException {
+        return delegate().getClientInfo();
+    }
+
+    @Override
+    public Array createArrayOf(String typeName, Object[] elements) throws SQLException {
+        return delegate().createArrayOf(typeName, elements);
+    }
+
+    @Override
+    public Struct createStruct(String typeName, Object[] attributes) throws SQLException {
+        return delegate().createStruct(typeName, attributes);
+    }
+
+    @Override
+    public void setSchema(String schema) throws SQLException {
+        changing(SCHEMA).setSchema(schema);
+    }
+
+    @Override
+    public String getSchema() throws SQLException {
+        return delegate().getSchema();
+    }
+
+    @Override
+    public void abort(Executor executor) throws SQLException {
+        delegate().abort(executor);
+    }
+
+    @Override
+    public void setNetworkTimeout(Executor executor, int milliseconds) throws SQLException {
+        changing(NETWORK_TIMEOUT).setNetworkTimeout(executor, milliseconds);
+    }
+
+    @Override
+    public int getNetworkTimeout() throws SQLException {
+        return delegate().getNetworkTimeout();
+    }
+
+    @Override
+    public void beginRequest() throws SQLException {
+        delegate().beginRequest();
+    }
+
+    @Override
+    public void endRequest() throws SQLException {
+        delegate().endRequest();
+    }
+
+    @Override
+    public boolean setShardingKeyIfValid(ShardingKey shardingKey, ShardingKey superShardingKey, int timeout) throws SQLException {
+        return delegate().setShardingKeyIfValid(shardingKey, superShardingKey, timeout);
+    }
+
+    @Override
+    public boolean setShardingKeyIfValid(ShardingKey shardingKey, int timeout) throws SQLException {
+        return delegate().setShardingKeyIfValid(shardingKey, timeout);
+    }
+
+    @Override
+    public void setShardingKey(ShardingKey shardingKey, ShardingKey superShardingKey) throws SQLException {
+        delegate().setShardingKey(shardingKey, superShardingKey);
+    }
+
+    @Override
+    public void setShardingKey(ShardingKey shardingKey) throws SQLException {
+        delegate().setShardingKey(shardingKey);
+    }
+
+    @Override
+    public <T> T unwrap(Class<T> iface) throws SQLException {
+        return delegate().unwrap(iface);
+    }
+
+    @Override
+    public boolean isWrapperFor(Class<?> iface) throws SQLException {
+        return delegate().isWrapperFor(iface);
+    }
+
+    @Override
+    public String toString() {
+        return "PooledConnection[" + entry.connection + "]";
+    }
+}
@@ -0,0 +1,35 @@
+package org.avi.concurrency;
+
+import java.util.List;
+
+/**
+ * The most recent lines of one node, numbered by a sequence that starts at 0 and grows by one
+ * per append. Lines older than the window are gone.
+ */
+interface RecentLines {
+
+    // Returns the line's sequence number
+    long append(String line);
+
+    // The line with this sequence number, or null if it is out of the window or not yet published
+    String get(long seq);
+
+    // get() of each sequence number, in the order given; for many lookups at once
+    default String[] getAll(long[] seqs) {
+        String[] lines = new String[seqs.length];
+        for (int i = 0; i < seqs.length; i++) {
+            lines[i] = get(seqs[i]);
+        }
+        return lines;
+    }
+
+    // Up to limit of the most recent lines, newest first
+    List<String> recent(int limit);
+
+    // Lines appended so far, including those that have left the window
+    long appended();
+
+    // Releases whatever the lines are held in beyond the heap
+    default void close() {
+    }
+}
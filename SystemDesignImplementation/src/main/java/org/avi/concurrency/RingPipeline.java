@@ -0,0 +1,217 @@
+package org.avi.concurrency;
+
+import org.avi.data.structures.java.Sequence;
+import org.avi.data.structures.java.WaitStrategy;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Supplier;
+
+/**
+ * Disruptor-style pipeline: a preallocated ring of mutable event slots, one producer, and
+ * consumer stages arranged as a dependency graph (e.g. parse -> enrich -> persist).
+ *
+ * Every stage runs on its own thread and owns a Sequence: the highest slot it has finished.
+ * A stage may process a slot once all of its dependencies (the producer cursor, or the
+ * upstream stages) have passed it, and it processes everything available in one batch before
+ * publishing its own sequence once. The producer may reuse a slot only when every terminal
+ * stage has passed it, so events are filled in place and never reallocated.
+ *
+ * A handler exception goes to the pipeline's ExceptionHandler. By default it halts the stage:
+ * next() and close() stop waiting for it and throw the failure instead of hanging.
+ *
+ * next/publish must be called from a single producer thread.
+ */
+public class RingPipeline<T> implements AutoCloseable {
+
+    public interface EventHandler<T> {
+        // endOfBatch is true on the last slot of the batch, a good point to flush buffered work
+        void onEvent(T event, long sequence, boolean endOfBatch) throws Exception;
+    }
+
+    // Returning skips the failed event and carries on; throwing halts the stage
+    public interface ExceptionHandler<T> {
+        void onException(Exception e, long sequence, T event) throws Exception;
+    }
+
+    public final class Stage {
+        private final String name;
+        private final EventHandler<? super T> handler;
+        private final Sequence[] dependencies;
+        private final Sequence sequence = new Sequence(-1);
+        private boolean hasDownstream;
+        private Thread thread;
+
+        private Stage(String name, EventHandler<? super T> handler, Sequence[] dependencies) {
+            this.name = name;
+            this.handler = handler;
+            this.dependencies = dependencies;
+        }
+
+        public long sequence() {
+            return sequence.get();
+        }
+
+        private void run() {
+            long next = sequence.getPlain() + 1;
+            while (true) {
+                long available = minimum(dependencies);
+                if (available < next) {
+                    long target = next;
+                    try {
+                        waitStrategy.await(() -> minimum(dependencies) >= target || !running, Long.MAX_VALUE);
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                    if (minimum(dependencies) < next && !running) {
+                        return;
+                    }
+                    continue;
+                }
+                for (long s = next; s <= available; s++) {
+                    try {
+                        handler.onEvent(get(s), s, s == available);
+                    } catch (Exception e) {
+                        try {
+                            exceptionHandler.onException(e, s, get(s));
+                        } catch (Exception fatal) {
+                            failure.compareAndSet(null, new IllegalStateException("Stage " + name + " failed on sequence " + s, fatal));
+                            sequence.setRelease(s - 1);
+                            waitStrategy.signalAll();
+                            return;
+                        }
+                    }
+                }
+                sequence.setRelease(available);
+                waitStrategy.signalAll();
+                next = available + 1;
+            }
+        }
+    }
+
+    private final Object[] slots;
+    private final int mask;
+    private final WaitStrategy waitStrategy;
+    private final Sequence cursor = new Sequence(-1); // last slot published by the producer
+    private final List<Stage> stages = new ArrayList<>();
+    private Sequence[] gating = new Sequence[0];
+    private long nextSequence = 0; // producer-owned
+    private long cachedGating = -1; // producer-owned
+    private volatile boolean running;
+    private ExceptionHandler<? super T> exceptionHandler = (e, sequence, event) -> {
+        throw e;
+    };
+    private final AtomicReference<IllegalStateException> failure = new AtomicReference<>(); // first stage to halt
+
+    public RingPipeline(int size, Supplier<T> factory, WaitStrategy waitStrategy) {
+        if (Integer.bitCount(size) != 1) throw new IllegalArgumentException("size must be a power of two");
+        this.slots = new Object[size];
+        this.mask = size - 1;
+        for (int i = 0; i < size; i++) {
+            slots[i] = factory.get();
+        }
+        this.waitStrategy = waitStrategy;
+    }
+
+    public void setExceptionHandler(ExceptionHandler<? super T> exceptionHandler) {
+        if (running) throw new IllegalStateException("Pipeline already started");
+        this.exceptionHandler = exceptionHandler;
+    }
+
+    // Adds a stage that runs after the given stages, or straight after the producer if none
+    @SafeVarargs
+    public final Stage stage(String name, EventHandler<? super T> handler, Stage... after) {
+        if (running) throw new IllegalStateException("Pipeline already started");
+        Sequence[] dependencies;
+        if (after.length == 0) {
+            dependencies = new Sequence[]{cursor};
+        } else {
+            dependencies = new Sequence[after.length];
+            for (int i = 0; i < after.length; i++) {
+                after[i].hasDownstream = true;
+                dependencies[i] = after[i].sequence;
+            }
+        }
+        Stage stage = new Stage(name, handler, dependencies);
+        stages.add(stage);
+        return stage;
+    }
+
+    public void start() {
+        if (stages.isEmpty()) throw new IllegalStateException("Pipeline has no stages");
+        List<Sequence> terminal = new ArrayList<>();
+        for (Stage stage : stages) {
+            if (!stage.hasDownstream) {
+                terminal.add(stage.sequence);
+            }
+        }
+        gating = terminal.toArray(new Sequence[0]);
+        running = true;
+        for (Stage stage : stages) {
+            stage.thread = new Thread(stage::run, "pipeline-" + stage.name);
+            stage.thread.setDaemon(true);
+            stage.thread.start();
+        }
+    }
+
+    /**
+     * Claims the next slot, waiting while the ring is full (the slowest terminal stage is a
+     * whole lap behind). Fill the event from get(sequence), then publish(sequence).
+     * Throws IllegalStateException if a stage has halted.
+     */
+    public long next() throws InterruptedException {
+        long sequence = nextSequence;
+        long wrapPoint = sequence - slots.length;
+        if (wrapPoint > cachedGating) {
+            waitStrategy.await(() -> minimum(gating) >= wrapPoint || failure.get() != null, Long.MAX_VALUE);
+            IllegalStateException failed = failure.get();
+            if (failed != null) throw failed;
+            cachedGating = minimum(gating);
+        }
+        nextSequence = sequence + 1;
+        return sequence;
+    }
+
+    @SuppressWarnings("unchecked")
+    public T get(long sequence) {
+        return (T) slots[(int) sequence & mask];
+    }
+
+    public void publish(long sequence) {
+        cursor.setRelease(sequence);
+        waitStrategy.signalAll();
+    }
+
+    /**
+     * Waits for every stage to finish what has been published, then stops the stage threads.
+     * Throws the failure of a halted stage. If interrupted, stops without waiting and keeps
+     * the interrupt status set.
+     */
+    @Override
+    public void close() {
+        long last = cursor.get();
+        try {
+            waitStrategy.await(() -> minimum(gating) >= last || failure.get() != null, Long.MAX_VALUE);
+            running = false;
+            waitStrategy.signalAll();
+            for (Stage stage : stages) {
+                stage.thread.join();
+            }
+        } catch (InterruptedException e) {
+            running = false;
+            waitStrategy.signalAll();
+            Thread.currentThread().interrupt();
+        }
+        IllegalStateException failed = failure.get();
+        if (failed != null) throw failed;
+    }
+
+    private static long minimum(Sequence[] sequences) {
+        long min = Long.MAX_VALUE;
+        for (Sequence sequence : sequences) {
+            min = Math.min(min, sequence.get());
+        }
+        return min;
+    }
+}
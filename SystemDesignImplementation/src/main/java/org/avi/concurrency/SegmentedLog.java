@@ -0,0 +1,214 @@
+package org.avi.concurrency;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * Append-only log of one node: a directory of rolling memory-mapped segments, oldest first,
+ * the last one taking appends. Appenders take a short lock to copy a record into the mapping;
+ * readers take a snapshot of the segment list and walk it backwards without locking.
+ * Retention deletes whole sealed segments, oldest first, by total size and by age.
+ */
+class SegmentedLog implements AutoCloseable {
+    private final Path dir;
+    private final int segmentBytes;
+    private final long retentionBytes;
+    private final long retentionMillis;
+    private final ReentrantLock appendLock = new ReentrantLock();
+    private volatile List<LogSegment> segments; // copy-on-write, oldest first
+
+    SegmentedLog(Path dir, int segmentBytes, long retentionBytes, long retentionMillis) throws IOException {
+        this.dir = dir;
+        this.segmentBytes = segmentBytes;
+        this.retentionBytes = retentionBytes;
+        this.retentionMillis = retentionMillis;
+        Files.createDirectories(dir);
+        List<Path> files;
+        try (Stream<Path> list = Files.list(dir)) {
+            files = list.filter(p -> p.getFileName().toString().endsWith(".log")).sorted().collect(Collectors.toList());
+        }
+        List<LogSegment> opened = new ArrayList<>();
+        for (int i = 0; i < files.size(); i++) {
+            opened.add(LogSegment.open(files.get(i), i == files.size() - 1));
+        }
+        if (opened.isEmpty()) {
+            opened.add(LogSegment.create(dir, 0, segmentBytes));
+        }
+        this.segments = List.copyOf(opened);
+    }
+
+    // Returns the record's offset
+    long append(long timestamp, String line) throws IOException {
+        byte[] bytes = line.getBytes(StandardCharsets.UTF_8);
+        if (LogSegment.RECORD_OVERHEAD + bytes.length > segmentBytes) {
+            throw new IllegalArgumentException("Log line of " + bytes.length + " bytes does not fit in a segment");
+        }
+        appendLock.lock();
+        try {
+            LogSegment active = segments.get(segments.size() - 1);
+            if (!active.fits(bytes.length)) {
+                active = roll(active);
+            }
+            return active.append(timestamp, bytes);
+        } finally {
+            appendLock.unlock();
+        }
+    }
+
+    // Append lock held
+    private LogSegment roll(LogSegment full) throws IOException {
+        full.seal();
+        LogSegment next = LogSegment.create(dir, full.nextOffset(), segmentBytes);
+        List<LogSegment> copy = new ArrayList<>(segments);
+        copy.add(next);
+        segments = List.copyOf(copy);
+        return next;
+    }
+
+    /**
+     * Visits lines with from <= timestamp <= to, newest first; the ByteBuffer is a read-only
+     * slice of the mapped file, valid only during the call. Segments whose time span cannot
+     * match are skipped without being touched.
+     */
+    void scanBackward(long from, long to, LogAggregator.LogVisitor visitor) {
+        List<LogSegment> snapshot = segments;
+        for (int i = snapshot.size() - 1; i >= 0; i--) {
+            LogSegment segment = snapshot.get(i);
+            boolean active = i == snapshot.size() - 1;
+            if (!active && (segment.maxTimestamp() < from || segment.minTimestamp() > to)) {
+                continue;
+            }
+            if (!segment.scanBackward(from, to, visitor)) {
+                return;
+            }
+        }
+    }
+
+    // Visits every retained line oldest first
+    void scanForward(LogAggregator.LogVisitor visitor) {
+        for (LogSegment segment : segments) {
+            segment.scanForward(visitor);
+        }
+    }
+
+    // The line at this offset, or null if retention has deleted it
+    String read(long offset) {
+        List<LogSegment> snapshot = segments;
+        int lo = 0;
+        int hi = snapshot.size() - 1;
+        while (lo < hi) {
+            int mid = (lo + hi + 1) >>> 1;
+            if (snapshot.get(mid).baseOffset <= offset) {
+                lo = mid;
+            } else {
+                hi = mid - 1;
+            }
+        }
+        ByteBuffer line = snapshot.get(lo).read(offset);
+        return line == null ? null : decode(line);
+    }
+
+    // Offset of the oldest retained line
+    long firstOffset() {
+        return segments.get(0).baseOffset;
+    }
+
+    List<String> recent(int limit) {
+        return query(Long.MIN_VALUE, Long.MAX_VALUE, limit);
+    }
+
+    // Newest first, at most limit lines
+    List<String> query(long from, long to, int limit) {
+        List<String> result = new ArrayList<>(Math.min(limit, 1024));
+        if (limit <= 0) {
+            return result;
+        }
+        scanBackward(from, to, (offset, timestamp, line) -> {
+            result.add(decode(line));
+            return result.size() < limit;
+        });
+        return result;
+    }
+
+    static String decode(ByteBuffer line) {
+        byte[] bytes = new byte[line.remaining()];
+        line.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Deletes sealed segments, oldest first, while the log is over retentionBytes or the
+     * segment's newest line is older than retentionMillis. The active segment is never deleted.
+     * Returns the number of segments deleted.
+     */
+    int enforceRetention(long nowMillis) throws IOException {
+        List<LogSegment> expired = new ArrayList<>();
+        appendLock.lock();
+        try {
+            List<LogSegment> current = segments;
+            long total = 0;
+            for (LogSegment segment : current) {
+                total += segment.size();
+            }
+            int drop = 0;
+            while (drop < current.size() - 1) {
+                LogSegment oldest = current.get(drop);
+                boolean tooBig = retentionBytes > 0 && total > retentionBytes;
+                boolean tooOld = retentionMillis > 0 && oldest.maxTimestamp() < nowMillis - retentionMillis;
+                if (!tooBig && !tooOld) {
+                    break;
+                }
+                total -= oldest.size();
+                expired.add(oldest);
+                drop++;
+            }
+            if (drop > 0) {
+                segments = List.copyOf(current.subList(drop, current.size()));
+            }
+        } finally {
+            appendLock.unlock();
+        }
+        // Readers still walking an old snapshot keep their mapping; only the files go
+        for (LogSegment segment : expired) {
+            segment.delete();
+        }
+        return expired.size();
+    }
+
+    void flush() {
+        segments.get(segments.size() - 1).flush();
+    }
+
+    int segmentCount() {
+        return segments.size();
+    }
+
+    long sizeBytes() {
+        long total = 0;
+        for (LogSegment segment : segments) {
+            total += segment.size();
+        }
+        return total;
+    }
+
+    @Override
+    public void close() throws IOException {
+        appendLock.lock();
+        try {
+            flush();
+            for (LogSegment segment : segments) {
+                segment.close();
+            }
+        } finally {
+            appendLock.unlock();
+        }
+    }
+}
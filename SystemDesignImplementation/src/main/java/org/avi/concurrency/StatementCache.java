@@ -0,0 +1,266 @@
+package org.avi.concurrency;
+
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Bounded LRU cache of one pooled connection's PreparedStatements, keyed by SQL text and the
+ * int options passed to prepareStatement (result-set type, concurrency, holdability or
+ * auto-generated keys). A statement is checked out to one caller at a time; when the caller
+ * closes it, it is reset and kept. Evicted statements, and all of them when the connection
+ * retires, are really closed - an evicted statement still checked out is closed on check-in.
+ *
+ * Settings a caller changes through ProxyStatement are put back on check-in from the values
+ * read just before the first change. Those with no getter to read (escape processing, cursor
+ * name, closeOnCompletion) cannot be put back, so such a statement is closed instead.
+ */
+class StatementCache {
+
+    static final class Key {
+        final String sql;
+        final int[] options;
+        private final int hash;
+
+        Key(String sql, int[] options) {
+            this.sql = sql;
+            this.options = options;
+            this.hash = 31 * sql.hashCode() + Arrays.hashCode(options);
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (!(o instanceof Key)) return false;
+            Key other = (Key) o;
+            return hash == other.hash && sql.equals(other.sql) && Arrays.equals(options, other.options);
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+    }
+
+    // Statement settings a caller can change and check-in puts back
+    enum Setting {
+        MAX_ROWS {
+            long get(PreparedStatement statement) throws SQLException {
+                return statement.getMaxRows();
+            }
+
+            void set(PreparedStatement statement, long value) throws SQLException {
+                statement.setMaxRows((int) value);
+            }
+        },
+        QUERY_TIMEOUT {
+            long get(PreparedStatement statement) throws SQLException {
+                return statement.getQueryTimeout();
+            }
+
+            void set(PreparedStatement statement, long value) throws SQLException {
+                statement.setQueryTimeout((int) value);
+            }
+        },
+        FETCH_SIZE {
+            long get(PreparedStatement statement) throws SQLException {
+                return statement.getFetchSize();
+            }
+
+            void set(PreparedStatement statement, long value) throws SQLException {
+                statement.setFetchSize((int) value);
+            }
+        },
+        FETCH_DIRECTION {
+            long get(PreparedStatement statement) throws SQLException {
+                return statement.getFetchDirection();
+            }
+
+            void set(PreparedStatement statement, long value) throws SQLException {
+                statement.setFetchDirection((int) value);
+            }
+        },
+        MAX_FIELD_SIZE {
+            long get(PreparedStatement statement) throws SQLException {
+                return statement.getMaxFieldSize();
+            }
+
+            void set(PreparedStatement statement, long value) throws SQLException {
+                statement.setMaxFieldSize((int) value);
+            }
+        },
+        POOLABLE {
+            long get(PreparedStatement statement) throws SQLException {
+                return statement.isPoolable() ? 1 : 0;
+            }
+
+            void set(PreparedStatement statement, long value) throws SQLException {
+                statement.setPoolable(value != 0);
+            }
+        };
+
+        private static final Setting[] ALL = values();
+
+        abstract long get(PreparedStatement statement) throws SQLException;
+
+        abstract void set(PreparedStatement statement, long value) throws SQLException;
+    }
+
+    static final class Cached {
+        final PreparedStatement statement;
+        boolean inUse; // guarded by the cache
+        boolean evicted;
+        // Only touched by whoever has the statement checked out
+        private int changed; // a bit per Setting changed since check-out
+        private long[] original; // each changed setting's value before the change
+        private boolean unrestorable;
+
+        Cached(PreparedStatement statement) {
+            this.statement = statement;
+        }
+
+        // Called before a caller changes setting, so check-in can put it back
+        void changing(Setting setting) throws SQLException {
+            int bit = 1 << setting.ordinal();
+            if ((changed & bit) == 0) {
+                if (original == null) {
+                    original = new long[Setting.ALL.length];
+                }
+                original[setting.ordinal()] = setting.get(statement);
+                changed |= bit;
+            }
+        }
+
+        // Called when a caller changes something check-in cannot put back
+        void changingUnrestorable() {
+            unrestorable = true;
+        }
+
+        private void restore() throws SQLException {
+            for (Setting setting : Setting.ALL) {
+                if ((changed & (1 << setting.ordinal())) != 0) {
+                    setting.set(statement, original[setting.ordinal()]);
+                }
+            }
+            changed = 0;
+        }
+    }
+
+    private final int maxSize;
+    private final LinkedHashMap<Key, Cached> statements;
+
+    StatementCache(int maxSize) {
+        this.maxSize = maxSize;
+        this.statements = new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Key, Cached> eldest) {
+                if (size() <= StatementCache.this.maxSize) {
+                    return false;
+                }
+                retire(eldest.getValue());
+                return true;
+            }
+        };
+    }
+
+    // The cached statement for this key if no one else has it checked out, else null
+    synchronized Cached checkOut(Key key) {
+        Cached cached = statements.get(key);
+        if (cached == null || cached.inUse) {
+            return null;
+        }
+        cached.inUse = true;
+        return cached;
+    }
+
+    // Caches a freshly prepared statement, checked out to the caller; null if the key is taken
+    synchronized Cached add(Key key, PreparedStatement statement) {
+        if (statements.containsKey(key)) {
+            return null; // an identical statement is checked out; this one stays uncached
+        }
+        Cached cached = new Cached(statement);
+        cached.inUse = true;
+        statements.put(key, cached);
+        return cached;
+    }
+
+    /**
+     * Resets the statement for its next user, or closes it if it was evicted or cannot be reset.
+     * It stays checked out until the reset is done, so no one else gets it half reset.
+     */
+    void checkIn(Key key, Cached cached) {
+        boolean reset = reset(cached);
+        synchronized (this) {
+            if (reset && !cached.evicted) {
+                cached.inUse = false;
+                return;
+            }
+            if (!cached.evicted) {
+                statements.remove(key);
+                cached.evicted = true;
+            }
+        }
+        closeQuietly(cached.statement);
+    }
+
+    // Closes every statement; the connection is being retired
+    void closeAll() {
+        List<PreparedStatement> toClose = new ArrayList<>();
+        synchronized (this) {
+            for (Iterator<Cached> it = statements.values().iterator(); it.hasNext(); ) {
+                Cached cached = it.next();
+                cached.evicted = true;
+                toClose.add(cached.statement);
+                it.remove();
+            }
+        }
+        toClose.forEach(StatementCache::closeQuietly);
+    }
+
+    synchronized int size() {
+        return statements.size();
+    }
+
+    // Lock held
+    private void retire(Cached cached) {
+        cached.evicted = true;
+        if (!cached.inUse) {
+            closeQuietly(cached.statement);
+        }
+    }
+
+    // Clears what the last user left behind: parameters, batch, warnings, any open result set and changed settings
+    private static boolean reset(Cached cached) {
+        if (cached.unrestorable) {
+            return false;
+        }
+        PreparedStatement statement = cached.statement;
+        try {
+            cached.restore();
+            ResultSet resultSet = statement.getResultSet();
+            if (resultSet != null) {
+                resultSet.close();
+            }
+            statement.clearParameters();
+            statement.clearBatch();
+            statement.clearWarnings();
+            return !statement.isClosed();
+        } catch (SQLException e) {
+            return false;
+        }
+    }
+
+    static void closeQuietly(PreparedStatement statement) {
+        try {
+            statement.close();
+        } catch (SQLException e) {
+            System.err.println("Failed to close cached statement: " + e.getMessage());
+        }
+    }
+}
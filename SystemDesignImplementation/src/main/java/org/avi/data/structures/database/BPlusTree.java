@@ -1,111 +1,249 @@
 package org.avi.data.structures.database;
 
+import java.util.AbstractMap;
 import java.util.ArrayList;
-import java.util.Collections;
+import java.util.Arrays;
+import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.function.Consumer;
+import java.util.stream.IntStream;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
 
 class BPlusTree<K extends Comparable<K>, V> {
 
-    private static final int ORDER = 4;
+    private static final int DEFAULT_ORDER = 128;
+    private static final int PARALLEL_BULK_LOAD_THRESHOLD = 1 << 16;
+
+    // Max children per internal node; leaves hold at most order - 1 keys.
+    // Wide nodes keep the tree shallow, so a search touches a handful of contiguous arrays.
+    private final int order;
 
     abstract class Node {
-        List<K> keys = new ArrayList<>();
+        // One spare slot holds the overflow key between an insert and the split that follows it
+        final Object[] keys = new Object[order];
+        int size;
         abstract boolean isLeaf();
+
+        @SuppressWarnings("unchecked")
+        K key(int i) { return (K) keys[i]; }
     }
 
     class InternalNode extends Node {
-        List<Node> children = new ArrayList<>();
+        @SuppressWarnings("unchecked")
+        final Node[] children = (Node[]) new BPlusTree.Node[order + 1];
         @Override
         boolean isLeaf() { return false; }
+
+        // Shifts in place to make room for a separator and the child to its right
+        void insertAt(int index, K key, Node right) {
+            System.arraycopy(keys, index, keys, index + 1, size - index);
+            System.arraycopy(children, index + 1, children, index + 2, size - index);
+            keys[index] = key;
+            children[index + 1] = right;
+            size++;
+        }
     }
 
     class LeafNode extends Node {
-        List<V> values = new ArrayList<>();
+        final Object[] values = new Object[order];
         LeafNode next;
+        LeafNode prev;
         @Override
         boolean isLeaf() { return true; }
+
+        @SuppressWarnings("unchecked")
+        V value(int i) { return (V) values[i]; }
+
+        void insertAt(int index, K key, V value) {
+            System.arraycopy(keys, index, keys, index + 1, size - index);
+            System.arraycopy(values, index, values, index + 1, size - index);
+            keys[index] = key;
+            values[index] = value;
+            size++;
+        }
     }
 
-    private Node root = new LeafNode();
+    // Separator and new right sibling produced by a split
+    private final class Split {
+        final K key;
+        final Node right;
+
+        Split(K key, Node right) {
+            this.key = key;
+            this.right = right;
+        }
+    }
+
+    private Node root;
+    private long size;
+
+    public BPlusTree() {
+        this(DEFAULT_ORDER);
+    }
+
+    public BPlusTree(int order) {
+        if (order < 3) throw new IllegalArgumentException("order must be >= 3");
+        this.order = order;
+        this.root = new LeafNode();
+    }
 
     // Public insert method
     public void insert(K key, V value) {
-        Node newRoot = insert(root, key, value);
-        if (newRoot != null) {
-            InternalNode newInternal = new InternalNode();
-            newInternal.keys.add(((InternalNode)newRoot).keys.get(0));
-            newInternal.children.add(root);
-            newInternal.children.add(((InternalNode)newRoot).children.get(1));
-            root = newInternal;
+        Split split = insert(root, key, value);
+        if (split != null) {
+            InternalNode newRoot = new InternalNode();
+            newRoot.keys[0] = split.key;
+            newRoot.children[0] = root;
+            newRoot.children[1] = split.right;
+            newRoot.size = 1;
+            root = newRoot;
         }
     }
 
     // Recursive insert
-    private Node insert(Node node, K key, V value) {
+    private Split insert(Node node, K key, V value) {
         if (node.isLeaf()) {
             LeafNode leaf = (LeafNode) node;
-            int index = Collections.binarySearch(leaf.keys, key);
+            int index = Arrays.binarySearch(leaf.keys, 0, leaf.size, key);
             if (index >= 0) {
-                leaf.values.set(index, value);
-            } else {
-                index = -index - 1;
-                leaf.keys.add(index, key);
-                leaf.values.add(index, value);
-            }
-            if (leaf.keys.size() > ORDER - 1) {
-                return splitLeaf(leaf);
-            }
-        } else {
-            InternalNode internal = (InternalNode) node;
-            int index = Collections.binarySearch(internal.keys, key);
-            index = index >= 0 ? index + 1 : -index - 1;
-            Node child = internal.children.get(index);
-            Node newChild = insert(child, key, value);
-            if (newChild != null) {
-                InternalNode newInternal = (InternalNode) newChild;
-                internal.keys.add(index, newInternal.keys.get(0));
-                internal.children.add(index + 1, newInternal.children.get(1));
-                if (internal.keys.size() > ORDER - 1) {
-                    return splitInternal(internal);
-                }
+                leaf.values[index] = value;
+                return null;
             }
+            leaf.insertAt(-index - 1, key, value);
+            size++;
+            return leaf.size > order - 1 ? splitLeaf(leaf) : null;
+        }
+        InternalNode internal = (InternalNode) node;
+        int index = childIndex(internal, key);
+        Split split = insert(internal.children[index], key, value);
+        if (split == null) {
+            return null;
         }
-        return null;
+        internal.insertAt(index, split.key, split.right);
+        return internal.size > order - 1 ? splitInternal(internal) : null;
+    }
+
+    private int childIndex(InternalNode internal, K key) {
+        int index = Arrays.binarySearch(internal.keys, 0, internal.size, key);
+        return index >= 0 ? index + 1 : -index - 1;
     }
 
-    private Node splitLeaf(LeafNode leaf) {
+    private Split splitLeaf(LeafNode leaf) {
         LeafNode newLeaf = new LeafNode();
-        int mid = (ORDER + 1) / 2;
-        newLeaf.keys.addAll(leaf.keys.subList(mid, leaf.keys.size()));
-        newLeaf.values.addAll(leaf.values.subList(mid, leaf.values.size()));
-        leaf.keys.subList(mid, leaf.keys.size()).clear();
-        leaf.values.subList(mid, leaf.values.size()).clear();
+        int mid = leaf.size / 2;
+        int moved = leaf.size - mid;
+        System.arraycopy(leaf.keys, mid, newLeaf.keys, 0, moved);
+        System.arraycopy(leaf.values, mid, newLeaf.values, 0, moved);
+        Arrays.fill(leaf.keys, mid, leaf.size, null);
+        Arrays.fill(leaf.values, mid, leaf.size, null);
+        newLeaf.size = moved;
+        leaf.size = mid;
         newLeaf.next = leaf.next;
+        if (newLeaf.next != null) {
+            newLeaf.next.prev = newLeaf;
+        }
         leaf.next = newLeaf;
-
-        InternalNode parent = new InternalNode();
-        parent.keys.add(newLeaf.keys.get(0));
-        parent.children.add(leaf);
-        parent.children.add(newLeaf);
-        return parent;
+        newLeaf.prev = leaf;
+        return new Split(newLeaf.key(0), newLeaf);
     }
 
-    private Node splitInternal(InternalNode node) {
+    private Split splitInternal(InternalNode node) {
         InternalNode newNode = new InternalNode();
-        int mid = node.keys.size() / 2;
-        K midKey = node.keys.get(mid);
+        int mid = node.size / 2;
+        K midKey = node.key(mid);
+        int moved = node.size - mid - 1;
+
+        System.arraycopy(node.keys, mid + 1, newNode.keys, 0, moved);
+        System.arraycopy(node.children, mid + 1, newNode.children, 0, moved + 1);
+        Arrays.fill(node.keys, mid, node.size, null);
+        Arrays.fill(node.children, mid + 1, node.size + 1, null);
+        newNode.size = moved;
+        node.size = mid;
+        return new Split(midKey, newNode);
+    }
+
+    public void bulkLoad(Iterator<? extends Map.Entry<K, V>> sorted, double fillFactor) {
+        List<Map.Entry<K, V>> entries = new ArrayList<>();
+        sorted.forEachRemaining(entries::add);
+        bulkLoad(entries, fillFactor);
+    }
+
+    /**
+     * Builds the tree bottom-up from strictly ascending entries: packs leaves to fillFactor of
+     * their capacity, then builds each internal level from the one below. Leaves of a level
+     * are independent key ranges, so large inputs build each level with a parallel stream.
+     * Leaving headroom (e.g. 0.7) avoids an immediate wave of splits on later inserts.
+     */
+    @SuppressWarnings("unchecked")
+    public void bulkLoad(List<? extends Map.Entry<K, V>> sorted, double fillFactor) {
+        if (fillFactor <= 0 || fillFactor > 1) throw new IllegalArgumentException("fillFactor must be in (0, 1]");
+        if (size > 0) throw new IllegalStateException("bulkLoad requires an empty tree");
+        int n = sorted.size();
+        if (n == 0) return;
 
-        newNode.keys.addAll(node.keys.subList(mid + 1, node.keys.size()));
-        newNode.children.addAll(node.children.subList(mid + 1, node.children.size()));
+        int perLeaf = Math.max(1, (int) ((order - 1) * fillFactor));
+        int leafCount = (n + perLeaf - 1) / perLeaf;
+        LeafNode[] leaves = (LeafNode[]) new BPlusTree.LeafNode[leafCount];
+        levelRange(leafCount).forEach(i -> {
+            int from = (int) ((long) n * i / leafCount);
+            int to = (int) ((long) n * (i + 1) / leafCount);
+            LeafNode leaf = new LeafNode();
+            for (int j = from; j < to; j++) {
+                Map.Entry<K, V> entry = sorted.get(j);
+                if (j > 0 && sorted.get(j - 1).getKey().compareTo(entry.getKey()) >= 0) {
+                    throw new IllegalArgumentException("bulkLoad input is not strictly ascending at key " + entry.getKey());
+                }
+                leaf.keys[j - from] = entry.getKey();
+                leaf.values[j - from] = entry.getValue();
+            }
+            leaf.size = to - from;
+            leaves[i] = leaf;
+        });
+        for (int i = 1; i < leafCount; i++) {
+            leaves[i - 1].next = leaves[i];
+            leaves[i].prev = leaves[i - 1];
+        }
 
-        node.keys.subList(mid, node.keys.size()).clear();
-        node.children.subList(mid + 1, node.children.size()).clear();
+        // At least 3 children per node so even distribution never leaves a node with one child
+        int perNode = Math.max(3, Math.min(order, (int) (order * fillFactor)));
+        Node[] level = leaves;
+        Object[] minKeys = new Object[leafCount];
+        for (int i = 0; i < leafCount; i++) {
+            minKeys[i] = leaves[i].keys[0];
+        }
+        while (level.length > 1) {
+            Node[] children = level;
+            Object[] childMinKeys = minKeys;
+            int m = children.length;
+            int nodeCount = (m + perNode - 1) / perNode;
+            Node[] parents = (Node[]) new BPlusTree.Node[nodeCount];
+            Object[] parentMinKeys = new Object[nodeCount];
+            levelRange(nodeCount).forEach(i -> {
+                int from = (int) ((long) m * i / nodeCount);
+                int to = (int) ((long) m * (i + 1) / nodeCount);
+                InternalNode node = new InternalNode();
+                System.arraycopy(children, from, node.children, 0, to - from);
+                // Separator i is the smallest key under child i + 1
+                System.arraycopy(childMinKeys, from + 1, node.keys, 0, to - from - 1);
+                node.size = to - from - 1;
+                parents[i] = node;
+                parentMinKeys[i] = childMinKeys[from];
+            });
+            level = parents;
+            minKeys = parentMinKeys;
+        }
+        root = level[0];
+        size = n;
+    }
 
-        InternalNode parent = new InternalNode();
-        parent.keys.add(midKey);
-        parent.children.add(node);
-        parent.children.add(newNode);
-        return parent;
+    private IntStream levelRange(int count) {
+        IntStream range = IntStream.range(0, count);
+        return count * (long) order >= PARALLEL_BULK_LOAD_THRESHOLD ? range.parallel() : range;
     }
 
     // Search method
@@ -113,13 +251,225 @@ class BPlusTree<K extends Comparable<K>, V> {
         Node node = root;
         while (!node.isLeaf()) {
             InternalNode internal = (InternalNode) node;
-            int index = Collections.binarySearch(internal.keys, key);
-            index = index >= 0 ? index + 1 : -index - 1;
-            node = internal.children.get(index);
+            node = internal.children[childIndex(internal, key)];
         }
         LeafNode leaf = (LeafNode) node;
-        int index = Collections.binarySearch(leaf.keys, key);
-        return index >= 0 ? leaf.values.get(index) : null;
+        int index = Arrays.binarySearch(leaf.keys, 0, leaf.size, key);
+        return index >= 0 ? leaf.value(index) : null;
+    }
+
+    public long size() {
+        return size;
+    }
+
+    public K firstKey() {
+        LeafNode leaf = leftmostLeaf(root);
+        if (leaf.size == 0) throw new NoSuchElementException();
+        return leaf.key(0);
+    }
+
+    public K lastKey() {
+        LeafNode leaf = rightmostLeaf(root);
+        if (leaf.size == 0) throw new NoSuchElementException();
+        return leaf.key(leaf.size - 1);
+    }
+
+    /**
+     * Lazy ascending scan over [fromKey, toKey); a null bound is open.
+     * One descent finds the first leaf, after which the scan follows leaf links.
+     */
+    public Iterator<Map.Entry<K, V>> range(K fromKey, K toKey) {
+        return Spliterators.iterator(spliterator(fromKey, toKey));
+    }
+
+    // Lazy descending scan over [fromKey, toKey), starting from the largest key below toKey
+    public Iterator<Map.Entry<K, V>> descendingRange(K fromKey, K toKey) {
+        return new DescendingIterator(fromKey, toKey);
+    }
+
+    // Ordered stream over [fromKey, toKey); call parallel() to split the scan across subtrees
+    public Stream<Map.Entry<K, V>> stream(K fromKey, K toKey) {
+        return StreamSupport.stream(spliterator(fromKey, toKey), false);
+    }
+
+    public Spliterator<Map.Entry<K, V>> spliterator(K fromKey, K toKey) {
+        if (fromKey != null && toKey != null && fromKey.compareTo(toKey) >= 0) {
+            return Spliterators.emptySpliterator();
+        }
+        RangeSpliterator spliterator = new RangeSpliterator(fromKey, toKey, size);
+        spliterator.narrowTo(root);
+        return spliterator;
+    }
+
+    private LeafNode descendTo(Node node, K key) {
+        while (!node.isLeaf()) {
+            InternalNode internal = (InternalNode) node;
+            node = internal.children[key == null ? 0 : childIndex(internal, key)];
+        }
+        return (LeafNode) node;
+    }
+
+    private LeafNode leftmostLeaf(Node node) {
+        return descendTo(node, null);
+    }
+
+    private LeafNode rightmostLeaf(Node node) {
+        while (!node.isLeaf()) {
+            InternalNode internal = (InternalNode) node;
+            node = internal.children[internal.size];
+        }
+        return (LeafNode) node;
+    }
+
+    // Index of the first key >= key in the leaf
+    private int lowerBound(LeafNode leaf, K key) {
+        int index = Arrays.binarySearch(leaf.keys, 0, leaf.size, key);
+        return index >= 0 ? index : -index - 1;
+    }
+
+    private Map.Entry<K, V> entry(LeafNode leaf, int index) {
+        return new AbstractMap.SimpleImmutableEntry<>(leaf.key(index), leaf.value(index));
+    }
+
+    /**
+     * Covers the subtrees children[lo, hi) of one node, clipped to [fromKey, toKey).
+     * trySplit hands the first half of the child range to a new spliterator, so every part
+     * is a run of whole subtrees; once traversal starts it just follows the leaf chain.
+     */
+    private final class RangeSpliterator implements Spliterator<Map.Entry<K, V>> {
+        private final K fromKey;
+        private final K toKey;
+        private Node node;
+        private int lo;
+        private int hi;
+        private long estimate;
+
+        private boolean started;
+        private LeafNode leaf;
+        private LeafNode lastLeaf;
+        private int index;
+
+        RangeSpliterator(K fromKey, K toKey, long estimate) {
+            this.fromKey = fromKey;
+            this.toKey = toKey;
+            this.estimate = estimate;
+        }
+
+        // Restricts the child range of node to the subtrees that can hold keys in range
+        void narrowTo(Node node) {
+            this.node = node;
+            if (!node.isLeaf()) {
+                InternalNode internal = (InternalNode) node;
+                lo = fromKey == null ? 0 : childIndex(internal, fromKey);
+                hi = toKey == null ? internal.size + 1 : childIndex(internal, toKey) + 1;
+            }
+        }
+
+        @Override
+        public Spliterator<Map.Entry<K, V>> trySplit() {
+            if (started) {
+                return null;
+            }
+            while (!node.isLeaf() && hi - lo == 1) {
+                narrowTo(((InternalNode) node).children[lo]);
+            }
+            if (node.isLeaf()) {
+                return null;
+            }
+            int mid = (lo + hi) >>> 1;
+            RangeSpliterator prefix = new RangeSpliterator(fromKey, toKey, estimate / 2);
+            prefix.node = node;
+            prefix.lo = lo;
+            prefix.hi = mid;
+            lo = mid;
+            estimate -= prefix.estimate;
+            return prefix;
+        }
+
+        private void start() {
+            started = true;
+            if (node.isLeaf()) {
+                leaf = (LeafNode) node;
+                lastLeaf = leaf;
+            } else {
+                InternalNode internal = (InternalNode) node;
+                leaf = descendTo(internal.children[lo], fromKey);
+                lastLeaf = rightmostLeaf(internal.children[hi - 1]);
+            }
+            index = fromKey == null ? 0 : lowerBound(leaf, fromKey);
+        }
+
+        @Override
+        public boolean tryAdvance(Consumer<? super Map.Entry<K, V>> action) {
+            if (!started) {
+                start();
+            }
+            while (leaf != null) {
+                if (index < leaf.size) {
+                    if (toKey != null && leaf.key(index).compareTo(toKey) >= 0) {
+                        leaf = null;
+                        return false;
+                    }
+                    action.accept(entry(leaf, index++));
+                    return true;
+                }
+                leaf = leaf == lastLeaf ? null : leaf.next;
+                index = 0;
+            }
+            return false;
+        }
+
+        @Override
+        public long estimateSize() {
+            return estimate;
+        }
+
+        @Override
+        public int characteristics() {
+            return ORDERED | DISTINCT | NONNULL;
+        }
+    }
+
+    private final class DescendingIterator implements Iterator<Map.Entry<K, V>> {
+        private final K fromKey;
+        private LeafNode leaf;
+        private int index;
+
+        DescendingIterator(K fromKey, K toKey) {
+            this.fromKey = fromKey;
+            if (toKey == null) {
+                leaf = rightmostLeaf(root);
+                index = leaf.size - 1;
+            } else {
+                leaf = descendTo(root, toKey);
+                index = lowerBound(leaf, toKey) - 1;
+            }
+            settle();
+        }
+
+        // Steps back across empty leaf tails and stops once keys drop below fromKey
+        private void settle() {
+            while (leaf != null && index < 0) {
+                leaf = leaf.prev;
+                index = leaf == null ? -1 : leaf.size - 1;
+            }
+            if (leaf != null && fromKey != null && leaf.key(index).compareTo(fromKey) < 0) {
+                leaf = null;
+            }
+        }
+
+        @Override
+        public boolean hasNext() {
+            return leaf != null;
+        }
+
+        @Override
+        public Map.Entry<K, V> next() {
+            if (leaf == null) throw new NoSuchElementException();
+            Map.Entry<K, V> result = entry(leaf, index--);
+            settle();
+            return result;
+        }
     }
 
     // Optional: for debugging
@@ -129,16 +479,18 @@ class BPlusTree<K extends Comparable<K>, V> {
 
     private void printTree(Node node, int level) {
         String indent = " ".repeat(level * 4);
-        System.out.print(indent + (node.isLeaf() ? "Leaf " : "Internal ") + node.keys + "\n");
+        System.out.print(indent + (node.isLeaf() ? "Leaf " : "Internal ")
+                + Arrays.toString(Arrays.copyOf(node.keys, node.size)) + "\n");
         if (!node.isLeaf()) {
-            for (Node child : ((InternalNode) node).children) {
-                printTree(child, level + 1);
+            InternalNode internal = (InternalNode) node;
+            for (int i = 0; i <= internal.size; i++) {
+                printTree(internal.children[i], level + 1);
             }
         }
     }
 
     public static void main(String[] args) {
-        BPlusTree<Integer, String> tree = new BPlusTree<>();
+        BPlusTree<Integer, String> tree = new BPlusTree<>(4);
         tree.insert(10, "A");
         tree.insert(20, "B");
         tree.insert(5, "C");
@@ -149,5 +501,26 @@ class BPlusTree<K extends Comparable<K>, V> {
         System.out.println("Search 7: " + tree.search(7));   // Should print null
 
         tree.printTree(); // Debug: print tree structure
+
+        System.out.println("First: " + tree.firstKey() + ", last: " + tree.lastKey());
+        tree.range(6, 20).forEachRemaining(e -> System.out.println("Range " + e));
+        tree.descendingRange(null, 15).forEachRemaining(e -> System.out.println("Descending " + e));
+
+        BPlusTree<Integer, Integer> big = new BPlusTree<>(64);
+        for (int i = 0; i < 1_000_000; i++) {
+            big.insert(i, i);
+        }
+        long sum = big.stream(1_000, 900_000).parallel().mapToLong(Map.Entry::getValue).sum();
+        System.out.println("Parallel range sum: " + sum);
+
+        List<Map.Entry<Integer, Integer>> sorted = new ArrayList<>();
+        for (int i = 0; i < 5_000_000; i++) {
+            sorted.add(Map.entry(i, i));
+        }
+        BPlusTree<Integer, Integer> loaded = new BPlusTree<>(256);
+        long start = System.nanoTime();
+        loaded.bulkLoad(sorted, 0.9);
+        System.out.println("Bulk loaded " + loaded.size() + " keys in " + (System.nanoTime() - start) / 1_000_000 + " ms");
+        System.out.println("Search 4242424: " + loaded.search(4_242_424));
     }
 }
@@ -0,0 +1,331 @@
+package org.avi.data.structures.database;
+
+import java.util.Arrays;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.StampedLock;
+
+/**
+ * Thread-safe B+ tree using optimistic lock coupling.
+ *
+ * Every node carries a StampedLock used as a version latch. Readers take an optimistic
+ * stamp, read the node without locking, and validate the stamp before trusting what they
+ * read; they never block and never write shared memory. Writers also descend optimistically
+ * and convert stamps into write locks only for the nodes they change. Full nodes are split
+ * eagerly on the way down, so a split only ever touches a node and its parent.
+ */
+public class ConcurrentBPlusTree<K extends Comparable<K>, V> {
+
+    private static final int DEFAULT_ORDER = 64;
+
+    private final int order;
+
+    abstract class Node {
+        final StampedLock latch = new StampedLock();
+        final Object[] keys = new Object[order - 1];
+        int size;
+        abstract boolean isLeaf();
+
+        boolean isFull() {
+            return size == order - 1;
+        }
+    }
+
+    class InternalNode extends Node {
+        @SuppressWarnings("unchecked")
+        final Node[] children = (Node[]) new ConcurrentBPlusTree.Node[order];
+        @Override
+        boolean isLeaf() { return false; }
+    }
+
+    class LeafNode extends Node {
+        final Object[] values = new Object[order - 1];
+        LeafNode next;
+        @Override
+        boolean isLeaf() { return true; }
+    }
+
+    private volatile Node root;
+    private final LongAdder size = new LongAdder();
+
+    public ConcurrentBPlusTree() {
+        this(DEFAULT_ORDER);
+    }
+
+    public ConcurrentBPlusTree(int order) {
+        if (order < 4) throw new IllegalArgumentException("order must be >= 4");
+        this.order = order;
+        this.root = new LeafNode();
+    }
+
+    private static final int RESTART = Integer.MIN_VALUE;
+
+    /**
+     * Binary search that tolerates concurrent modification: a torn read (a null slot) yields
+     * RESTART, and any other inconsistency is caught by the caller's stamp validation.
+     * Returns the same encoding as Arrays.binarySearch otherwise.
+     */
+    @SuppressWarnings("unchecked")
+    private int search(Node node, K key) {
+        int lo = 0;
+        int hi = Math.min(node.size, node.keys.length) - 1;
+        while (lo <= hi) {
+            int mid = (lo + hi) >>> 1;
+            Object midKey = node.keys[mid];
+            if (midKey == null) {
+                return RESTART;
+            }
+            int cmp = ((K) midKey).compareTo(key);
+            if (cmp < 0) {
+                lo = mid + 1;
+            } else if (cmp > 0) {
+                hi = mid - 1;
+            } else {
+                return mid;
+            }
+        }
+        return -(lo + 1);
+    }
+
+    private int childIndex(InternalNode node, K key) {
+        int index = search(node, key);
+        if (index == RESTART) return RESTART;
+        return index >= 0 ? index + 1 : -index - 1;
+    }
+
+    @SuppressWarnings("unchecked")
+    public V search(K key) {
+        while (true) {
+            Node node = root;
+            long stamp = node.latch.tryOptimisticRead();
+            // A root split bumps the old root's version, but we may have read the root pointer before it
+            if (stamp == 0 || node != root) {
+                continue;
+            }
+            V result = null;
+            boolean restart = false;
+            while (!node.isLeaf()) {
+                InternalNode internal = (InternalNode) node;
+                int index = childIndex(internal, key);
+                Node child = index == RESTART ? null : internal.children[index];
+                if (child == null) {
+                    restart = true;
+                    break;
+                }
+                long childStamp = child.latch.tryOptimisticRead();
+                if (!node.latch.validate(stamp) || childStamp == 0) {
+                    restart = true;
+                    break;
+                }
+                node = child;
+                stamp = childStamp;
+            }
+            if (restart) {
+                Thread.onSpinWait();
+                continue;
+            }
+            LeafNode leaf = (LeafNode) node;
+            int index = search(leaf, key);
+            if (index >= 0) {
+                result = (V) leaf.values[index];
+            }
+            if (index != RESTART && leaf.latch.validate(stamp)) {
+                return result;
+            }
+            Thread.onSpinWait();
+        }
+    }
+
+    public void insert(K key, V value) {
+        while (!tryInsert(key, value)) {
+            Thread.onSpinWait();
+        }
+    }
+
+    // One optimistic descent; false means a validation failed or a split was done, so start over
+    private boolean tryInsert(K key, V value) {
+        Node node = root;
+        long stamp = node.latch.tryOptimisticRead();
+        if (stamp == 0 || node != root) {
+            return false;
+        }
+        InternalNode parent = null;
+        long parentStamp = 0;
+
+        while (true) {
+            if (node.isFull()) {
+                splitWithParent(parent, parentStamp, node, stamp);
+                return false;
+            }
+            if (node.isLeaf()) {
+                break;
+            }
+            InternalNode internal = (InternalNode) node;
+            int index = childIndex(internal, key);
+            Node child = index == RESTART ? null : internal.children[index];
+            if (child == null) {
+                return false;
+            }
+            long childStamp = child.latch.tryOptimisticRead();
+            if (!node.latch.validate(stamp) || childStamp == 0) {
+                return false;
+            }
+            parent = internal;
+            parentStamp = stamp;
+            node = child;
+            stamp = childStamp;
+        }
+
+        LeafNode leaf = (LeafNode) node;
+        long writeStamp = leaf.latch.tryConvertToWriteLock(stamp);
+        if (writeStamp == 0) {
+            return false;
+        }
+        try {
+            int index = search(leaf, key);
+            if (index >= 0) {
+                leaf.values[index] = value;
+            } else {
+                index = -index - 1;
+                System.arraycopy(leaf.keys, index, leaf.keys, index + 1, leaf.size - index);
+                System.arraycopy(leaf.values, index, leaf.values, index + 1, leaf.size - index);
+                leaf.keys[index] = key;
+                leaf.values[index] = value;
+                leaf.size++;
+                size.increment();
+            }
+            return true;
+        } finally {
+            leaf.latch.unlockWrite(writeStamp);
+        }
+    }
+
+    /**
+     * Write-latches the parent (or checks the node is still the root) and the full node,
+     * then splits the node and links the new sibling. The parent is known to have room
+     * because full nodes are split on the way down before we ever descend through them.
+     */
+    private void splitWithParent(InternalNode parent, long parentStamp, Node node, long stamp) {
+        long parentWrite = 0;
+        if (parent != null) {
+            parentWrite = parent.latch.tryConvertToWriteLock(parentStamp);
+            if (parentWrite == 0) {
+                return;
+            }
+        }
+        long nodeWrite = node.latch.tryConvertToWriteLock(stamp);
+        if (nodeWrite == 0) {
+            if (parent != null) parent.latch.unlockWrite(parentWrite);
+            return;
+        }
+        try {
+            // Root changes only while the root is write-latched, which we now hold if it is still node
+            if (parent == null && node != root) {
+                return;
+            }
+            Object separator;
+            Node right;
+            if (node.isLeaf()) {
+                LeafNode leaf = (LeafNode) node;
+                LeafNode newLeaf = new LeafNode();
+                int mid = leaf.size / 2;
+                int moved = leaf.size - mid;
+                System.arraycopy(leaf.keys, mid, newLeaf.keys, 0, moved);
+                System.arraycopy(leaf.values, mid, newLeaf.values, 0, moved);
+                newLeaf.size = moved;
+                newLeaf.next = leaf.next;
+                // Shrink before clearing slots so racing readers see a smaller size, not nulls
+                leaf.size = mid;
+                Arrays.fill(leaf.keys, mid, mid + moved, null);
+                Arrays.fill(leaf.values, mid, mid + moved, null);
+                leaf.next = newLeaf;
+                separator = newLeaf.keys[0];
+                right = newLeaf;
+            } else {
+                InternalNode internal = (InternalNode) node;
+                InternalNode newNode = new InternalNode();
+                int mid = internal.size / 2;
+                int moved = internal.size - mid - 1;
+                separator = internal.keys[mid];
+                System.arraycopy(internal.keys, mid + 1, newNode.keys, 0, moved);
+                System.arraycopy(internal.children, mid + 1, newNode.children, 0, moved + 1);
+                newNode.size = moved;
+                int oldSize = internal.size;
+                internal.size = mid;
+                Arrays.fill(internal.keys, mid, oldSize, null);
+                Arrays.fill(internal.children, mid + 1, oldSize + 1, null);
+                right = newNode;
+            }
+
+            if (parent == null) {
+                InternalNode newRoot = new InternalNode();
+                newRoot.keys[0] = separator;
+                newRoot.children[0] = node;
+                newRoot.children[1] = right;
+                newRoot.size = 1;
+                root = newRoot;
+            } else {
+                @SuppressWarnings("unchecked")
+                int index = -search(parent, (K) separator) - 1;
+                System.arraycopy(parent.keys, index, parent.keys, index + 1, parent.size - index);
+                System.arraycopy(parent.children, index + 1, parent.children, index + 2, parent.size - index);
+                parent.keys[index] = separator;
+                parent.children[index + 1] = right;
+                parent.size++;
+            }
+        } finally {
+            node.latch.unlockWrite(nodeWrite);
+            if (parent != null) parent.latch.unlockWrite(parentWrite);
+        }
+    }
+
+    public long size() {
+        return size.sum();
+    }
+
+    public static void main(String[] args) throws InterruptedException {
+        int keys = 2_000_000;
+        ConcurrentBPlusTree<Integer, Integer> tree = new ConcurrentBPlusTree<>();
+        int writers = 4;
+        Thread[] threads = new Thread[writers];
+        long start = System.nanoTime();
+        for (int t = 0; t < writers; t++) {
+            int offset = t;
+            threads[t] = new Thread(() -> {
+                for (int i = offset; i < keys; i += writers) {
+                    tree.insert(i, i);
+                }
+            });
+            threads[t].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        System.out.println(writers + " writers inserted " + tree.size() + " keys in "
+                + (System.nanoTime() - start) / 1_000_000 + " ms");
+
+        int maxReaders = Runtime.getRuntime().availableProcessors();
+        for (int readers = 1; readers <= maxReaders; readers *= 2) {
+            int lookupsPerThread = 2_000_000;
+            Thread[] readerThreads = new Thread[readers];
+            start = System.nanoTime();
+            for (int t = 0; t < readers; t++) {
+                readerThreads[t] = new Thread(() -> {
+                    ThreadLocalRandom random = ThreadLocalRandom.current();
+                    for (int i = 0; i < lookupsPerThread; i++) {
+                        if (tree.search(random.nextInt(keys)) == null) {
+                            throw new IllegalStateException("missing key");
+                        }
+                    }
+                });
+                readerThreads[t].start();
+            }
+            for (Thread thread : readerThreads) {
+                thread.join();
+            }
+            long elapsed = System.nanoTime() - start;
+            System.out.printf("%d readers: %,d lookups/s%n", readers,
+                    (long) readers * lookupsPerThread * 1_000_000_000L / elapsed);
+        }
+    }
+}
@@ -1,128 +1,247 @@
 package org.avi.data.structures.database;
 
-import java.util.concurrent.atomic.AtomicReference;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.util.Arrays;
 import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
 
-// Robust lock-free skiplist with upsert support
+// Robust lock-free skiplist with upsert support.
+// Forward pointers are plain Node[] slots accessed through VarHandles, so a node
+// costs one array instead of one AtomicReference per level, and reads allocate nothing.
+// A node is deleted at a level by swapping its next slot there for a marker node that
+// points on to the old successor, so any later CAS expecting that successor fails.
 public class LockFreeSkipList<T> {
-    private static final int MAX_LEVEL = 16;
+    private static final int MIN_LEVEL_CAP = 16;
+    private static final int MAX_LEVEL_CAP = 48;
     private static final double P = 0.5;
+
+    private static final VarHandle NEXT = MethodHandles.arrayElementVarHandle(Node[].class);
+
     private final Node<T> head;
     private final Node<T> tail;
+    // The sentinels are sized for MAX_LEVEL_CAP up front (replacing them would lose concurrent CASes);
+    // levelCap bounds new node heights and topLevel bounds where traversals start.
+    private volatile int levelCap = MIN_LEVEL_CAP;
+    private final AtomicInteger topLevel = new AtomicInteger(1);
+    private final LongAdder size = new LongAdder();
+    private final LongAdder[] heightCounts = new LongAdder[MAX_LEVEL_CAP + 1];
 
     static class Node<T> {
         final int key;
         volatile T value; // Made volatile for thread-safe updates
-        final AtomicReference<Node<T>>[] forward;
-        final int level;
-        volatile boolean marked;
+        final Node<T>[] next;
+        final int level; // 0 for a marker
 
         @SuppressWarnings("unchecked")
         Node(int key, T value, int level) {
             this.key = key;
             this.value = value;
             this.level = level;
-            this.marked = false;
-            this.forward = new AtomicReference[level];
-            for (int i = 0; i < level; i++) {
-                forward[i] = new AtomicReference<>(null);
-            }
+            this.next = (Node<T>[]) new Node[Math.max(level, 1)];
+        }
+
+        // Marker standing in for successor in the next slot of a node deleted at that level
+        Node(Node<T> successor) {
+            this(successor.key, null, 0);
+            next[0] = successor;
+        }
+
+        boolean isMarker() {
+            return level == 0;
         }
     }
 
-    @SuppressWarnings("unchecked")
+    // Visits live entries without boxing the key
+    @FunctionalInterface
+    public interface EntryConsumer<T> {
+        void accept(int key, T value);
+    }
+
     public LockFreeSkipList() {
-        head = new Node<>(Integer.MIN_VALUE, null, MAX_LEVEL);
-        tail = new Node<>(Integer.MAX_VALUE, null, MAX_LEVEL);
-        for (int i = 0; i < MAX_LEVEL; i++) {
-            head.forward[i].set(tail);
+        head = new Node<>(Integer.MIN_VALUE, null, MAX_LEVEL_CAP);
+        tail = new Node<>(Integer.MAX_VALUE, null, MAX_LEVEL_CAP);
+        for (int i = 0; i < MAX_LEVEL_CAP; i++) {
+            head.next[i] = tail;
+        }
+        for (int i = 0; i < heightCounts.length; i++) {
+            heightCounts[i] = new LongAdder();
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private static <T> Node<T> next(Node<T> node, int level) {
+        return (Node<T>) NEXT.getAcquire(node.next, level);
+    }
+
+    private static <T> boolean casNext(Node<T> node, int level, Node<T> expected, Node<T> update) {
+        return NEXT.compareAndSet(node.next, level, expected, update);
+    }
+
+    // The node after this one at level, whether or not this one is deleted there
+    private static <T> Node<T> successor(Node<T> node, int level) {
+        Node<T> next = next(node, level);
+        return next.isMarker() ? next(next, 0) : next;
+    }
+
+    private static <T> boolean isMarked(Node<T> node, int level) {
+        return next(node, level).isMarker();
+    }
+
+    // Returns false if node was already marked at level
+    private static <T> boolean mark(Node<T> node, int level) {
+        while (true) {
+            Node<T> next = next(node, level);
+            if (next.isMarker()) {
+                return false;
+            }
+            if (casNext(node, level, next, new Node<>(next))) {
+                return true;
+            }
         }
     }
 
     private int randomLevel() {
+        int cap = levelCap;
         int level = 1;
-        while (ThreadLocalRandom.current().nextDouble() < P && level < MAX_LEVEL) {
+        while (ThreadLocalRandom.current().nextDouble() < P && level < cap) {
             level++;
         }
+        if (level == cap) {
+            // The cap only binds about once per 2^cap inserts, so that is when it is worth re-checking
+            int wanted = SkipList.levelCapFor(size.sum() + 1);
+            if (wanted > cap) {
+                levelCap = wanted;
+            }
+        }
         return level;
     }
 
-    @SuppressWarnings("unchecked")
-    private boolean find(int key, Node<T>[] preds, Node<T>[] succs) {
+    private void raiseTopLevel(int level) {
+        int top;
+        while ((top = topLevel.get()) < level && !topLevel.compareAndSet(top, level)) {
+            // retry
+        }
+    }
+
+    // Fills preds/succs for every level, unlinking marked nodes on the way down
+    private void findPredecessors(int key, Node<T>[] preds, Node<T>[] succs) {
         retry:
         while (true) {
-            Node<T> curr = head;
-            for (int level = MAX_LEVEL - 1; level >= 0; level--) {
-                curr = head;
-                Node<T> next = curr.forward[level].get();
-                while (next != null && next.key < key) {
-                    curr = next;
-                    next = curr.forward[level].get();
-                }
-                while (next != null && next.marked) {
-                    Node<T> succ = next.forward[level].get();
-                    if (!curr.forward[level].compareAndSet(next, succ)) {
-                        continue retry;
+            Node<T> pred = head;
+            for (int level = topLevel.get() - 1; level >= 0; level--) {
+                Node<T> curr = successor(pred, level);
+                while (curr != tail) {
+                    Node<T> succ = next(curr, level);
+                    if (succ.isMarker()) {
+                        // Fails if pred was marked meanwhile, so nothing is linked after a deleted node
+                        succ = next(succ, 0);
+                        if (!casNext(pred, level, curr, succ)) {
+                            continue retry;
+                        }
+                        curr = succ;
+                    } else if (curr.key < key) {
+                        pred = curr;
+                        curr = succ;
+                    } else {
+                        break;
                     }
-                    next = succ;
                 }
-                preds[level] = curr;
-                succs[level] = next;
+                preds[level] = pred;
+                succs[level] = curr;
             }
-            Node<T> succ = succs[0];
-            if (succ != null && succ.marked) {
-                continue retry;
+            return;
+        }
+    }
+
+    // Wait-free read: walks from the top level down and never writes shared state
+    private Node<T> findNode(int key) {
+        Node<T> pred = head;
+        Node<T> curr = tail;
+        for (int level = topLevel.get() - 1; level >= 0; level--) {
+            curr = successor(pred, level);
+            while (curr.key < key) {
+                pred = curr;
+                curr = successor(pred, level);
             }
-            return true;
         }
+        // A deleted node may still be linked ahead of a re-inserted one
+        while (curr.key == key && curr != tail) {
+            Node<T> next = next(curr, 0);
+            if (!next.isMarker()) {
+                return curr;
+            }
+            curr = next(next, 0);
+        }
+        return null;
     }
 
     public T find(int key) {
-        Node<T>[] preds = new Node[MAX_LEVEL];
-        Node<T>[] succs = new Node[MAX_LEVEL];
-        find(key, preds, succs);
-        Node<T> succ = succs[0];
-        if (succ != null && succ.key == key && !succ.marked) {
-            return succ.value;
+        Node<T> node = findNode(key);
+        return node != null ? node.value : null;
+    }
+
+    public boolean contains(int key) {
+        return findNode(key) != null;
+    }
+
+    // Ascending traversal of live entries, no allocation
+    public void forEach(EntryConsumer<? super T> action) {
+        Node<T> curr = next(head, 0);
+        while (curr != tail) {
+            Node<T> next = next(curr, 0);
+            if (next.isMarker()) {
+                next = next(next, 0);
+            } else {
+                action.accept(curr.key, curr.value);
+            }
+            curr = next;
         }
-        return null;
     }
 
     @SuppressWarnings("unchecked")
     public boolean insert(int key, T value) {
-        Node<T>[] preds = new Node[MAX_LEVEL];
-        Node<T>[] succs = new Node[MAX_LEVEL];
+        Node<T>[] preds = new Node[MAX_LEVEL_CAP];
+        Node<T>[] succs = new Node[MAX_LEVEL_CAP];
+        // Drawn up front so the search below covers every level the new node may be linked at
+        int newLevel = randomLevel();
+        raiseTopLevel(newLevel);
         while (true) {
-            if (!find(key, preds, succs)) {
-                continue;
-            }
+            findPredecessors(key, preds, succs);
             Node<T> succ = succs[0];
             // If key exists, update its value (upsert)
-            if (succ != null && succ.key == key && !succ.marked) {
-                succ.value = value; // Update value atomically
+            if (succ.key == key && succ != tail) {
+                succ.value = value;
+                if (isMarked(succ, 0)) {
+                    continue; // lost a race with delete, insert a fresh node instead
+                }
                 return true;
             }
-            // Otherwise, insert new node
-            int newLevel = randomLevel();
+            // Otherwise, insert new node; its slots are private until the level-0 CAS publishes it
             Node<T> newNode = new Node<>(key, value, newLevel);
             for (int level = 0; level < newLevel; level++) {
-                newNode.forward[level].set(succs[level]);
+                newNode.next[level] = succs[level];
             }
-            if (!preds[0].forward[0].compareAndSet(succs[0], newNode)) {
+            // Fails if preds[0] was deleted meanwhile, and the search runs again
+            if (!casNext(preds[0], 0, succs[0], newNode)) {
                 continue;
             }
+            size.increment();
+            heightCounts[newLevel].increment();
             for (int level = 1; level < newLevel; level++) {
-                while (true) {
-                    if (preds[level].forward[level].compareAndSet(succs[level], newNode)) {
-                        break;
-                    }
-                    if (!find(key, preds, succs)) {
-                        break;
-                    }
-                    for (int i = level; i < newLevel; i++) {
-                        newNode.forward[i].set(succs[i]);
+                while (!casNext(preds[level], level, succs[level], newNode)) {
+                    findPredecessors(key, preds, succs);
+                    Node<T> next = next(newNode, level);
+                    // A CAS, not a store: a delete may have marked the slot already
+                    if (next.isMarker() || (next != succs[level] && !casNext(newNode, level, next, succs[level]))) {
+                        return true; // already being deleted, stop linking upper levels
                     }
                 }
+                if (isMarked(newNode, level)) {
+                    findPredecessors(key, preds, succs); // deleted while linking: snip it back out
+                    return true;
+                }
             }
             return true;
         }
@@ -130,42 +249,57 @@ public class LockFreeSkipList<T> {
 
     @SuppressWarnings("unchecked")
     public boolean delete(int key) {
-        Node<T>[] preds = new Node[MAX_LEVEL];
-        Node<T>[] succs = new Node[MAX_LEVEL];
-        while (true) {
-            if (!find(key, preds, succs)) {
-                continue;
-            }
-            Node<T> succ = succs[0];
-            if (succ == null || succ.key != key || succ.marked) {
-                return false;
-            }
-            succ.marked = true;
-            boolean success = true;
-            for (int level = 0; level < succ.level; level++) {
-                Node<T> next = succ.forward[level].get();
-                if (next == null) {
-                    continue;
-                }
-                if (!preds[level].forward[level].compareAndSet(succ, next)) {
-                    success = false;
-                    break;
-                }
-            }
-            if (success) {
-                return true;
-            }
+        Node<T>[] preds = new Node[MAX_LEVEL_CAP];
+        Node<T>[] succs = new Node[MAX_LEVEL_CAP];
+        findPredecessors(key, preds, succs);
+        Node<T> succ = succs[0];
+        if (succ.key != key || succ == tail) {
+            return false;
+        }
+        // Upper levels first, so the node stays reachable until it is logically removed
+        for (int level = succ.level - 1; level >= 1; level--) {
+            mark(succ, level);
+        }
+        // Only one deleter wins the logical removal
+        if (!mark(succ, 0)) {
+            return false;
+        }
+        size.decrement();
+        heightCounts[succ.level].decrement();
+        // Physical unlink: a second pass snips the marked node out of every level
+        findPredecessors(key, preds, succs);
+        return true;
+    }
+
+    // Striped counter, so it is exact only when no updates are in flight
+    public long size() {
+        return size.sum();
+    }
+
+    public int levelCap() {
+        return levelCap;
+    }
+
+    // Element i is the number of live nodes linked at level i
+    public long[] levelDistribution() {
+        int top = topLevel.get();
+        long[] distribution = new long[top];
+        long atOrAbove = 0;
+        for (int height = top; height >= 1; height--) {
+            atOrAbove += heightCounts[height].sum();
+            distribution[height - 1] = atOrAbove;
         }
+        return distribution;
     }
 
     // Print skiplist for debugging
     public void printSkiplist() {
-        for (int level = MAX_LEVEL - 1; level >= 0; level--) {
+        for (int level = topLevel.get() - 1; level >= 0; level--) {
             System.out.print("Level " + level + ": head --> ");
-            Node<T> curr = head.forward[level].get();
+            Node<T> curr = next(head, level);
             while (curr != tail) {
                 System.out.print("[" + curr.key + "," + curr.value + "] --> ");
-                curr = curr.forward[level].get();
+                curr = successor(curr, level);
             }
             System.out.println("tail");
         }
@@ -192,8 +326,12 @@ public class LockFreeSkipList<T> {
             System.out.println("After insert(2, TwoAgain):");
             skipList.printSkiplist();
             System.out.println("Find 2: " + skipList.find(2));
+            System.out.println("Contains 3: " + skipList.contains(3));
+            skipList.forEach((k, v) -> System.out.println(k + " = " + v));
+            System.out.println("Size: " + skipList.size() + ", levels: "
+                    + Arrays.toString(skipList.levelDistribution()));
         } catch (Exception e) {
             e.printStackTrace();
         }
     }
-}
\ No newline at end of file
+}
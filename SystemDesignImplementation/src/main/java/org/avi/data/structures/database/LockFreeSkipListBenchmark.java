@@ -0,0 +1,100 @@
+package org.avi.data.structures.database;
+
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.LongAdder;
+
+// Throughput comparison of LockFreeSkipList against ConcurrentSkipListMap.
+// Mixed workload: 90% reads, 9% inserts, 1% deletes over a pre-filled key range.
+public class LockFreeSkipListBenchmark {
+    private static final int KEY_RANGE = 1_000_000;
+    private static final int WARMUP_ROUNDS = 3;
+    private static final int MEASURE_ROUNDS = 5;
+    private static final long ROUND_MILLIS = 1_000;
+
+    interface Target {
+        Object get(int key);
+        void put(int key, String value);
+        void remove(int key);
+    }
+
+    public static void main(String[] args) throws InterruptedException {
+        int threads = args.length > 0 ? Integer.parseInt(args[0]) : Runtime.getRuntime().availableProcessors();
+
+        LockFreeSkipList<String> skipList = new LockFreeSkipList<>();
+        ConcurrentSkipListMap<Integer, String> jdkMap = new ConcurrentSkipListMap<>();
+        for (int i = 0; i < KEY_RANGE; i += 2) {
+            skipList.insert(i, "v");
+            jdkMap.put(i, "v");
+        }
+
+        Target lockFree = new Target() {
+            public Object get(int key) { return skipList.find(key); }
+            public void put(int key, String value) { skipList.insert(key, value); }
+            public void remove(int key) { skipList.delete(key); }
+        };
+        Target jdk = new Target() {
+            public Object get(int key) { return jdkMap.get(key); }
+            public void put(int key, String value) { jdkMap.put(key, value); }
+            public void remove(int key) { jdkMap.remove(key); }
+        };
+
+        System.out.println("Threads: " + threads);
+        System.out.printf("LockFreeSkipList      : %,d ops/s%n", measure(lockFree, threads));
+        System.out.printf("ConcurrentSkipListMap : %,d ops/s%n", measure(jdk, threads));
+    }
+
+    private static long measure(Target target, int threads) throws InterruptedException {
+        for (int i = 0; i < WARMUP_ROUNDS; i++) {
+            runRound(target, threads);
+        }
+        long total = 0;
+        for (int i = 0; i < MEASURE_ROUNDS; i++) {
+            total += runRound(target, threads);
+        }
+        return total / MEASURE_ROUNDS;
+    }
+
+    private static long runRound(Target target, int threads) throws InterruptedException {
+        LongAdder ops = new LongAdder();
+        CountDownLatch start = new CountDownLatch(1);
+        Thread[] workers = new Thread[threads];
+        long deadline = System.nanoTime() + ROUND_MILLIS * 1_000_000;
+        for (int t = 0; t < threads; t++) {
+            workers[t] = new Thread(() -> {
+                ThreadLocalRandom random = ThreadLocalRandom.current();
+                long local = 0;
+                Object sink = null;
+                try {
+                    start.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+                while ((local & 1023) != 0 || System.nanoTime() < deadline) {
+                    int key = random.nextInt(KEY_RANGE);
+                    int op = random.nextInt(100);
+                    if (op < 90) {
+                        sink = target.get(key);
+                    } else if (op < 99) {
+                        target.put(key, "v");
+                    } else {
+                        target.remove(key);
+                    }
+                    local++;
+                }
+                ops.add(local);
+                if (sink == LockFreeSkipListBenchmark.class) {
+                    System.out.print(""); // keep reads from being optimized away
+                }
+            });
+            workers[t].start();
+        }
+        start.countDown();
+        for (Thread worker : workers) {
+            worker.join();
+        }
+        return ops.sum() * 1_000 / ROUND_MILLIS;
+    }
+}
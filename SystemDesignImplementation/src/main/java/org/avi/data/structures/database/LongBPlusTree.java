@@ -0,0 +1,168 @@
+package org.avi.data.structures.database;
+
+import java.util.Arrays;
+
+// BPlusTree specialized for long keys: keys live in long[] and are searched
+// with Arrays.binarySearch(long[]), so lookups never box or chase key pointers.
+class LongBPlusTree<V> {
+
+    private static final int DEFAULT_ORDER = 256;
+
+    private final int order;
+
+    abstract class Node {
+        final long[] keys = new long[order];
+        int size;
+        abstract boolean isLeaf();
+    }
+
+    class InternalNode extends Node {
+        @SuppressWarnings("unchecked")
+        final Node[] children = (Node[]) new LongBPlusTree.Node[order + 1];
+        @Override
+        boolean isLeaf() { return false; }
+
+        void insertAt(int index, long key, Node right) {
+            System.arraycopy(keys, index, keys, index + 1, size - index);
+            System.arraycopy(children, index + 1, children, index + 2, size - index);
+            keys[index] = key;
+            children[index + 1] = right;
+            size++;
+        }
+    }
+
+    class LeafNode extends Node {
+        final Object[] values = new Object[order];
+        LeafNode next;
+        @Override
+        boolean isLeaf() { return true; }
+
+        @SuppressWarnings("unchecked")
+        V value(int i) { return (V) values[i]; }
+
+        void insertAt(int index, long key, V value) {
+            System.arraycopy(keys, index, keys, index + 1, size - index);
+            System.arraycopy(values, index, values, index + 1, size - index);
+            keys[index] = key;
+            values[index] = value;
+            size++;
+        }
+    }
+
+    // Separator and new right sibling produced by a split
+    private final class Split {
+        final long key;
+        final Node right;
+
+        Split(long key, Node right) {
+            this.key = key;
+            this.right = right;
+        }
+    }
+
+    private Node root;
+
+    public LongBPlusTree() {
+        this(DEFAULT_ORDER);
+    }
+
+    public LongBPlusTree(int order) {
+        if (order < 3) throw new IllegalArgumentException("order must be >= 3");
+        this.order = order;
+        this.root = new LeafNode();
+    }
+
+    public void insert(long key, V value) {
+        Split split = insert(root, key, value);
+        if (split != null) {
+            InternalNode newRoot = new InternalNode();
+            newRoot.keys[0] = split.key;
+            newRoot.children[0] = root;
+            newRoot.children[1] = split.right;
+            newRoot.size = 1;
+            root = newRoot;
+        }
+    }
+
+    private Split insert(Node node, long key, V value) {
+        if (node.isLeaf()) {
+            LeafNode leaf = (LeafNode) node;
+            int index = Arrays.binarySearch(leaf.keys, 0, leaf.size, key);
+            if (index >= 0) {
+                leaf.values[index] = value;
+                return null;
+            }
+            leaf.insertAt(-index - 1, key, value);
+            return leaf.size > order - 1 ? splitLeaf(leaf) : null;
+        }
+        InternalNode internal = (InternalNode) node;
+        int index = childIndex(internal, key);
+        Split split = insert(internal.children[index], key, value);
+        if (split == null) {
+            return null;
+        }
+        internal.insertAt(index, split.key, split.right);
+        return internal.size > order - 1 ? splitInternal(internal) : null;
+    }
+
+    private int childIndex(InternalNode internal, long key) {
+        int index = Arrays.binarySearch(internal.keys, 0, internal.size, key);
+        return index >= 0 ? index + 1 : -index - 1;
+    }
+
+    private Split splitLeaf(LeafNode leaf) {
+        LeafNode newLeaf = new LeafNode();
+        int mid = leaf.size / 2;
+        int moved = leaf.size - mid;
+        System.arraycopy(leaf.keys, mid, newLeaf.keys, 0, moved);
+        System.arraycopy(leaf.values, mid, newLeaf.values, 0, moved);
+        Arrays.fill(leaf.values, mid, leaf.size, null);
+        newLeaf.size = moved;
+        leaf.size = mid;
+        newLeaf.next = leaf.next;
+        leaf.next = newLeaf;
+        return new Split(newLeaf.keys[0], newLeaf);
+    }
+
+    private Split splitInternal(InternalNode node) {
+        InternalNode newNode = new InternalNode();
+        int mid = node.size / 2;
+        long midKey = node.keys[mid];
+        int moved = node.size - mid - 1;
+
+        System.arraycopy(node.keys, mid + 1, newNode.keys, 0, moved);
+        System.arraycopy(node.children, mid + 1, newNode.children, 0, moved + 1);
+        Arrays.fill(node.children, mid + 1, node.size + 1, null);
+        newNode.size = moved;
+        node.size = mid;
+        return new Split(midKey, newNode);
+    }
+
+    public V search(long key) {
+        Node node = root;
+        while (!node.isLeaf()) {
+            InternalNode internal = (InternalNode) node;
+            node = internal.children[childIndex(internal, key)];
+        }
+        LeafNode leaf = (LeafNode) node;
+        int index = Arrays.binarySearch(leaf.keys, 0, leaf.size, key);
+        return index >= 0 ? leaf.value(index) : null;
+    }
+
+    public static void main(String[] args) {
+        int n = 10_000_000;
+        LongBPlusTree<String> tree = new LongBPlusTree<>();
+        long start = System.nanoTime();
+        for (long i = 0; i < n; i++) {
+            tree.insert(i * 7919 % n, "v");
+        }
+        System.out.println("Inserted " + n + " keys in " + (System.nanoTime() - start) / 1_000_000 + " ms");
+
+        start = System.nanoTime();
+        int hits = 0;
+        for (long i = 0; i < n; i++) {
+            if (tree.search(i) != null) hits++;
+        }
+        System.out.println("Found " + hits + " keys in " + (System.nanoTime() - start) / 1_000_000 + " ms");
+    }
+}
@@ -0,0 +1,343 @@
+package org.avi.data.structures.database;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+// BPlusTree specialized for byte-string keys such as URLs and paths. Each node stores the
+// prefix shared by all of its keys once and packs the remaining suffixes into a single byte[]
+// with an offsets table, so binary search compares bytes in place instead of chasing String
+// pointers. Bytes compare unsigned, which for UTF-8 is code point order.
+// Internal nodes hold the shortest separator between two leaves rather than a full key.
+class PrefixBPlusTree<V> {
+
+    private static final int DEFAULT_ORDER = 128;
+    private static final byte[] EMPTY = new byte[0];
+
+    private final int order;
+
+    abstract class Node {
+        // Longest common prefix of every key in the node
+        byte[] prefix = EMPTY;
+        byte[] suffixes = EMPTY;
+        // Suffix i is suffixes[offsets[i], offsets[i + 1]); one spare slot holds the overflow key before a split
+        final int[] offsets = new int[order + 1];
+        int size;
+        abstract boolean isLeaf();
+
+        int used() {
+            return offsets[size];
+        }
+
+        // Same contract as Arrays.binarySearch
+        int search(byte[] key) {
+            int p = prefix.length;
+            // A key that does not start with the prefix sorts before or after every key here
+            int c = Arrays.compareUnsigned(prefix, 0, p, key, 0, Math.min(p, key.length));
+            if (c > 0) return -1;
+            if (c < 0) return -(size + 1);
+            int lo = 0;
+            int hi = size - 1;
+            while (lo <= hi) {
+                int mid = (lo + hi) >>> 1;
+                int cmp = Arrays.compareUnsigned(suffixes, offsets[mid], offsets[mid + 1], key, p, key.length);
+                if (cmp < 0) {
+                    lo = mid + 1;
+                } else if (cmp > 0) {
+                    hi = mid - 1;
+                } else {
+                    return mid;
+                }
+            }
+            return -(lo + 1);
+        }
+
+        byte[] key(int i) {
+            int length = offsets[i + 1] - offsets[i];
+            byte[] key = Arrays.copyOf(prefix, prefix.length + length);
+            System.arraycopy(suffixes, offsets[i], key, prefix.length, length);
+            return key;
+        }
+
+        void insertKey(int index, byte[] key) {
+            if (size == 0) {
+                prefix = key.clone();
+                offsets[1] = 0;
+                size = 1;
+                return;
+            }
+            int mismatch = Arrays.mismatch(prefix, 0, prefix.length, key, 0, Math.min(prefix.length, key.length));
+            if (mismatch >= 0 && mismatch < prefix.length) {
+                shortenPrefix(mismatch);
+            }
+            int length = key.length - prefix.length;
+            int at = offsets[index];
+            int used = used();
+            if (used + length > suffixes.length) {
+                suffixes = Arrays.copyOf(suffixes, Math.max(used + length, suffixes.length * 2));
+            }
+            System.arraycopy(suffixes, at, suffixes, at + length, used - at);
+            System.arraycopy(key, prefix.length, suffixes, at, length);
+            for (int i = size; i > index; i--) {
+                offsets[i + 1] = offsets[i] + length;
+            }
+            offsets[index + 1] = at + length;
+            size++;
+        }
+
+        // Moves the tail of the prefix back into every suffix
+        private void shortenPrefix(int keep) {
+            int tail = prefix.length - keep;
+            byte[] packed = new byte[used() + size * tail];
+            int pos = 0;
+            for (int i = 0; i < size; i++) {
+                int start = offsets[i];
+                int length = offsets[i + 1] - start;
+                offsets[i] = pos;
+                System.arraycopy(prefix, keep, packed, pos, tail);
+                System.arraycopy(suffixes, start, packed, pos + tail, length);
+                pos += tail + length;
+            }
+            offsets[size] = pos;
+            suffixes = packed;
+            prefix = Arrays.copyOf(prefix, keep);
+        }
+
+        // Replaces this node's keys with keys [from, to) of src, which may be this node, re-deriving
+        // the prefix: in a sorted run it is the common prefix of the first and last key
+        void packFrom(Node src, int from, int to) {
+            int count = to - from;
+            int firstStart = src.offsets[from];
+            int extra = 0;
+            if (count > 0) {
+                int firstEnd = src.offsets[from + 1];
+                int mismatch = Arrays.mismatch(src.suffixes, firstStart, firstEnd,
+                        src.suffixes, src.offsets[to - 1], src.offsets[to]);
+                extra = mismatch < 0 ? firstEnd - firstStart : mismatch;
+            }
+            byte[] srcPrefix = src.prefix;
+            byte[] srcSuffixes = src.suffixes;
+            byte[] packed = new byte[src.offsets[to] - firstStart - count * extra];
+            int pos = 0;
+            for (int i = 0; i < count; i++) {
+                int start = src.offsets[from + i] + extra;
+                int end = src.offsets[from + i + 1];
+                offsets[i] = pos;
+                System.arraycopy(srcSuffixes, start, packed, pos, end - start);
+                pos += end - start;
+            }
+            offsets[count] = pos;
+            byte[] newPrefix = Arrays.copyOf(srcPrefix, srcPrefix.length + extra);
+            System.arraycopy(srcSuffixes, firstStart, newPrefix, srcPrefix.length, extra);
+            prefix = newPrefix;
+            suffixes = packed;
+            size = count;
+        }
+    }
+
+    class InternalNode extends Node {
+        @SuppressWarnings("unchecked")
+        final Node[] children = (Node[]) new PrefixBPlusTree.Node[order + 1];
+        @Override
+        boolean isLeaf() { return false; }
+
+        void insertAt(int index, byte[] key, Node right) {
+            System.arraycopy(children, index + 1, children, index + 2, size - index);
+            children[index + 1] = right;
+            insertKey(index, key);
+        }
+    }
+
+    class LeafNode extends Node {
+        final Object[] values = new Object[order];
+        LeafNode next;
+        @Override
+        boolean isLeaf() { return true; }
+
+        @SuppressWarnings("unchecked")
+        V value(int i) { return (V) values[i]; }
+
+        void insertAt(int index, byte[] key, V value) {
+            System.arraycopy(values, index, values, index + 1, size - index);
+            values[index] = value;
+            insertKey(index, key);
+        }
+    }
+
+    // Separator and new right sibling produced by a split
+    private final class Split {
+        final byte[] key;
+        final Node right;
+
+        Split(byte[] key, Node right) {
+            this.key = key;
+            this.right = right;
+        }
+    }
+
+    private Node root;
+
+    public PrefixBPlusTree() {
+        this(DEFAULT_ORDER);
+    }
+
+    public PrefixBPlusTree(int order) {
+        if (order < 3) throw new IllegalArgumentException("order must be >= 3");
+        this.order = order;
+        this.root = new LeafNode();
+    }
+
+    public void insert(String key, V value) {
+        insert(key.getBytes(StandardCharsets.UTF_8), value);
+    }
+
+    public void insert(byte[] key, V value) {
+        Split split = insert(root, key, value);
+        if (split != null) {
+            InternalNode newRoot = new InternalNode();
+            newRoot.children[0] = root;
+            newRoot.insertAt(0, split.key, split.right);
+            root = newRoot;
+        }
+    }
+
+    private Split insert(Node node, byte[] key, V value) {
+        if (node.isLeaf()) {
+            LeafNode leaf = (LeafNode) node;
+            int index = leaf.search(key);
+            if (index >= 0) {
+                leaf.values[index] = value;
+                return null;
+            }
+            leaf.insertAt(-index - 1, key, value);
+            return leaf.size > order - 1 ? splitLeaf(leaf) : null;
+        }
+        InternalNode internal = (InternalNode) node;
+        int index = childIndex(internal, key);
+        Split split = insert(internal.children[index], key, value);
+        if (split == null) {
+            return null;
+        }
+        internal.insertAt(index, split.key, split.right);
+        return internal.size > order - 1 ? splitInternal(internal) : null;
+    }
+
+    private int childIndex(InternalNode internal, byte[] key) {
+        int index = internal.search(key);
+        return index >= 0 ? index + 1 : -index - 1;
+    }
+
+    private Split splitLeaf(LeafNode leaf) {
+        LeafNode newLeaf = new LeafNode();
+        int mid = leaf.size / 2;
+        int moved = leaf.size - mid;
+        byte[] separator = shortestSeparator(leaf.key(mid - 1), leaf.key(mid));
+        System.arraycopy(leaf.values, mid, newLeaf.values, 0, moved);
+        Arrays.fill(leaf.values, mid, leaf.size, null);
+        newLeaf.packFrom(leaf, mid, leaf.size);
+        leaf.packFrom(leaf, 0, mid);
+        newLeaf.next = leaf.next;
+        leaf.next = newLeaf;
+        return new Split(separator, newLeaf);
+    }
+
+    // Shortest prefix of right that still sorts after left; routes every key >= right to the new leaf
+    private static byte[] shortestSeparator(byte[] left, byte[] right) {
+        int mismatch = Arrays.mismatch(left, right);
+        return Arrays.copyOf(right, mismatch + 1);
+    }
+
+    private Split splitInternal(InternalNode node) {
+        InternalNode newNode = new InternalNode();
+        int mid = node.size / 2;
+        byte[] midKey = node.key(mid);
+        int moved = node.size - mid - 1;
+
+        System.arraycopy(node.children, mid + 1, newNode.children, 0, moved + 1);
+        Arrays.fill(node.children, mid + 1, node.size + 1, null);
+        newNode.packFrom(node, mid + 1, node.size);
+        node.packFrom(node, 0, mid);
+        return new Split(midKey, newNode);
+    }
+
+    public V search(String key) {
+        return search(key.getBytes(StandardCharsets.UTF_8));
+    }
+
+    public V search(byte[] key) {
+        Node node = root;
+        while (!node.isLeaf()) {
+            InternalNode internal = (InternalNode) node;
+            node = internal.children[childIndex(internal, key)];
+        }
+        LeafNode leaf = (LeafNode) node;
+        int index = leaf.search(key);
+        return index >= 0 ? leaf.value(index) : null;
+    }
+
+    // Bytes held by prefixes and packed suffixes across all nodes
+    public long keyBytes() {
+        return keyBytes(root);
+    }
+
+    private long keyBytes(Node node) {
+        long bytes = node.prefix.length + node.used();
+        if (!node.isLeaf()) {
+            InternalNode internal = (InternalNode) node;
+            for (int i = 0; i <= internal.size; i++) {
+                bytes += keyBytes(internal.children[i]);
+            }
+        }
+        return bytes;
+    }
+
+    public static void main(String[] args) {
+        int n = 1_000_000;
+        List<String> urls = new ArrayList<>(n);
+        long rawBytes = 0;
+        for (int i = 0; i < n; i++) {
+            String url = "https://shop.example.com/catalog/" + (i % 50) + "/products/item-" + i + "/reviews";
+            urls.add(url);
+            rawBytes += url.length();
+        }
+        Collections.shuffle(urls);
+
+        PrefixBPlusTree<Integer> prefixTree = new PrefixBPlusTree<>();
+        long start = System.nanoTime();
+        for (int i = 0; i < n; i++) {
+            prefixTree.insert(urls.get(i), i);
+        }
+        System.out.println("PrefixBPlusTree inserted " + n + " keys in " + (System.nanoTime() - start) / 1_000_000 + " ms");
+
+        BPlusTree<String, Integer> stringTree = new BPlusTree<>();
+        start = System.nanoTime();
+        for (int i = 0; i < n; i++) {
+            stringTree.insert(urls.get(i), i);
+        }
+        System.out.println("BPlusTree<String> inserted " + n + " keys in " + (System.nanoTime() - start) / 1_000_000 + " ms");
+
+        // Lookups start from fresh byte[] keys so neither tree benefits from cached String hashes or identity
+        List<byte[]> probes = new ArrayList<>(n);
+        for (String url : urls) {
+            probes.add(url.getBytes(StandardCharsets.UTF_8));
+        }
+        start = System.nanoTime();
+        int hits = 0;
+        for (byte[] probe : probes) {
+            if (prefixTree.search(probe) != null) hits++;
+        }
+        System.out.println("PrefixBPlusTree found " + hits + " keys in " + (System.nanoTime() - start) / 1_000_000 + " ms");
+
+        start = System.nanoTime();
+        hits = 0;
+        for (byte[] probe : probes) {
+            if (stringTree.search(new String(probe, StandardCharsets.UTF_8)) != null) hits++;
+        }
+        System.out.println("BPlusTree<String> found " + hits + " keys in " + (System.nanoTime() - start) / 1_000_000 + " ms");
+
+        System.out.printf("Key bytes: %,d raw vs %,d prefix-compressed (%.1f%%)%n",
+                rawBytes, prefixTree.keyBytes(), 100.0 * prefixTree.keyBytes() / rawBytes);
+    }
+}
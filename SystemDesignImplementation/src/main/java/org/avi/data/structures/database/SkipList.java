@@ -1,11 +1,24 @@
 package org.avi.data.structures.database;
 
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
 import java.util.Random;
 
-public class SkipList<K extends Comparable<K>, V> {
-    private static final int MAX_LEVEL = 16;
-    private final Node<K, V> head = new Node<>(null, null, MAX_LEVEL);
+public class SkipList<K extends Comparable<K>, V> implements Iterable<Map.Entry<K, V>> {
+    private static final int MIN_LEVEL_CAP = 16;
+    private static final int MAX_LEVEL_CAP = 48;
+    private final Node<K, V> head = new Node<>(null, null, MIN_LEVEL_CAP);
     private int level = 0;
+    // Tracks log2(size) so the upper levels stay sparse past 2^16 entries; the head grows with it
+    private int levelCap = MIN_LEVEL_CAP;
+    private long size;
+    private final long[] heightCounts = new long[MAX_LEVEL_CAP + 1];
     private final Random random = new Random();
 
     private static class Node<K, V> {
@@ -23,12 +36,30 @@ public class SkipList<K extends Comparable<K>, V> {
 
     private int randomLevel() {
         int lvl = 1;
-        while (random.nextBoolean() && lvl < MAX_LEVEL) {
+        while (random.nextBoolean() && lvl < levelCap) {
             lvl++;
         }
         return lvl;
     }
 
+    static int levelCapFor(long n) {
+        return Math.max(MIN_LEVEL_CAP, Math.min(MAX_LEVEL_CAP, 64 - Long.numberOfLeadingZeros(n)));
+    }
+
+    // Raises the cap for a list about to hold n entries, extending the head node
+    private void ensureLevelCap(long n) {
+        int cap = levelCapFor(n);
+        if (cap > levelCap) {
+            levelCap = cap;
+            head.forward = Arrays.copyOf(head.forward, cap);
+        }
+    }
+
+    private void nodeAdded(int height) {
+        size++;
+        heightCounts[height]++;
+    }
+
     public V search(K key) {
         Node<K, V> x = head;
         for (int i = level - 1; i >= 0; i--) {
@@ -44,7 +75,7 @@ public class SkipList<K extends Comparable<K>, V> {
     }
 
     public void insert(K key, V value) {
-        Node<K, V>[] update = new Node[MAX_LEVEL];
+        Node<K, V>[] update = new Node[levelCap];
         Node<K, V> x = head;
 
         for (int i = level - 1; i >= 0; i--) {
@@ -58,6 +89,10 @@ public class SkipList<K extends Comparable<K>, V> {
         if (x != null && x.key.equals(key)) {
             x.value = value;  // Update value
         } else {
+            ensureLevelCap(size + 1);
+            if (update.length < levelCap) {
+                update = Arrays.copyOf(update, levelCap);
+            }
             int lvl = randomLevel();
             if (lvl > level) {
                 for (int i = level; i < lvl; i++) {
@@ -70,11 +105,110 @@ public class SkipList<K extends Comparable<K>, V> {
                 newNode.forward[i] = update[i].forward[i];
                 update[i].forward[i] = newNode;
             }
+            nodeAdded(lvl);
+        }
+    }
+
+    /**
+     * Builds the list from strictly ascending input in one linear pass, keeping a tail pointer
+     * per level. Every 2^k-th node is promoted to level k+1, giving the ideal skip list shape
+     * without drawing random levels. Duplicate adjacent keys keep the last value.
+     */
+    @SuppressWarnings("unchecked")
+    public void bulkLoad(Iterator<Map.Entry<K, V>> sorted) {
+        if (head.forward[0] != null) {
+            throw new IllegalStateException("bulkLoad requires an empty skip list");
+        }
+        Node<K, V>[] tails = new Node[levelCap];
+        Arrays.fill(tails, head);
+        Node<K, V> last = null;
+        long count = 0;
+        while (sorted.hasNext()) {
+            Map.Entry<K, V> entry = sorted.next();
+            K key = entry.getKey();
+            if (last != null) {
+                int cmp = last.key.compareTo(key);
+                if (cmp == 0) {
+                    last.value = entry.getValue();
+                    continue;
+                }
+                if (cmp > 0) {
+                    throw new IllegalArgumentException("bulkLoad input is not sorted at key " + key);
+                }
+            }
+            count++;
+            ensureLevelCap(count);
+            if (tails.length < levelCap) {
+                int old = tails.length;
+                tails = Arrays.copyOf(tails, levelCap);
+                Arrays.fill(tails, old, levelCap, head);
+            }
+            int lvl = Math.min(levelCap, Long.numberOfTrailingZeros(count) + 1);
+            Node<K, V> node = new Node<>(key, entry.getValue(), lvl);
+            for (int i = 0; i < lvl; i++) {
+                tails[i].forward[i] = node;
+                tails[i] = node;
+            }
+            if (lvl > level) {
+                level = lvl;
+            }
+            nodeAdded(lvl);
+            last = node;
+        }
+    }
+
+    /**
+     * Inserts an unsorted batch: sorts it, then merges it into the list in a single forward
+     * sweep. Each search resumes from the previous key's predecessors instead of the head.
+     * For equal keys in the batch the last one wins.
+     */
+    @SuppressWarnings("unchecked")
+    public void insertAll(Collection<? extends Map.Entry<K, V>> entries) {
+        List<Map.Entry<K, V>> batch = new ArrayList<>(entries);
+        batch.sort(Map.Entry.comparingByKey()); // stable, so later duplicates stay later
+
+        Node<K, V>[] update = new Node[levelCap];
+        Arrays.fill(update, head);
+        for (Map.Entry<K, V> entry : batch) {
+            K key = entry.getKey();
+            Node<K, V> x = head;
+            for (int i = level - 1; i >= 0; i--) {
+                // Finger search: resume from whichever of the two is further along
+                if (update[i] != head && (x == head || update[i].key.compareTo(x.key) > 0)) {
+                    x = update[i];
+                }
+                while (x.forward[i] != null && x.forward[i].key.compareTo(key) < 0) {
+                    x = x.forward[i];
+                }
+                update[i] = x;
+            }
+
+            x = update[0].forward[0];
+            if (x != null && x.key.equals(key)) {
+                x.value = entry.getValue();
+                continue;
+            }
+            ensureLevelCap(size + 1);
+            if (update.length < levelCap) {
+                int old = update.length;
+                update = Arrays.copyOf(update, levelCap);
+                Arrays.fill(update, old, levelCap, head);
+            }
+            int lvl = randomLevel();
+            if (lvl > level) {
+                level = lvl; // update[level..lvl) still point at head
+            }
+            Node<K, V> newNode = new Node<>(key, entry.getValue(), lvl);
+            for (int i = 0; i < lvl; i++) {
+                newNode.forward[i] = update[i].forward[i];
+                update[i].forward[i] = newNode;
+            }
+            nodeAdded(lvl);
         }
     }
 
     public void delete(K key) {
-        Node<K, V>[] update = new Node[MAX_LEVEL];
+        Node<K, V>[] update = new Node[levelCap];
         Node<K, V> x = head;
 
         for (int i = level - 1; i >= 0; i--) {
@@ -93,7 +227,49 @@ public class SkipList<K extends Comparable<K>, V> {
             while (level > 0 && head.forward[level - 1] == null) {
                 level--;
             }
+            size--;
+            heightCounts[x.forward.length]--;
+        }
+    }
+
+    public long size() {
+        return size;
+    }
+
+    public int levelCap() {
+        return levelCap;
+    }
+
+    // Element i is the number of nodes linked at level i; roughly size / 2^i when well balanced
+    public long[] levelDistribution() {
+        long[] distribution = new long[level];
+        long atOrAbove = 0;
+        for (int height = level; height >= 1; height--) {
+            atOrAbove += heightCounts[height];
+            distribution[height - 1] = atOrAbove;
         }
+        return distribution;
+    }
+
+    // Ascending iteration over the bottom level
+    @Override
+    public Iterator<Map.Entry<K, V>> iterator() {
+        return new Iterator<>() {
+            private Node<K, V> next = head.forward[0];
+
+            @Override
+            public boolean hasNext() {
+                return next != null;
+            }
+
+            @Override
+            public Map.Entry<K, V> next() {
+                if (next == null) throw new NoSuchElementException();
+                Node<K, V> node = next;
+                next = node.forward[0];
+                return new AbstractMap.SimpleImmutableEntry<>(node.key, node.value);
+            }
+        };
     }
 
     public static void main(String[] args) {
@@ -107,5 +283,17 @@ public class SkipList<K extends Comparable<K>, V> {
         System.out.println("Search 7: " + skipList.search(7));
         skipList.delete(10);
         System.out.println("Search 10: " + skipList.search(10));
+
+        SkipList<Integer, String> loaded = new SkipList<>();
+        List<Map.Entry<Integer, String>> sorted = new ArrayList<>();
+        for (int i = 0; i < 100; i += 2) {
+            sorted.add(Map.entry(i, "v" + i));
+        }
+        loaded.bulkLoad(sorted.iterator());
+        loaded.insertAll(List.of(Map.entry(7, "seven"), Map.entry(3, "three"), Map.entry(42, "answer")));
+        System.out.println("Search 3: " + loaded.search(3));
+        System.out.println("Search 42: " + loaded.search(42));
+        System.out.println("Search 98: " + loaded.search(98));
+        System.out.println("Size: " + loaded.size() + ", levels: " + Arrays.toString(loaded.levelDistribution()));
     }
 }
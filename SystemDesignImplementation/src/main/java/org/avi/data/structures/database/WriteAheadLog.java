@@ -0,0 +1,312 @@
+package org.avi.data.structures.database;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.zip.CRC32C;
+
+/**
+ * Append-only write-ahead log with group commit.
+ *
+ * Record: [bodyLen int][crc32c int][type byte][keyLen int][key][valueLen int][value].
+ * Appenders copy their record into a shared buffer; whichever thread finds no I/O in
+ * progress becomes the leader and writes (and fsyncs) everything buffered so far, so
+ * writers arriving during an fsync are committed together by the next one.
+ */
+public class WriteAheadLog implements AutoCloseable {
+    public enum SyncPolicy {
+        EVERY_WRITE, // append returns once the record is fsynced
+        INTERVAL,    // a background thread fsyncs every syncIntervalMillis
+        OS           // records are handed to the OS page cache, never fsynced explicitly
+    }
+
+    @FunctionalInterface
+    public interface RecordHandler {
+        // value is null for a delete
+        void onRecord(byte[] key, byte[] value);
+    }
+
+    private static final byte PUT = 1;
+    private static final byte DELETE = 2;
+    private static final int HEADER_SIZE = 8;
+    private static final int INITIAL_BUFFER = 1 << 16;
+    private static final int INTERVAL_FLUSH_THRESHOLD = 1 << 20;
+
+    private final Path path;
+    private final FileChannel channel;
+    private final SyncPolicy policy;
+    private final ScheduledExecutorService syncer;
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition ioDone = lock.newCondition();
+    private ByteBuffer pending = ByteBuffer.allocate(INITIAL_BUFFER);
+    private ByteBuffer spare = ByteBuffer.allocate(INITIAL_BUFFER);
+    private long appendedPosition;
+    private long writtenPosition;
+    private long syncedPosition;
+    private boolean ioInProgress;
+    private IOException failure;
+    private boolean closed;
+
+    public WriteAheadLog(Path path, SyncPolicy policy, long syncIntervalMillis) throws IOException {
+        this.path = path;
+        this.policy = policy;
+        // Drop a torn tail left by a crash before appending after it
+        long validLength = Files.exists(path) ? replay(path, (k, v) -> { }) : 0;
+        this.channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+        channel.truncate(validLength);
+        channel.position(validLength);
+        appendedPosition = writtenPosition = syncedPosition = validLength;
+
+        if (policy == SyncPolicy.INTERVAL) {
+            if (syncIntervalMillis <= 0) throw new IllegalArgumentException("syncIntervalMillis must be > 0");
+            syncer = Executors.newSingleThreadScheduledExecutor(r -> {
+                Thread t = new Thread(r, "wal-sync");
+                t.setDaemon(true);
+                return t;
+            });
+            syncer.scheduleWithFixedDelay(this::backgroundSync, syncIntervalMillis, syncIntervalMillis,
+                    TimeUnit.MILLISECONDS);
+        } else {
+            syncer = null;
+        }
+    }
+
+    /**
+     * Replays every intact record in order and returns the length of the valid prefix.
+     * Replay stops at the first truncated or corrupt record.
+     */
+    public static long replay(Path path, RecordHandler handler) throws IOException {
+        try (FileChannel in = FileChannel.open(path, StandardOpenOption.READ)) {
+            long size = in.size();
+            if (size == 0) return 0;
+            MappedByteBuffer buf = in.map(FileChannel.MapMode.READ_ONLY, 0, size);
+            CRC32C crc = new CRC32C();
+            while (buf.remaining() >= HEADER_SIZE) {
+                int start = buf.position();
+                int bodyLen = buf.getInt();
+                int checksum = buf.getInt();
+                if (bodyLen < 5 || bodyLen > buf.remaining()) {
+                    return start;
+                }
+                ByteBuffer body = buf.slice(buf.position(), bodyLen);
+                crc.reset();
+                crc.update(body.duplicate());
+                if ((int) crc.getValue() != checksum) {
+                    return start;
+                }
+                byte type = body.get();
+                byte[] key = new byte[body.getInt()];
+                body.get(key);
+                byte[] value = null;
+                if (type == PUT) {
+                    value = new byte[body.getInt()];
+                    body.get(value);
+                }
+                handler.onRecord(key, value);
+                buf.position(start + HEADER_SIZE + bodyLen);
+            }
+            return buf.position();
+        }
+    }
+
+    // Buffers a record and returns its end position; pass it to awaitDurable()
+    public long appendPut(byte[] key, byte[] value) throws IOException {
+        return append(PUT, key, value);
+    }
+
+    public long appendDelete(byte[] key) throws IOException {
+        return append(DELETE, key, null);
+    }
+
+    // Append + wait according to the sync policy
+    public void put(byte[] key, byte[] value) throws IOException {
+        awaitDurable(appendPut(key, value));
+    }
+
+    public void delete(byte[] key) throws IOException {
+        awaitDurable(appendDelete(key));
+    }
+
+    private long append(byte type, byte[] key, byte[] value) throws IOException {
+        int bodyLen = 1 + 4 + key.length + (value != null ? 4 + value.length : 0);
+        ByteBuffer record = ByteBuffer.allocate(HEADER_SIZE + bodyLen);
+        record.putInt(bodyLen).putInt(0).put(type).putInt(key.length).put(key);
+        if (value != null) {
+            record.putInt(value.length).put(value);
+        }
+        CRC32C crc = new CRC32C();
+        crc.update(record.array(), HEADER_SIZE, bodyLen);
+        record.putInt(4, (int) crc.getValue());
+        record.flip();
+
+        lock.lock();
+        try {
+            checkUsable();
+            if (pending.remaining() < record.remaining()) {
+                ByteBuffer grown = ByteBuffer.allocate(Math.max(pending.capacity() * 2, pending.position() + record.remaining()));
+                pending.flip();
+                grown.put(pending);
+                pending = grown;
+            }
+            pending.put(record);
+            appendedPosition += HEADER_SIZE + bodyLen;
+            return appendedPosition;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Blocks until the record ending at position is as durable as the policy promises:
+     * fsynced for EVERY_WRITE, written to the OS for OS, and buffered for INTERVAL.
+     */
+    public void awaitDurable(long position) throws IOException {
+        lock.lock();
+        try {
+            switch (policy) {
+                case EVERY_WRITE -> persist(position, true);
+                case OS -> persist(position, false);
+                case INTERVAL -> {
+                    if (pending.position() >= INTERVAL_FLUSH_THRESHOLD) {
+                        persist(position, false);
+                    }
+                }
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Forces everything appended so far to disk
+    public void sync() throws IOException {
+        lock.lock();
+        try {
+            persist(appendedPosition, true);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Caller holds lock. Leader/follower loop: one thread does the I/O, the rest wait for it.
+    private void persist(long position, boolean force) throws IOException {
+        while ((force ? syncedPosition : writtenPosition) < position) {
+            checkFailure();
+            if (ioInProgress) {
+                ioDone.awaitUninterruptibly();
+                continue;
+            }
+            ioInProgress = true;
+            ByteBuffer batch = pending;
+            pending = spare;
+            long batchEnd = appendedPosition;
+            IOException error = null;
+            lock.unlock();
+            try {
+                batch.flip();
+                while (batch.hasRemaining()) {
+                    channel.write(batch);
+                }
+                if (force) {
+                    channel.force(false);
+                }
+            } catch (IOException e) {
+                error = e;
+            } finally {
+                lock.lock();
+                batch.clear();
+                spare = batch;
+                ioInProgress = false;
+                if (error == null) {
+                    writtenPosition = batchEnd;
+                    if (force) syncedPosition = batchEnd;
+                } else {
+                    failure = error;
+                }
+                ioDone.signalAll();
+            }
+        }
+    }
+
+    private void backgroundSync() {
+        lock.lock();
+        try {
+            if (!closed && failure == null) {
+                persist(appendedPosition, true);
+            }
+        } catch (IOException ignored) {
+            // recorded in failure, surfaced to the next appender
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void checkUsable() throws IOException {
+        if (closed) throw new IllegalStateException("WAL is closed");
+        checkFailure();
+    }
+
+    private void checkFailure() throws IOException {
+        if (failure != null) throw new IOException("WAL write failed", failure);
+    }
+
+    public Path path() {
+        return path;
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (syncer != null) {
+            syncer.shutdown();
+        }
+        lock.lock();
+        try {
+            if (closed) return;
+            persist(appendedPosition, policy != SyncPolicy.OS);
+            closed = true;
+            channel.close();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public static void main(String[] args) throws IOException {
+        Path file = Files.createTempFile("skiplist", ".log");
+        try (WriteAheadLog wal = new WriteAheadLog(file, SyncPolicy.EVERY_WRITE, 0)) {
+            SkipList<String, String> skipList = new SkipList<>();
+            for (int i = 0; i < 5; i++) {
+                String key = "k" + i;
+                String value = "v" + i;
+                wal.put(key.getBytes(StandardCharsets.UTF_8), value.getBytes(StandardCharsets.UTF_8));
+                skipList.insert(key, value); // log first, then apply
+            }
+            wal.delete("k2".getBytes(StandardCharsets.UTF_8));
+            skipList.delete("k2");
+        }
+
+        // Recovery: rebuild the skip list from the log
+        SkipList<String, String> recovered = new SkipList<>();
+        long valid = replay(file, (key, value) -> {
+            String k = new String(key, StandardCharsets.UTF_8);
+            if (value == null) {
+                recovered.delete(k);
+            } else {
+                recovered.insert(k, new String(value, StandardCharsets.UTF_8));
+            }
+        });
+        System.out.println("Replayed " + valid + " bytes");
+        System.out.println("Search k1: " + recovered.search("k1"));
+        System.out.println("Search k2: " + recovered.search("k2"));
+        Files.delete(file);
+    }
+}
@@ -0,0 +1,499 @@
+package org.avi.data.structures.database.lsm;
+
+import org.avi.data.structures.database.SkipList;
+import org.avi.data.structures.database.WriteAheadLog;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Objects;
+import java.util.PriorityQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Embedded log-structured merge store.
+ *
+ * Writes are logged to a {@link WriteAheadLog} and then applied to a {@link SkipList}
+ * memtable; every memtable has its own log, deleted once the memtable is flushed. A full memtable is frozen and flushed by a
+ * background thread into an {@link SSTable}; a second background thread merges runs of
+ * similarly sized tables (size-tiered compaction). Reads check the active memtable, the
+ * frozen memtables and then the tables, newest first. On open, leftover logs are replayed
+ * and flushed before the store accepts writes.
+ */
+public class LSMStore implements AutoCloseable {
+    // Deletion marker, compared by identity
+    static final byte[] TOMBSTONE = new byte[0];
+
+    private static final long DEFAULT_MEMTABLE_BYTES = 4L << 20;
+    private static final int DEFAULT_COMPACTION_THRESHOLD = 4;
+    private static final int MAX_IMMUTABLE_MEMTABLES = 2;
+    private static final int ENTRY_OVERHEAD = 64; // rough per-node cost of the skip list
+    private static final int TIER_RATIO = 4;
+    private static final String TABLE_SUFFIX = ".sst";
+    private static final String LOG_SUFFIX = ".log";
+
+    private final Path dir;
+    private final long memtableBytes;
+    private final int compactionThreshold;
+    private final WriteAheadLog.SyncPolicy syncPolicy;
+    private final long syncIntervalMillis;
+
+    // Guards the active memtable; SkipList itself is not thread-safe
+    private final ReentrantReadWriteLock memLock = new ReentrantReadWriteLock();
+    private final Condition flushed = memLock.writeLock().newCondition();
+    private SkipList<String, byte[]> active = new SkipList<>();
+    private WriteAheadLog activeWal;
+    private long activeBytes;
+    private int activeEntries;
+
+    // Copy-on-write snapshot of frozen memtables and tables, replaced under versionLock
+    private final Object versionLock = new Object();
+    private volatile Version version;
+    // Readers hold the read side while touching table files; compaction closes files under the write side
+    private final ReentrantReadWriteLock fileLock = new ReentrantReadWriteLock();
+
+    private final ExecutorService flushExecutor = Executors.newSingleThreadExecutor(r -> daemon(r, "lsm-flush"));
+    private final ExecutorService compactionExecutor = Executors.newSingleThreadExecutor(r -> daemon(r, "lsm-compaction"));
+    private final AtomicLong nextFileNumber;
+    private final AtomicLong nextSeq;
+    private volatile IOException backgroundError;
+    private volatile boolean closed;
+
+    private static final class Memtable {
+        final SkipList<String, byte[]> entries;
+        final int count;
+        final WriteAheadLog wal;
+
+        Memtable(SkipList<String, byte[]> entries, int count, WriteAheadLog wal) {
+            this.entries = entries;
+            this.count = count;
+            this.wal = wal;
+        }
+    }
+
+    private static final class Version {
+        final List<Memtable> immutables; // newest first
+        final List<SSTable> tables;      // newest first
+
+        Version(List<Memtable> immutables, List<SSTable> tables) {
+            this.immutables = Collections.unmodifiableList(immutables);
+            this.tables = Collections.unmodifiableList(tables);
+        }
+    }
+
+    public LSMStore(Path dir) throws IOException {
+        this(dir, DEFAULT_MEMTABLE_BYTES, DEFAULT_COMPACTION_THRESHOLD);
+    }
+
+    public LSMStore(Path dir, long memtableBytes, int compactionThreshold) throws IOException {
+        this(dir, memtableBytes, compactionThreshold, WriteAheadLog.SyncPolicy.EVERY_WRITE, 0);
+    }
+
+    public LSMStore(Path dir, long memtableBytes, int compactionThreshold,
+                    WriteAheadLog.SyncPolicy syncPolicy, long syncIntervalMillis) throws IOException {
+        if (memtableBytes <= 0) throw new IllegalArgumentException("memtableBytes must be > 0");
+        if (compactionThreshold < 2) throw new IllegalArgumentException("compactionThreshold must be >= 2");
+        this.dir = dir;
+        this.memtableBytes = memtableBytes;
+        this.compactionThreshold = compactionThreshold;
+        this.syncPolicy = syncPolicy;
+        this.syncIntervalMillis = syncIntervalMillis;
+
+        Files.createDirectories(dir);
+        List<SSTable> tables = new ArrayList<>();
+        List<Path> logs = new ArrayList<>();
+        long maxFile = 0;
+        long maxSeq = 0;
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(dir)) {
+            for (Path file : files) {
+                String name = file.getFileName().toString();
+                if (name.endsWith(".tmp")) {
+                    Files.delete(file); // unfinished flush or compaction
+                } else if (name.endsWith(TABLE_SUFFIX)) {
+                    SSTable table = SSTable.open(file);
+                    tables.add(table);
+                    maxFile = Math.max(maxFile, Long.parseLong(name.substring(0, name.length() - TABLE_SUFFIX.length())));
+                    maxSeq = Math.max(maxSeq, table.seq());
+                } else if (name.endsWith(LOG_SUFFIX)) {
+                    logs.add(file);
+                    maxFile = Math.max(maxFile, Long.parseLong(name.substring(0, name.length() - LOG_SUFFIX.length())));
+                }
+            }
+        }
+        tables.sort(Comparator.comparingLong(SSTable::seq).reversed());
+        this.nextFileNumber = new AtomicLong(maxFile + 1);
+        this.nextSeq = new AtomicLong(maxSeq + 1);
+
+        // Logs are numbered in creation order; each one becomes a table newer than everything before it
+        logs.sort(Comparator.comparing(Path::getFileName));
+        for (Path log : logs) {
+            SkipList<String, byte[]> recovered = new SkipList<>();
+            int[] count = new int[1];
+            WriteAheadLog.replay(log, (key, value) -> {
+                recovered.insert(new String(key, StandardCharsets.UTF_8), value != null ? value : TOMBSTONE);
+                count[0]++;
+            });
+            if (count[0] > 0) {
+                tables.add(0, SSTable.write(newTablePath(), recovered.iterator(), count[0], nextSeq.getAndIncrement()));
+            }
+            Files.delete(log);
+        }
+        this.version = new Version(new ArrayList<>(), tables);
+        this.activeWal = newWal();
+        compactionExecutor.execute(this::compact);
+    }
+
+    private static Thread daemon(Runnable r, String name) {
+        Thread t = new Thread(r, name);
+        t.setDaemon(true);
+        return t;
+    }
+
+    public void put(String key, byte[] value) throws IOException {
+        Objects.requireNonNull(key, "key");
+        Objects.requireNonNull(value, "value");
+        write(key, value);
+    }
+
+    public void delete(String key) throws IOException {
+        Objects.requireNonNull(key, "key");
+        write(key, TOMBSTONE);
+    }
+
+    private void write(String key, byte[] value) throws IOException {
+        checkOpen();
+        byte[] keyBytes = key.getBytes(StandardCharsets.UTF_8);
+        WriteAheadLog wal;
+        long position;
+        memLock.writeLock().lock();
+        try {
+            // Log order must match memtable order, so the record is buffered under the lock
+            wal = activeWal;
+            position = value == TOMBSTONE ? wal.appendDelete(keyBytes) : wal.appendPut(keyBytes, value);
+            active.insert(key, value);
+            activeBytes += 2L * key.length() + value.length + ENTRY_OVERHEAD;
+            activeEntries++;
+            if (activeBytes >= memtableBytes) {
+                rotate(false);
+            }
+        } finally {
+            memLock.writeLock().unlock();
+        }
+        // Wait outside the lock so concurrent writers share one fsync
+        wal.awaitDurable(position);
+    }
+
+    // Freezes the active memtable and hands it to the flush thread. Caller holds the memLock write lock.
+    private void rotate(boolean force) throws IOException {
+        while (version.immutables.size() >= MAX_IMMUTABLE_MEMTABLES) {
+            checkBackgroundError();
+            try {
+                flushed.await(); // backpressure: writers wait for the flusher to catch up
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while waiting for memtable flush");
+            }
+        }
+        // Another writer may have rotated while we waited
+        if (activeEntries == 0 || (!force && activeBytes < memtableBytes)) {
+            return;
+        }
+        WriteAheadLog nextWal = newWal();
+        Memtable frozen = new Memtable(active, activeEntries, activeWal);
+        synchronized (versionLock) {
+            List<Memtable> immutables = new ArrayList<>(version.immutables);
+            immutables.add(0, frozen);
+            version = new Version(immutables, version.tables);
+        }
+        active = new SkipList<>();
+        activeWal = nextWal;
+        activeBytes = 0;
+        activeEntries = 0;
+        flushExecutor.execute(() -> flush(frozen));
+    }
+
+    private void flush(Memtable frozen) {
+        try {
+            SSTable table = SSTable.write(newTablePath(), frozen.entries.iterator(), frozen.count,
+                    nextSeq.getAndIncrement());
+            synchronized (versionLock) {
+                List<Memtable> immutables = new ArrayList<>(version.immutables);
+                immutables.remove(frozen);
+                List<SSTable> tables = new ArrayList<>(version.tables);
+                tables.add(0, table);
+                version = new Version(immutables, tables);
+            }
+            // The table is durable now, so the log is no longer needed
+            frozen.wal.close();
+            Files.delete(frozen.wal.path());
+            compactionExecutor.execute(this::compact);
+        } catch (IOException e) {
+            backgroundError = e;
+        } finally {
+            memLock.writeLock().lock();
+            try {
+                flushed.signalAll();
+            } finally {
+                memLock.writeLock().unlock();
+            }
+        }
+    }
+
+    /**
+     * Returns the newest value for the key, or null if it was never written or has been deleted.
+     */
+    public byte[] get(String key) throws IOException {
+        Objects.requireNonNull(key, "key");
+        if (closed) throw new IllegalStateException("Store is closed");
+        fileLock.readLock().lock();
+        try {
+            byte[] value;
+            Version v;
+            memLock.readLock().lock();
+            try {
+                value = active.search(key);
+                v = version;
+            } finally {
+                memLock.readLock().unlock();
+            }
+            if (value == null) {
+                for (Memtable memtable : v.immutables) {
+                    value = memtable.entries.search(key);
+                    if (value != null) break;
+                }
+            }
+            if (value == null) {
+                for (SSTable table : v.tables) {
+                    value = table.get(key);
+                    if (value != null) break;
+                }
+            }
+            return value == TOMBSTONE ? null : value;
+        } finally {
+            fileLock.readLock().unlock();
+        }
+    }
+
+    private void compact() {
+        try {
+            List<SSTable> run;
+            while (!closed && (run = pickRun(version.tables)) != null) {
+                compactRun(run);
+            }
+        } catch (IOException e) {
+            backgroundError = e;
+        } catch (UncheckedIOException e) {
+            backgroundError = e.getCause();
+        }
+    }
+
+    // Size-tiered selection: the first run of adjacent tables whose sizes stay within TIER_RATIO
+    private List<SSTable> pickRun(List<SSTable> tables) {
+        for (int start = 0; start + compactionThreshold <= tables.size(); start++) {
+            long min = tables.get(start).fileSize();
+            long max = min;
+            int end = start + 1;
+            while (end < tables.size()) {
+                long size = tables.get(end).fileSize();
+                if (Math.max(max, size) > Math.min(min, size) * TIER_RATIO) break;
+                min = Math.min(min, size);
+                max = Math.max(max, size);
+                end++;
+            }
+            if (end - start >= compactionThreshold) {
+                return new ArrayList<>(tables.subList(start, end));
+            }
+        }
+        return null;
+    }
+
+    private void compactRun(List<SSTable> inputs) throws IOException {
+        // Only the compaction thread removes tables, so the oldest table stays oldest while we merge
+        List<SSTable> current = version.tables;
+        boolean dropTombstones = inputs.get(inputs.size() - 1) == current.get(current.size() - 1);
+        long expected = 0;
+        List<Iterator<Map.Entry<String, byte[]>>> sources = new ArrayList<>();
+        for (SSTable input : inputs) {
+            expected += input.entryCount();
+            sources.add(input.iterator());
+        }
+        // The merged table takes the place of its newest input
+        SSTable output = SSTable.write(newTablePath(), new MergingIterator(sources, dropTombstones),
+                (int) Math.min(expected, Integer.MAX_VALUE / 16), inputs.get(0).seq());
+
+        synchronized (versionLock) {
+            List<SSTable> tables = new ArrayList<>(version.tables);
+            int position = tables.indexOf(inputs.get(0));
+            tables.removeAll(inputs);
+            tables.add(position, output);
+            version = new Version(version.immutables, tables);
+        }
+        fileLock.writeLock().lock();
+        try {
+            for (SSTable input : inputs) {
+                input.close();
+                Files.deleteIfExists(input.path());
+            }
+        } finally {
+            fileLock.writeLock().unlock();
+        }
+    }
+
+    private Path newTablePath() {
+        return dir.resolve(String.format("%06d%s", nextFileNumber.getAndIncrement(), TABLE_SUFFIX));
+    }
+
+    private WriteAheadLog newWal() throws IOException {
+        Path path = dir.resolve(String.format("%06d%s", nextFileNumber.getAndIncrement(), LOG_SUFFIX));
+        return new WriteAheadLog(path, syncPolicy, syncIntervalMillis);
+    }
+
+    private void checkOpen() throws IOException {
+        if (closed) throw new IllegalStateException("Store is closed");
+        checkBackgroundError();
+    }
+
+    private void checkBackgroundError() throws IOException {
+        IOException error = backgroundError;
+        if (error != null) {
+            throw new IOException("Background flush or compaction failed", error);
+        }
+    }
+
+    public int sstableCount() {
+        return version.tables.size();
+    }
+
+    // Flushes the active memtable and waits for background work before releasing files
+    @Override
+    public void close() throws IOException {
+        memLock.writeLock().lock();
+        try {
+            if (closed) return;
+            rotate(true);
+            closed = true;
+        } finally {
+            memLock.writeLock().unlock();
+        }
+        try {
+            flushExecutor.shutdown();
+            flushExecutor.awaitTermination(1, TimeUnit.MINUTES);
+            compactionExecutor.shutdown();
+            compactionExecutor.awaitTermination(1, TimeUnit.MINUTES);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while closing store");
+        }
+        activeWal.close();
+        if (activeEntries == 0) {
+            Files.delete(activeWal.path());
+        }
+        for (SSTable table : version.tables) {
+            table.close();
+        }
+        checkBackgroundError();
+    }
+
+    // k-way merge of sorted sources; on equal keys the source with the lower index (newer) wins
+    private static final class MergingIterator implements Iterator<Map.Entry<String, byte[]>> {
+        private static final class Source {
+            final Iterator<Map.Entry<String, byte[]>> it;
+            final int rank;
+            Map.Entry<String, byte[]> current;
+
+            Source(Iterator<Map.Entry<String, byte[]>> it, int rank) {
+                this.it = it;
+                this.rank = rank;
+            }
+
+            boolean advance() {
+                current = it.hasNext() ? it.next() : null;
+                return current != null;
+            }
+        }
+
+        private final PriorityQueue<Source> heap = new PriorityQueue<>(
+                Comparator.<Source, String>comparing(s -> s.current.getKey()).thenComparingInt(s -> s.rank));
+        private final boolean dropTombstones;
+        private Map.Entry<String, byte[]> pending;
+
+        MergingIterator(List<Iterator<Map.Entry<String, byte[]>>> sources, boolean dropTombstones) {
+            this.dropTombstones = dropTombstones;
+            for (int i = 0; i < sources.size(); i++) {
+                Source source = new Source(sources.get(i), i);
+                if (source.advance()) heap.add(source);
+            }
+            pending = computeNext();
+        }
+
+        private Map.Entry<String, byte[]> computeNext() {
+            while (!heap.isEmpty()) {
+                Source winner = heap.poll();
+                Map.Entry<String, byte[]> entry = winner.current;
+                // Skip shadowed versions of the same key in older sources
+                while (!heap.isEmpty() && heap.peek().current.getKey().equals(entry.getKey())) {
+                    Source older = heap.poll();
+                    if (older.advance()) heap.add(older);
+                }
+                if (winner.advance()) heap.add(winner);
+                if (!(dropTombstones && entry.getValue() == TOMBSTONE)) {
+                    return entry;
+                }
+            }
+            return null;
+        }
+
+        @Override
+        public boolean hasNext() {
+            return pending != null;
+        }
+
+        @Override
+        public Map.Entry<String, byte[]> next() {
+            if (pending == null) throw new NoSuchElementException();
+            Map.Entry<String, byte[]> result = pending;
+            pending = computeNext();
+            return result;
+        }
+    }
+
+    public static void main(String[] args) throws IOException {
+        Path dir = Files.createTempDirectory("lsm-demo");
+        int n = 200_000;
+        long start = System.nanoTime();
+        try (LSMStore store = new LSMStore(dir, 1 << 20, 4, WriteAheadLog.SyncPolicy.INTERVAL, 10)) {
+            for (int i = 0; i < n; i++) {
+                store.put(String.format("key-%08d", i), ("value-" + i).getBytes(StandardCharsets.UTF_8));
+            }
+            for (int i = 0; i < n; i += 10) {
+                store.delete(String.format("key-%08d", i));
+            }
+            long elapsed = System.nanoTime() - start;
+            System.out.printf("Wrote %,d keys in %d ms (%,d ops/s)%n", n, elapsed / 1_000_000,
+                    n * 1_000_000_000L / elapsed);
+            System.out.println("Get key-00000001: " + new String(store.get("key-00000001"), StandardCharsets.UTF_8));
+            System.out.println("Get key-00000010 (deleted): " + store.get("key-00000010"));
+        }
+        try (LSMStore reopened = new LSMStore(dir)) {
+            System.out.println("SSTables after reopen: " + reopened.sstableCount());
+            System.out.println("Get key-00123457: " + new String(reopened.get("key-00123457"), StandardCharsets.UTF_8));
+            System.out.println("Get key-00000020 (deleted): " + reopened.get("key-00000020"));
+        }
+    }
+}
@@ -0,0 +1,296 @@
+package org.avi.data.structures.database.lsm;
+
+import org.avi.design.bloomfilter.BloomFilter;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+
+/**
+ * Immutable sorted string table.
+ *
+ * Layout: data blocks | block index | bloom filter | footer.
+ * An entry is [keyLen int][key utf8][valueLen int, -1 for tombstone][value].
+ * The block index (first key of every block) and the bloom filter stay in memory,
+ * so a point lookup costs at most one positional block read.
+ */
+class SSTable implements AutoCloseable {
+    static final int BLOCK_SIZE = 4096;
+    private static final int BITS_PER_KEY = 10;
+    private static final int NUM_HASHES = 7;
+    private static final int FOOTER_SIZE = 40;
+    private static final long MAGIC = 0x4C534D5353544142L; // "LSMSSTAB"
+
+    private final Path path;
+    private final FileChannel channel;
+    private final String[] blockFirstKeys;
+    private final long[] blockOffsets;
+    private final int[] blockLengths;
+    private final BloomFilter<String> bloom;
+    private final long entryCount;
+    private final long seq;
+    private final long fileSize;
+
+    private SSTable(Path path, FileChannel channel, String[] blockFirstKeys, long[] blockOffsets,
+                    int[] blockLengths, BloomFilter<String> bloom, long entryCount, long seq, long fileSize) {
+        this.path = path;
+        this.channel = channel;
+        this.blockFirstKeys = blockFirstKeys;
+        this.blockOffsets = blockOffsets;
+        this.blockLengths = blockLengths;
+        this.bloom = bloom;
+        this.entryCount = entryCount;
+        this.seq = seq;
+        this.fileSize = fileSize;
+    }
+
+    // Writes sorted entries sequentially into a temp file, fsyncs it and renames it into place
+    static SSTable write(Path path, Iterator<Map.Entry<String, byte[]>> sorted, int expectedEntries, long seq)
+            throws IOException {
+        Path tmp = path.resolveSibling(path.getFileName() + ".tmp");
+        BloomFilter<String> bloom = new BloomFilter<>(Math.max(64, expectedEntries * BITS_PER_KEY), NUM_HASHES);
+        List<String> firstKeys = new ArrayList<>();
+        List<long[]> blocks = new ArrayList<>(); // {offset, length}
+        long entries = 0;
+
+        try (FileChannel out = FileChannel.open(tmp, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            DataOutputStream data = new DataOutputStream(new BufferedOutputStream(Channels.newOutputStream(out), 1 << 16));
+            long offset = 0;
+            long blockStart = 0;
+            while (sorted.hasNext()) {
+                Map.Entry<String, byte[]> entry = sorted.next();
+                byte[] key = entry.getKey().getBytes(StandardCharsets.UTF_8);
+                byte[] value = entry.getValue();
+                if (offset == blockStart) {
+                    firstKeys.add(entry.getKey());
+                }
+                data.writeInt(key.length);
+                data.write(key);
+                if (value == LSMStore.TOMBSTONE) {
+                    data.writeInt(-1);
+                    offset += 8 + key.length;
+                } else {
+                    data.writeInt(value.length);
+                    data.write(value);
+                    offset += 8 + key.length + value.length;
+                }
+                bloom.add(entry.getKey());
+                entries++;
+                if (offset - blockStart >= BLOCK_SIZE) {
+                    blocks.add(new long[]{blockStart, offset - blockStart});
+                    blockStart = offset;
+                }
+            }
+            if (offset > blockStart) {
+                blocks.add(new long[]{blockStart, offset - blockStart});
+            }
+
+            long indexOffset = offset;
+            data.writeInt(blocks.size());
+            for (int i = 0; i < blocks.size(); i++) {
+                byte[] key = firstKeys.get(i).getBytes(StandardCharsets.UTF_8);
+                data.writeInt(key.length);
+                data.write(key);
+                data.writeLong(blocks.get(i)[0]);
+                data.writeInt((int) blocks.get(i)[1]);
+                offset += 16 + key.length;
+            }
+            offset += 4;
+
+            long bloomOffset = offset;
+            byte[] bits = bloom.toByteArray();
+            data.writeInt(bloom.getBitSize());
+            data.writeInt(bloom.getNumHashFunctions());
+            data.writeInt(bits.length);
+            data.write(bits);
+
+            data.writeLong(indexOffset);
+            data.writeLong(bloomOffset);
+            data.writeLong(entries);
+            data.writeLong(seq);
+            data.writeLong(MAGIC);
+            data.flush();
+            out.force(true);
+        }
+        Files.move(tmp, path, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        return open(path);
+    }
+
+    static SSTable open(Path path) throws IOException {
+        FileChannel channel = FileChannel.open(path, StandardOpenOption.READ);
+        try {
+            long fileSize = channel.size();
+            if (fileSize < FOOTER_SIZE) {
+                throw new IOException("Truncated sstable " + path);
+            }
+            ByteBuffer footer = readFully(channel, fileSize - FOOTER_SIZE, FOOTER_SIZE);
+            long indexOffset = footer.getLong();
+            long bloomOffset = footer.getLong();
+            long entryCount = footer.getLong();
+            long seq = footer.getLong();
+            if (footer.getLong() != MAGIC) {
+                throw new IOException("Bad magic in sstable " + path);
+            }
+
+            ByteBuffer index = readFully(channel, indexOffset, (int) (bloomOffset - indexOffset));
+            int blockCount = index.getInt();
+            String[] firstKeys = new String[blockCount];
+            long[] offsets = new long[blockCount];
+            int[] lengths = new int[blockCount];
+            for (int i = 0; i < blockCount; i++) {
+                firstKeys[i] = readString(index);
+                offsets[i] = index.getLong();
+                lengths[i] = index.getInt();
+            }
+
+            ByteBuffer bloomBuf = readFully(channel, bloomOffset, (int) (fileSize - FOOTER_SIZE - bloomOffset));
+            int bitSize = bloomBuf.getInt();
+            int numHashes = bloomBuf.getInt();
+            byte[] bits = new byte[bloomBuf.getInt()];
+            bloomBuf.get(bits);
+            BloomFilter<String> bloom = new BloomFilter<>(bitSize, numHashes, bits);
+
+            return new SSTable(path, channel, firstKeys, offsets, lengths, bloom, entryCount, seq, fileSize);
+        } catch (IOException | RuntimeException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Returns the stored value, {@link LSMStore#TOMBSTONE} for a deleted key,
+     * or null when this table knows nothing about the key.
+     */
+    byte[] get(String key) throws IOException {
+        if (blockFirstKeys.length == 0 || !bloom.mightContain(key)) {
+            return null;
+        }
+        int block = findBlock(key);
+        if (block < 0) {
+            return null;
+        }
+        ByteBuffer buf = readFully(channel, blockOffsets[block], blockLengths[block]);
+        while (buf.hasRemaining()) {
+            int cmp = readString(buf).compareTo(key);
+            int valueLen = buf.getInt();
+            if (cmp == 0) {
+                return readValue(buf, valueLen);
+            }
+            if (cmp > 0) {
+                return null;
+            }
+            if (valueLen > 0) {
+                buf.position(buf.position() + valueLen);
+            }
+        }
+        return null;
+    }
+
+    // Last block whose first key is <= key
+    private int findBlock(String key) {
+        int lo = 0;
+        int hi = blockFirstKeys.length - 1;
+        int result = -1;
+        while (lo <= hi) {
+            int mid = (lo + hi) >>> 1;
+            if (blockFirstKeys[mid].compareTo(key) <= 0) {
+                result = mid;
+                lo = mid + 1;
+            } else {
+                hi = mid - 1;
+            }
+        }
+        return result;
+    }
+
+    // Sequential scan in key order, one block read at a time
+    Iterator<Map.Entry<String, byte[]>> iterator() {
+        return new Iterator<>() {
+            private int block = 0;
+            private ByteBuffer buf;
+
+            @Override
+            public boolean hasNext() {
+                return (buf != null && buf.hasRemaining()) || block < blockOffsets.length;
+            }
+
+            @Override
+            public Map.Entry<String, byte[]> next() {
+                if (!hasNext()) throw new NoSuchElementException();
+                if (buf == null || !buf.hasRemaining()) {
+                    try {
+                        buf = readFully(channel, blockOffsets[block], blockLengths[block]);
+                    } catch (IOException e) {
+                        throw new UncheckedIOException(e);
+                    }
+                    block++;
+                }
+                String key = readString(buf);
+                byte[] value = readValue(buf, buf.getInt());
+                return new AbstractMap.SimpleImmutableEntry<>(key, value);
+            }
+        };
+    }
+
+    private static byte[] readValue(ByteBuffer buf, int valueLen) {
+        if (valueLen < 0) {
+            return LSMStore.TOMBSTONE;
+        }
+        byte[] value = new byte[valueLen];
+        buf.get(value);
+        return value;
+    }
+
+    private static String readString(ByteBuffer buf) {
+        byte[] bytes = new byte[buf.getInt()];
+        buf.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private static ByteBuffer readFully(FileChannel channel, long position, int length) throws IOException {
+        ByteBuffer buf = ByteBuffer.allocate(length);
+        while (buf.hasRemaining()) {
+            if (channel.read(buf, position + buf.position()) < 0) {
+                throw new IOException("Unexpected end of file");
+            }
+        }
+        return buf.flip();
+    }
+
+    Path path() {
+        return path;
+    }
+
+    long seq() {
+        return seq;
+    }
+
+    long entryCount() {
+        return entryCount;
+    }
+
+    long fileSize() {
+        return fileSize;
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+}
@@ -0,0 +1,121 @@
+package org.avi.data.structures.database.paged;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Fixed set of page frames over a {@link PageFile}.
+ *
+ * Callers pin a page, use its buffer and unpin it, saying whether they changed it.
+ * Victims are chosen with CLOCK: the hand skips pinned frames and gives recently
+ * referenced ones a second chance. Dirty victims are written back before reuse.
+ */
+class BufferPool {
+    static final class Frame {
+        final ByteBuffer data;
+        long pageId = -1;
+        int pinCount;
+        boolean dirty;
+        boolean referenced;
+
+        Frame(int pageSize) {
+            this.data = ByteBuffer.allocate(pageSize); // heap-backed so nodes can shift with System.arraycopy
+        }
+    }
+
+    private final PageFile file;
+    private final Frame[] frames;
+    private final Map<Long, Frame> pageTable;
+    private int hand;
+    private long hits;
+    private long misses;
+
+    BufferPool(PageFile file, int frameCount) {
+        if (frameCount < 8) throw new IllegalArgumentException("frameCount must be >= 8");
+        this.file = file;
+        this.frames = new Frame[frameCount];
+        for (int i = 0; i < frameCount; i++) {
+            frames[i] = new Frame(file.pageSize());
+        }
+        this.pageTable = new HashMap<>(frameCount * 2);
+    }
+
+    synchronized Frame pin(long pageId) throws IOException {
+        Frame frame = pageTable.get(pageId);
+        if (frame != null) {
+            hits++;
+        } else {
+            misses++;
+            frame = evict();
+            file.read(pageId, frame.data);
+            frame.pageId = pageId;
+            pageTable.put(pageId, frame);
+        }
+        frame.pinCount++;
+        frame.referenced = true;
+        return frame;
+    }
+
+    // Allocates a fresh zeroed page, pinned and dirty
+    synchronized Frame pinNew() throws IOException {
+        Frame frame = evict();
+        frame.pageId = file.allocate();
+        Arrays.fill(frame.data.array(), (byte) 0);
+        frame.dirty = true;
+        frame.pinCount = 1;
+        frame.referenced = true;
+        pageTable.put(frame.pageId, frame);
+        return frame;
+    }
+
+    synchronized void unpin(Frame frame, boolean dirty) {
+        if (frame.pinCount <= 0) throw new IllegalStateException("Page " + frame.pageId + " is not pinned");
+        frame.pinCount--;
+        frame.dirty |= dirty;
+    }
+
+    private Frame evict() throws IOException {
+        // Two full sweeps: the first may only clear reference bits
+        for (int i = 0; i < frames.length * 2; i++) {
+            Frame frame = frames[hand];
+            hand = (hand + 1) % frames.length;
+            if (frame.pinCount > 0) {
+                continue;
+            }
+            if (frame.referenced) {
+                frame.referenced = false;
+                continue;
+            }
+            if (frame.pageId >= 0) {
+                if (frame.dirty) {
+                    file.write(frame.pageId, frame.data);
+                    frame.dirty = false;
+                }
+                pageTable.remove(frame.pageId);
+                frame.pageId = -1;
+            }
+            return frame;
+        }
+        throw new IllegalStateException("All " + frames.length + " frames are pinned");
+    }
+
+    synchronized void flushAll() throws IOException {
+        for (Frame frame : frames) {
+            if (frame.pageId >= 0 && frame.dirty) {
+                file.write(frame.pageId, frame.data);
+                frame.dirty = false;
+            }
+        }
+    }
+
+    synchronized long hits() {
+        return hits;
+    }
+
+    synchronized long misses() {
+        return misses;
+    }
+}
@@ -0,0 +1,105 @@
+package org.avi.data.structures.database.paged;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * A single file split into fixed-size pages, read and written with positional FileChannel I/O.
+ * Page 0 is the header: [magic long][pageSize int][pageCount long][rootPage long][entryCount long].
+ */
+class PageFile implements AutoCloseable {
+    private static final long MAGIC = 0x5042545245453031L; // "PBTREE01"
+
+    private final FileChannel channel;
+    private final int pageSize;
+    private long pageCount;
+    private long rootPage;
+    private long entryCount;
+
+    PageFile(Path path, int pageSize) throws IOException {
+        this.channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                StandardOpenOption.WRITE);
+        this.pageSize = pageSize;
+        if (channel.size() == 0) {
+            pageCount = 1; // header only
+            rootPage = -1;
+            writeHeader();
+        } else {
+            ByteBuffer header = ByteBuffer.allocate(36);
+            read(0, header);
+            if (header.getLong(0) != MAGIC) {
+                throw new IOException("Not a paged B+ tree file: " + path);
+            }
+            if (header.getInt(8) != pageSize) {
+                throw new IOException("File page size " + header.getInt(8) + " does not match " + pageSize);
+            }
+            pageCount = header.getLong(12);
+            rootPage = header.getLong(20);
+            entryCount = header.getLong(28);
+        }
+    }
+
+    void read(long pageId, ByteBuffer dst) throws IOException {
+        dst.clear();
+        long position = pageId * pageSize;
+        while (dst.hasRemaining()) {
+            if (channel.read(dst, position + dst.position()) < 0) {
+                // Allocated but never written: reads as zeros
+                while (dst.hasRemaining()) dst.put((byte) 0);
+            }
+        }
+        dst.clear();
+    }
+
+    void write(long pageId, ByteBuffer src) throws IOException {
+        ByteBuffer view = src.duplicate().clear();
+        long position = pageId * pageSize;
+        while (view.hasRemaining()) {
+            channel.write(view, position + view.position());
+        }
+    }
+
+    long allocate() {
+        return pageCount++;
+    }
+
+    void writeHeader() throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(36);
+        header.putLong(MAGIC).putInt(pageSize).putLong(pageCount).putLong(rootPage).putLong(entryCount).flip();
+        while (header.hasRemaining()) {
+            channel.write(header, header.position());
+        }
+    }
+
+    void sync() throws IOException {
+        channel.force(false);
+    }
+
+    int pageSize() {
+        return pageSize;
+    }
+
+    long rootPage() {
+        return rootPage;
+    }
+
+    void setRootPage(long rootPage) {
+        this.rootPage = rootPage;
+    }
+
+    long entryCount() {
+        return entryCount;
+    }
+
+    void setEntryCount(long entryCount) {
+        this.entryCount = entryCount;
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+}
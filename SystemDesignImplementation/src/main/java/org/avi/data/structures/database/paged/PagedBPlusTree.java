@@ -0,0 +1,320 @@
+package org.avi.data.structures.database.paged;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+/**
+ * On-disk B+ tree mapping long keys to long values (e.g. row ids or file offsets).
+ *
+ * Every node is one page and is read in place from its buffer-pool frame, so a warm lookup
+ * is a binary search per level over page bytes and a cold lookup costs one page read per level.
+ *
+ * Node page layout:
+ *   [type int][count int][next leaf long][keys long * cap][values or children long * cap(+1)]
+ * Not thread-safe, like {@code BPlusTree}.
+ */
+public class PagedBPlusTree implements AutoCloseable {
+    private static final int DEFAULT_PAGE_SIZE = 4096;
+
+    private static final int TYPE = 0;
+    private static final int COUNT = 4;
+    private static final int NEXT = 8;
+    private static final int ENTRIES = 16;
+    private static final int LEAF = 0;
+    private static final int INTERNAL = 1;
+
+    private final PageFile file;
+    private final BufferPool pool;
+    private final int leafCapacity;
+    private final int internalCapacity;
+
+    // Separator and new right sibling page produced by a split
+    private static final class Split {
+        final long key;
+        final long rightPage;
+
+        Split(long key, long rightPage) {
+            this.key = key;
+            this.rightPage = rightPage;
+        }
+    }
+
+    public PagedBPlusTree(Path path, int poolFrames) throws IOException {
+        this(path, DEFAULT_PAGE_SIZE, poolFrames);
+    }
+
+    public PagedBPlusTree(Path path, int pageSize, int poolFrames) throws IOException {
+        this.file = new PageFile(path, pageSize);
+        this.pool = new BufferPool(file, poolFrames);
+        this.leafCapacity = (pageSize - ENTRIES) / 16;
+        this.internalCapacity = (pageSize - ENTRIES - 8) / 16;
+        if (file.rootPage() < 0) {
+            BufferPool.Frame root = pool.pinNew();
+            initNode(root.data, LEAF);
+            file.setRootPage(root.pageId);
+            pool.unpin(root, true);
+        }
+    }
+
+    private static void initNode(ByteBuffer page, int type) {
+        page.putInt(TYPE, type);
+        page.putInt(COUNT, 0);
+        page.putLong(NEXT, -1);
+    }
+
+    private static boolean isLeaf(ByteBuffer page) {
+        return page.getInt(TYPE) == LEAF;
+    }
+
+    private static int count(ByteBuffer page) {
+        return page.getInt(COUNT);
+    }
+
+    private static long keyAt(ByteBuffer page, int i) {
+        return page.getLong(ENTRIES + 8 * i);
+    }
+
+    // Values in a leaf, children in an internal node
+    private long slotAt(ByteBuffer page, int i) {
+        return page.getLong(slotBase(page) + 8 * i);
+    }
+
+    private int slotBase(ByteBuffer page) {
+        return ENTRIES + 8 * (isLeaf(page) ? leafCapacity : internalCapacity);
+    }
+
+    // Same contract as Arrays.binarySearch, over the keys stored in the page
+    private static int search(ByteBuffer page, long key) {
+        int lo = 0;
+        int hi = count(page) - 1;
+        while (lo <= hi) {
+            int mid = (lo + hi) >>> 1;
+            long midKey = keyAt(page, mid);
+            if (midKey < key) {
+                lo = mid + 1;
+            } else if (midKey > key) {
+                hi = mid - 1;
+            } else {
+                return mid;
+            }
+        }
+        return -(lo + 1);
+    }
+
+    private static int childIndex(ByteBuffer page, long key) {
+        int index = search(page, key);
+        return index >= 0 ? index + 1 : -index - 1;
+    }
+
+    public Long search(long key) throws IOException {
+        long pageId = file.rootPage();
+        while (true) {
+            BufferPool.Frame frame = pool.pin(pageId);
+            try {
+                ByteBuffer page = frame.data;
+                if (isLeaf(page)) {
+                    int index = search(page, key);
+                    return index >= 0 ? slotAt(page, index) : null;
+                }
+                pageId = slotAt(page, childIndex(page, key));
+            } finally {
+                pool.unpin(frame, false);
+            }
+        }
+    }
+
+    public void insert(long key, long value) throws IOException {
+        Split split = insert(file.rootPage(), key, value);
+        if (split != null) {
+            BufferPool.Frame frame = pool.pinNew();
+            ByteBuffer root = frame.data;
+            initNode(root, INTERNAL);
+            root.putInt(COUNT, 1);
+            root.putLong(ENTRIES, split.key);
+            root.putLong(slotBase(root), file.rootPage());
+            root.putLong(slotBase(root) + 8, split.rightPage);
+            file.setRootPage(frame.pageId);
+            pool.unpin(frame, true);
+        }
+    }
+
+    // Pins one node per level on the way down; a split is resolved by the caller one level up
+    private Split insert(long pageId, long key, long value) throws IOException {
+        BufferPool.Frame frame = pool.pin(pageId);
+        boolean dirty = false;
+        try {
+            ByteBuffer page = frame.data;
+            if (isLeaf(page)) {
+                int index = search(page, key);
+                dirty = true;
+                if (index >= 0) {
+                    page.putLong(slotBase(page) + 8 * index, value);
+                    return null;
+                }
+                file.setEntryCount(file.entryCount() + 1);
+                index = -index - 1;
+                if (count(page) < leafCapacity) {
+                    insertAt(page, index, key, value, 0);
+                    return null;
+                }
+                return splitLeaf(frame, index, key, value);
+            }
+
+            int index = childIndex(page, key);
+            Split split = insert(slotAt(page, index), key, value);
+            if (split == null) {
+                return null;
+            }
+            dirty = true;
+            if (count(page) < internalCapacity) {
+                insertAt(page, index, split.key, split.rightPage, 1);
+                return null;
+            }
+            return splitInternal(frame, index, split);
+        } finally {
+            pool.unpin(frame, dirty);
+        }
+    }
+
+    // Shifts keys at index and slots at index + slotShift one position right, in place
+    private void insertAt(ByteBuffer page, int index, long key, long slot, int slotShift) {
+        int count = count(page);
+        byte[] bytes = page.array();
+        int keyOffset = ENTRIES + 8 * index;
+        System.arraycopy(bytes, keyOffset, bytes, keyOffset + 8, 8 * (count - index));
+        int slotOffset = slotBase(page) + 8 * (index + slotShift);
+        int slots = count + slotShift;
+        System.arraycopy(bytes, slotOffset, bytes, slotOffset + 8, 8 * (slots - index - slotShift));
+        page.putLong(keyOffset, key);
+        page.putLong(slotOffset, slot);
+        page.putInt(COUNT, count + 1);
+    }
+
+    private Split splitLeaf(BufferPool.Frame leftFrame, int index, long key, long value) throws IOException {
+        ByteBuffer left = leftFrame.data;
+        int count = count(left);
+        long[] keys = new long[count + 1];
+        long[] values = new long[count + 1];
+        for (int i = 0, j = 0; i <= count; i++) {
+            if (i == index) {
+                keys[i] = key;
+                values[i] = value;
+            } else {
+                keys[i] = keyAt(left, j);
+                values[i] = slotAt(left, j);
+                j++;
+            }
+        }
+        int mid = keys.length / 2;
+
+        BufferPool.Frame rightFrame = pool.pinNew();
+        try {
+            ByteBuffer right = rightFrame.data;
+            initNode(right, LEAF);
+            writeEntries(left, keys, values, 0, mid, 0);
+            writeEntries(right, keys, values, mid, keys.length, 0);
+            right.putLong(NEXT, left.getLong(NEXT));
+            left.putLong(NEXT, rightFrame.pageId);
+            return new Split(keys[mid], rightFrame.pageId);
+        } finally {
+            pool.unpin(rightFrame, true);
+        }
+    }
+
+    private Split splitInternal(BufferPool.Frame leftFrame, int index, Split split) throws IOException {
+        ByteBuffer left = leftFrame.data;
+        int count = count(left);
+        long[] keys = new long[count + 1];
+        long[] children = new long[count + 2];
+        children[0] = slotAt(left, 0);
+        for (int i = 0, j = 0; i <= count; i++) {
+            if (i == index) {
+                keys[i] = split.key;
+                children[i + 1] = split.rightPage;
+            } else {
+                keys[i] = keyAt(left, j);
+                children[i + 1] = slotAt(left, j + 1);
+                j++;
+            }
+        }
+        int mid = keys.length / 2;
+
+        BufferPool.Frame rightFrame = pool.pinNew();
+        try {
+            ByteBuffer right = rightFrame.data;
+            initNode(right, INTERNAL);
+            writeEntries(left, keys, children, 0, mid, 1);
+            writeEntries(right, keys, children, mid + 1, keys.length, 1);
+            return new Split(keys[mid], rightFrame.pageId);
+        } finally {
+            pool.unpin(rightFrame, true);
+        }
+    }
+
+    // Writes keys[from, to) and slots[from, to + extraSlots) into the page
+    private void writeEntries(ByteBuffer page, long[] keys, long[] slots, int from, int to, int extraSlots) {
+        int base = slotBase(page);
+        for (int i = from; i < to; i++) {
+            page.putLong(ENTRIES + 8 * (i - from), keys[i]);
+        }
+        for (int i = from; i < to + extraSlots; i++) {
+            page.putLong(base + 8 * (i - from), slots[i]);
+        }
+        page.putInt(COUNT, to - from);
+    }
+
+    public long size() {
+        return file.entryCount();
+    }
+
+    public long cacheHits() {
+        return pool.hits();
+    }
+
+    public long cacheMisses() {
+        return pool.misses();
+    }
+
+    // Writes back dirty pages and the header, then fsyncs
+    public void flush() throws IOException {
+        pool.flushAll();
+        file.writeHeader();
+        file.sync();
+    }
+
+    @Override
+    public void close() throws IOException {
+        flush();
+        file.close();
+    }
+
+    public static void main(String[] args) throws IOException {
+        Path path = Files.createTempFile("paged-bptree", ".db");
+        Files.delete(path);
+        int n = 1_000_000;
+        try (PagedBPlusTree tree = new PagedBPlusTree(path, 1024)) {
+            long start = System.nanoTime();
+            for (long i = 0; i < n; i++) {
+                tree.insert(i * 7919 % n, i);
+            }
+            System.out.println("Inserted " + n + " keys in " + (System.nanoTime() - start) / 1_000_000 + " ms");
+        }
+
+        // Reopen with a tiny pool so most lookups are cold
+        try (PagedBPlusTree tree = new PagedBPlusTree(path, 16)) {
+            System.out.println("Entries after reopen: " + tree.size());
+            long start = System.nanoTime();
+            int lookups = 10_000;
+            for (int i = 0; i < lookups; i++) {
+                tree.search((long) i * 104729 % n);
+            }
+            System.out.printf("Cold: %d lookups in %d ms, %.2f page reads per lookup%n", lookups,
+                    (System.nanoTime() - start) / 1_000_000, (double) tree.cacheMisses() / lookups);
+            System.out.println("Search 42: " + tree.search(42));
+            System.out.println("Search -1: " + tree.search(-1));
+        }
+        Files.delete(path);
+    }
+}
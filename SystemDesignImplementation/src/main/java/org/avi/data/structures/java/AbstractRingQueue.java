@@ -0,0 +1,291 @@
+package org.avi.data.structures.java;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.util.AbstractQueue;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.Objects;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Shared BlockingQueue plumbing for the lock-free array queues. Subclasses implement only the
+ * non-blocking tryOffer/tryPoll for their producer/consumer shape; the blocking methods loop
+ * on those and park through the queue's WaitStrategy in between.
+ *
+ * Capacity is rounded up to a power of two so a slot index is a mask rather than a modulo.
+ *
+ * Iteration is weakly consistent: it reads the slots between head and tail with acquire
+ * loads, so it sees every element present throughout and never throws. remove(Object) swaps
+ * the element's slot for the REMOVED marker with a CAS; consumers take slots with an atomic
+ * swap, so exactly one of them wins, and skip markers. A removed slot still counts towards
+ * size() until a consumer passes it.
+ *
+ * drainTo claims each element the same way before adding it to the target collection, and
+ * passes the slot only once the add has succeeded. If the add throws, the element goes back
+ * into its slot.
+ */
+abstract class AbstractRingQueue<E> extends AbstractQueue<E> implements BlockingQueue<E> {
+    static final VarHandle SLOT = MethodHandles.arrayElementVarHandle(Object[].class);
+    static final Object REMOVED = new Object();
+
+    protected final Object[] buffer;
+    protected final int mask;
+    protected final int capacity;
+    protected final Sequence head = new Sequence(); // next index to consume
+    protected final Sequence tail = new Sequence(); // next index to produce
+    private final WaitStrategy waitStrategy;
+
+    AbstractRingQueue(int capacity, WaitStrategy waitStrategy) {
+        if (capacity < 2) throw new IllegalArgumentException("capacity must be >= 2");
+        if (capacity > 1 << 30) throw new IllegalArgumentException("capacity must be <= 2^30");
+        this.capacity = Integer.highestOneBit(capacity - 1) << 1;
+        this.mask = this.capacity - 1;
+        this.buffer = new Object[this.capacity];
+        this.waitStrategy = Objects.requireNonNull(waitStrategy);
+    }
+
+    abstract boolean tryOffer(E e);
+
+    abstract E tryPoll();
+
+    // Passes the head slot if it holds REMOVED; false once the head holds anything else
+    abstract boolean skipRemoved();
+
+    // Wait conditions for the blocking methods; subclasses refine them to the slot a caller would claim
+    boolean canOffer() {
+        return size() < capacity;
+    }
+
+    boolean canPoll() {
+        return size() > 0;
+    }
+
+    @Override
+    public final boolean offer(E e) {
+        Objects.requireNonNull(e);
+        if (tryOffer(e)) {
+            waitStrategy.signalAll();
+            return true;
+        }
+        return false;
+    }
+
+    @Override
+    public final E poll() {
+        E e = tryPoll();
+        if (e != null) {
+            waitStrategy.signalAll();
+        }
+        return e;
+    }
+
+    @Override
+    public void put(E e) throws InterruptedException {
+        offer(e, Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+    }
+
+    @Override
+    public boolean offer(E e, long timeout, TimeUnit unit) throws InterruptedException {
+        Objects.requireNonNull(e);
+        long deadline = deadline(unit.toNanos(timeout));
+        while (!offer(e)) {
+            if (!waitStrategy.await(this::canOffer, deadline)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    @Override
+    public E take() throws InterruptedException {
+        return poll(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+    }
+
+    @Override
+    public E poll(long timeout, TimeUnit unit) throws InterruptedException {
+        long deadline = deadline(unit.toNanos(timeout));
+        E e;
+        while ((e = poll()) == null) {
+            if (!waitStrategy.await(this::canPoll, deadline)) {
+                return null;
+            }
+        }
+        return e;
+    }
+
+    private static long deadline(long nanos) {
+        long now = System.nanoTime();
+        return nanos >= Long.MAX_VALUE - Math.max(now, 0) ? Long.MAX_VALUE : now + nanos;
+    }
+
+    @Override
+    public int drainTo(Collection<? super E> c) {
+        return drainTo(c, Integer.MAX_VALUE);
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public int drainTo(Collection<? super E> c, int maxElements) {
+        Objects.requireNonNull(c);
+        if (c == this) throw new IllegalArgumentException("Cannot drain a queue into itself");
+        int n = 0;
+        try {
+            while (n < maxElements) {
+                E e = null;
+                int index = 0;
+                long h = head.getAcquire();
+                for (long t = tail.getAcquire(), i = Math.max(h, t - capacity); e == null && i < t; i++) {
+                    index = (int) i & mask;
+                    Object slot = SLOT.getAcquire(buffer, index);
+                    if (slot == null) {
+                        break; // claimed but not yet published
+                    }
+                    if (slot != REMOVED && SLOT.compareAndSet(buffer, index, slot, REMOVED)) {
+                        e = (E) slot;
+                    }
+                }
+                if (e == null) {
+                    break;
+                }
+                try {
+                    c.add(e);
+                } catch (RuntimeException | Error failure) {
+                    putBack(index, e, failure);
+                    throw failure;
+                }
+                n++;
+                while (skipRemoved()) {
+                    // hand the drained slots back to producers
+                }
+            }
+        } finally {
+            if (n > 0) {
+                waitStrategy.signalAll();
+            }
+        }
+        return n;
+    }
+
+    /**
+     * Only a consumer passes a REMOVED slot, so when the drainer is the only consumer the slot
+     * is still waiting for e. With other consumers (MPMC) one may have got past it first, and
+     * e goes to the tail instead.
+     */
+    private void putBack(int index, E e, Throwable failure) {
+        if (!SLOT.compareAndSet(buffer, index, REMOVED, e) && !tryOffer(e)) {
+            failure.addSuppressed(new IllegalStateException("Queue refilled before " + e + " could be put back"));
+        }
+    }
+
+    @Override
+    public int size() {
+        // Re-read head until it is stable so tail - head never mixes two moments
+        while (true) {
+            long before = head.get();
+            long t = tail.get();
+            long after = head.get();
+            if (before == after) {
+                return (int) Math.max(0, Math.min(capacity, t - after));
+            }
+        }
+    }
+
+    @Override
+    public boolean isEmpty() {
+        return head.get() >= tail.get();
+    }
+
+    @Override
+    public int remainingCapacity() {
+        return capacity - size();
+    }
+
+    public int capacity() {
+        return capacity;
+    }
+
+    // First element from head on that has not been removed, without taking it
+    @SuppressWarnings("unchecked")
+    E peekFrom(long h) {
+        for (long t = tail.getAcquire(); h < t; h++) {
+            Object e = SLOT.getAcquire(buffer, (int) h & mask);
+            if (e == null) {
+                return null; // claimed but not yet published
+            }
+            if (e != REMOVED) {
+                return (E) e;
+            }
+        }
+        return null;
+    }
+
+    @Override
+    public boolean remove(Object o) {
+        return o != null && removeMatching(o, false);
+    }
+
+    // Claims the first slot holding o (equal, or the same instance) for removal
+    private boolean removeMatching(Object o, boolean identity) {
+        long h = head.getAcquire();
+        for (long t = tail.getAcquire(), i = Math.max(h, t - capacity); i < t; i++) {
+            int index = (int) i & mask;
+            Object e = SLOT.getAcquire(buffer, index);
+            if (e != null && e != REMOVED && (identity ? e == o : o.equals(e))
+                    && SLOT.compareAndSet(buffer, index, e, REMOVED)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    @Override
+    public Iterator<E> iterator() {
+        List<E> snapshot = snapshot();
+        return new Iterator<>() {
+            private int cursor;
+            private E lastReturned;
+
+            @Override
+            public boolean hasNext() {
+                return cursor < snapshot.size();
+            }
+
+            @Override
+            public E next() {
+                if (cursor >= snapshot.size()) throw new NoSuchElementException();
+                return lastReturned = snapshot.get(cursor++);
+            }
+
+            @Override
+            public void remove() {
+                if (lastReturned == null) throw new IllegalStateException();
+                removeMatching(lastReturned, true);
+                lastReturned = null;
+            }
+        };
+    }
+
+    @SuppressWarnings("unchecked")
+    private List<E> snapshot() {
+        long h = head.getAcquire();
+        long t = tail.getAcquire();
+        List<E> elements = new ArrayList<>((int) Math.max(0, Math.min(capacity, t - h)));
+        for (long i = Math.max(h, t - capacity); i < t; i++) {
+            Object e = SLOT.getAcquire(buffer, (int) i & mask);
+            if (e != null && e != REMOVED) {
+                elements.add((E) e);
+            }
+        }
+        return elements;
+    }
+
+    @Override
+    public String toString() {
+        return getClass().getSimpleName() + "[size=" + size() + ", capacity=" + capacity + "]";
+    }
+}
@@ -0,0 +1,502 @@
+package org.avi.data.structures.java;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.util.*;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Bounded blocking queue built for very large numbers of waiting (virtual) threads.
+ *
+ * MyBlockingQueue wakes a taker with a condition signal, and the woken thread must then win the
+ * lock again to fetch an item; with 100K waiters that is a convoy of wake-ups and lock handoffs.
+ * Here every waiter gets its own FIFO node. A put that finds a waiting taker writes the item
+ * straight into that taker's node and unparks exactly that thread, which returns without
+ * touching the lock again; a take that frees a slot admits exactly one waiting putter.
+ *
+ * Waiting uses ReentrantLock and LockSupport.park only, never synchronized or Object.wait,
+ * so a parked virtual thread unmounts and never pins its carrier. takeAsync and putAsync
+ * queue a CompletableFuture instead of a thread, so a waiter costs one small node.
+ */
+public class HandoffBlockingQueue<E> extends AbstractQueue<E> implements BlockingQueue<E> {
+    private static final int WAITING = 0;
+    private static final int CLAIMED = 1;
+    private static final int CANCELLED = 2;
+    private static final VarHandle STATE;
+
+    static {
+        try {
+            STATE = MethodHandles.lookup().findVarHandle(HandoffBlockingQueue.Waiter.class, "state", int.class);
+        } catch (ReflectiveOperationException e) {
+            throw new ExceptionInInitializerError(e);
+        }
+    }
+
+    /**
+     * One blocked take or put. The side that completes it claims it by CAS, the waiter
+     * withdraws it (interrupt, timeout, future cancellation) by CAS, so exactly one wins and
+     * an item is never handed to a waiter that has gone away.
+     */
+    final class Waiter {
+        final Thread thread; // null for async waiters
+        final Pending<?> future; // null for thread waiters
+        Object item; // the putter's element, or the element handed to a taker
+        volatile int state;
+
+        Waiter(Thread thread, Pending<?> future, Object item) {
+            this.thread = thread;
+            this.future = future;
+            this.item = item;
+        }
+
+        boolean claim() {
+            return STATE.compareAndSet(this, WAITING, CLAIMED);
+        }
+
+        boolean withdraw() {
+            if (STATE.compareAndSet(this, WAITING, CANCELLED)) {
+                withdrawn.incrementAndGet();
+                return true;
+            }
+            return false;
+        }
+
+        // Called after the lock is released, so future callbacks never run under it
+        void wake(boolean taker) {
+            if (thread != null) {
+                LockSupport.unpark(thread);
+            } else {
+                future.deliver(taker ? item : null);
+            }
+        }
+    }
+
+    /**
+     * Future returned by takeAsync/putAsync. Completing it from outside, cancelling it or
+     * timing it out (orTimeout) only succeeds while the operation is still queued.
+     */
+    final class Pending<T> extends CompletableFuture<T> {
+        Waiter waiter;
+
+        @SuppressWarnings("unchecked")
+        void deliver(Object value) {
+            super.complete((T) value);
+        }
+
+        @Override
+        public boolean complete(T value) {
+            return waiter.withdraw() && super.complete(value);
+        }
+
+        @Override
+        public boolean cancel(boolean mayInterruptIfRunning) {
+            return waiter.withdraw() && super.cancel(mayInterruptIfRunning);
+        }
+
+        @Override
+        public boolean completeExceptionally(Throwable ex) {
+            return waiter.withdraw() && super.completeExceptionally(ex);
+        }
+    }
+
+    private final ArrayDeque<E> items;
+    private final int capacity;
+    private final ReentrantLock lock = new ReentrantLock();
+    private final ArrayDeque<Waiter> takers = new ArrayDeque<>();
+    private final ArrayDeque<Waiter> putters = new ArrayDeque<>();
+    // Withdrawn waiters are left in the deques and skipped; swept when they pile up
+    private final AtomicInteger withdrawn = new AtomicInteger();
+
+    public HandoffBlockingQueue(int capacity) {
+        if (capacity <= 0) throw new IllegalArgumentException("capacity must be > 0");
+        this.capacity = capacity;
+        this.items = new ArrayDeque<>(Math.min(capacity, 1 << 16));
+    }
+
+    // Lock held. Hands e to the first live taker, returning it to be woken after unlock
+    private Waiter handToTaker(E e) {
+        Waiter w;
+        while ((w = takers.poll()) != null) {
+            w.item = e; // written before the CAS publishes it
+            if (w.claim()) {
+                return w;
+            }
+            withdrawn.decrementAndGet();
+        }
+        return null;
+    }
+
+    // Lock held, a slot has just been freed. Moves the first live putter's item in
+    private Waiter admitPutter() {
+        Waiter w;
+        while ((w = putters.poll()) != null) {
+            if (w.claim()) {
+                @SuppressWarnings("unchecked")
+                E e = (E) w.item;
+                items.add(e);
+                return w;
+            }
+            withdrawn.decrementAndGet();
+        }
+        return null;
+    }
+
+    // Lock held
+    private void enqueueWaiter(ArrayDeque<Waiter> waiters, Waiter w) {
+        int stale = withdrawn.get();
+        if (stale > 64 && stale > (takers.size() + putters.size()) / 2) {
+            int removed = 0;
+            for (Iterator<Waiter> it = takers.iterator(); it.hasNext(); ) {
+                if (it.next().state == CANCELLED) { it.remove(); removed++; }
+            }
+            for (Iterator<Waiter> it = putters.iterator(); it.hasNext(); ) {
+                if (it.next().state == CANCELLED) { it.remove(); removed++; }
+            }
+            withdrawn.addAndGet(-removed);
+        }
+        waiters.add(w);
+    }
+
+    /**
+     * Parks until the waiter is claimed, or the deadline (System.nanoTime, Long.MAX_VALUE for
+     * none) passes, or the thread is interrupted. Returns true if claimed. If the waiter was
+     * claimed concurrently with a timeout or interrupt, the claim wins and the interrupt is kept.
+     */
+    private boolean await(Waiter me, long deadline) throws InterruptedException {
+        while (me.state == WAITING) {
+            if (Thread.interrupted()) {
+                if (me.withdraw()) {
+                    throw new InterruptedException();
+                }
+                Thread.currentThread().interrupt();
+                break;
+            }
+            if (deadline == Long.MAX_VALUE) {
+                LockSupport.park(this);
+            } else {
+                long remaining = deadline - System.nanoTime();
+                if (remaining <= 0) {
+                    if (me.withdraw()) {
+                        return false;
+                    }
+                    break;
+                }
+                LockSupport.parkNanos(this, remaining);
+            }
+        }
+        return me.state == CLAIMED;
+    }
+
+    private static long deadline(long nanos) {
+        long now = System.nanoTime();
+        return nanos >= Long.MAX_VALUE - Math.max(now, 0) ? Long.MAX_VALUE : now + nanos;
+    }
+
+    @Override
+    public boolean offer(E e) {
+        Objects.requireNonNull(e);
+        Waiter taker;
+        lock.lock();
+        try {
+            taker = handToTaker(e);
+            if (taker == null) {
+                if (items.size() == capacity) {
+                    return false;
+                }
+                items.add(e);
+            }
+        } finally {
+            lock.unlock();
+        }
+        if (taker != null) {
+            taker.wake(true);
+        }
+        return true;
+    }
+
+    @Override
+    public void put(E e) throws InterruptedException {
+        offer(e, Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+    }
+
+    @Override
+    public boolean offer(E e, long timeout, TimeUnit unit) throws InterruptedException {
+        Objects.requireNonNull(e);
+        long deadline = deadline(unit.toNanos(timeout));
+        Waiter taker;
+        Waiter me = null;
+        lock.lockInterruptibly();
+        try {
+            taker = handToTaker(e);
+            if (taker == null) {
+                if (items.size() < capacity) {
+                    items.add(e);
+                } else {
+                    me = new Waiter(Thread.currentThread(), null, e);
+                    enqueueWaiter(putters, me);
+                }
+            }
+        } finally {
+            lock.unlock();
+        }
+        if (taker != null) {
+            taker.wake(true);
+            return true;
+        }
+        return me == null || await(me, deadline);
+    }
+
+    public CompletableFuture<Void> putAsync(E e) {
+        Objects.requireNonNull(e);
+        Waiter taker;
+        lock.lock();
+        try {
+            taker = handToTaker(e);
+            if (taker == null) {
+                if (items.size() < capacity) {
+                    items.add(e);
+                } else {
+                    Pending<Void> future = new Pending<>();
+                    future.waiter = new Waiter(null, future, e);
+                    enqueueWaiter(putters, future.waiter);
+                    return future;
+                }
+            }
+        } finally {
+            lock.unlock();
+        }
+        if (taker != null) {
+            taker.wake(true);
+        }
+        return CompletableFuture.completedFuture(null);
+    }
+
+    @Override
+    public E poll() {
+        E e;
+        Waiter putter;
+        lock.lock();
+        try {
+            e = items.poll();
+            if (e == null) {
+                return null;
+            }
+            putter = admitPutter();
+        } finally {
+            lock.unlock();
+        }
+        if (putter != null) {
+            putter.wake(false);
+        }
+        return e;
+    }
+
+    @Override
+    public E take() throws InterruptedException {
+        return poll(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public E poll(long timeout, TimeUnit unit) throws InterruptedException {
+        long deadline = deadline(unit.toNanos(timeout));
+        E e;
+        Waiter putter = null;
+        Waiter me = null;
+        lock.lockInterruptibly();
+        try {
+            e = items.poll();
+            if (e != null) {
+                putter = admitPutter();
+            } else {
+                me = new Waiter(Thread.currentThread(), null, null);
+                enqueueWaiter(takers, me);
+            }
+        } finally {
+            lock.unlock();
+        }
+        if (me == null) {
+            if (putter != null) {
+                putter.wake(false);
+            }
+            return e;
+        }
+        return await(me, deadline) ? (E) me.item : null;
+    }
+
+    public CompletableFuture<E> takeAsync() {
+        E e;
+        Waiter putter;
+        lock.lock();
+        try {
+            e = items.poll();
+            if (e == null) {
+                Pending<E> future = new Pending<>();
+                future.waiter = new Waiter(null, future, null);
+                enqueueWaiter(takers, future.waiter);
+                return future;
+            }
+            putter = admitPutter();
+        } finally {
+            lock.unlock();
+        }
+        if (putter != null) {
+            putter.wake(false);
+        }
+        return CompletableFuture.completedFuture(e);
+    }
+
+    @Override
+    public E peek() {
+        lock.lock();
+        try {
+            return items.peek();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public int size() {
+        lock.lock();
+        try {
+            return items.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public int remainingCapacity() {
+        lock.lock();
+        try {
+            return capacity - items.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public int drainTo(Collection<? super E> c) {
+        return drainTo(c, Integer.MAX_VALUE);
+    }
+
+    // Moves up to maxElements under one lock acquisition, admitting one waiting putter per freed slot
+    @Override
+    public int drainTo(Collection<? super E> c, int maxElements) {
+        Objects.requireNonNull(c);
+        if (c == this) throw new IllegalArgumentException("Cannot drain a queue into itself");
+        List<Waiter> admitted = new ArrayList<>();
+        int n = 0;
+        lock.lock();
+        try {
+            E e;
+            while (n < maxElements && (e = items.peek()) != null) {
+                c.add(e); // if this throws, e stays at the head
+                items.poll();
+                n++;
+                Waiter putter = admitPutter();
+                if (putter != null) {
+                    admitted.add(putter);
+                }
+            }
+        } finally {
+            lock.unlock();
+            // Even when c.add threw: these putters' items are already in
+            for (Waiter putter : admitted) {
+                putter.wake(false);
+            }
+        }
+        return n;
+    }
+
+    @Override
+    public boolean remove(Object o) {
+        return removeFirst(o, false);
+    }
+
+    // Removes the first element equal to o (or o itself), admitting one waiting putter to the freed slot
+    private boolean removeFirst(Object o, boolean identity) {
+        Waiter putter = null;
+        lock.lock();
+        try {
+            if (!(identity ? removeIdentical(o) : items.remove(o))) {
+                return false;
+            }
+            putter = admitPutter();
+        } finally {
+            lock.unlock();
+        }
+        if (putter != null) {
+            putter.wake(false);
+        }
+        return true;
+    }
+
+    // Threads and futures currently parked in take/poll
+    public int waitingTakers() {
+        lock.lock();
+        try {
+            int live = 0;
+            for (Waiter w : takers) {
+                if (w.state == WAITING) live++;
+            }
+            return live;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Lock held
+    private boolean removeIdentical(Object o) {
+        for (Iterator<E> it = items.iterator(); it.hasNext(); ) {
+            if (it.next() == o) {
+                it.remove();
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Iterates over a snapshot. remove() takes the last returned element out of the queue if it
+     * is still there, so removeAll, retainAll and removeIf work.
+     */
+    @Override
+    public Iterator<E> iterator() {
+        Iterator<E> snapshot;
+        lock.lock();
+        try {
+            snapshot = new ArrayList<>(items).iterator();
+        } finally {
+            lock.unlock();
+        }
+        return new Iterator<>() {
+            private E lastReturned;
+
+            @Override
+            public boolean hasNext() {
+                return snapshot.hasNext();
+            }
+
+            @Override
+            public E next() {
+                return lastReturned = snapshot.next();
+            }
+
+            @Override
+            public void remove() {
+                if (lastReturned == null) {
+                    throw new IllegalStateException();
+                }
+                removeFirst(lastReturned, true);
+                lastReturned = null;
+            }
+        };
+    }
+}
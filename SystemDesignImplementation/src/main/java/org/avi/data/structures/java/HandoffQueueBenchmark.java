@@ -0,0 +1,76 @@
+package org.avi.data.structures.java;
+
+import java.util.Arrays;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Handoff latency with 100K virtual threads parked in take(): once every consumer is waiting,
+ * one producer puts 100K timestamps and each consumer records how long its element took to
+ * arrive. Compares MyBlockingQueue (condition signal, then re-acquire the lock) with
+ * HandoffBlockingQueue (element written into the waiter's node, one unpark), and
+ * HandoffBlockingQueue.takeAsync with no consumer threads at all. Needs Java 21+.
+ */
+public class HandoffQueueBenchmark {
+    private static final int WAITERS = 100_000;
+
+    public static void main(String[] args) throws Exception {
+        for (int round = 0; round < 2; round++) {
+            System.out.println(round == 0 ? "-- warm-up --" : "-- measured --");
+            report("MyBlockingQueue take", blockingTakers(new MyBlockingQueue<>(WAITERS)));
+            report("HandoffBlockingQueue take", blockingTakers(new HandoffBlockingQueue<>(WAITERS)));
+            report("HandoffBlockingQueue takeAsync", asyncTakers(new HandoffBlockingQueue<>(WAITERS)));
+        }
+    }
+
+    private static long[] blockingTakers(BlockingQueue<Long> queue) throws Exception {
+        long[] latencies = new long[WAITERS];
+        AtomicInteger received = new AtomicInteger();
+        CountDownLatch started = new CountDownLatch(WAITERS);
+        try (ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor()) {
+            for (int i = 0; i < WAITERS; i++) {
+                executor.submit(() -> {
+                    started.countDown();
+                    long sentAt = queue.take();
+                    latencies[received.getAndIncrement()] = System.nanoTime() - sentAt;
+                    return null;
+                });
+            }
+            started.await();
+            Thread.sleep(500); // let the last consumers reach take() and park
+            produce(queue);
+        }
+        return latencies;
+    }
+
+    private static long[] asyncTakers(HandoffBlockingQueue<Long> queue) throws Exception {
+        long[] latencies = new long[WAITERS];
+        AtomicInteger received = new AtomicInteger();
+        CountDownLatch done = new CountDownLatch(WAITERS);
+        for (int i = 0; i < WAITERS; i++) {
+            queue.takeAsync().thenAccept(sentAt -> {
+                latencies[received.getAndIncrement()] = System.nanoTime() - sentAt;
+                done.countDown();
+            });
+        }
+        produce(queue);
+        done.await(1, TimeUnit.MINUTES);
+        return latencies;
+    }
+
+    private static void produce(BlockingQueue<Long> queue) throws InterruptedException {
+        for (int i = 0; i < WAITERS; i++) {
+            queue.put(System.nanoTime());
+        }
+    }
+
+    private static void report(String name, long[] latencies) {
+        Arrays.sort(latencies);
+        System.out.printf("%-32s p50 %,9d us  p99 %,9d us  max %,9d us%n", name,
+                latencies[WAITERS / 2] / 1000, latencies[WAITERS * 99 / 100] / 1000, latencies[WAITERS - 1] / 1000);
+    }
+}
@@ -0,0 +1,104 @@
+package org.avi.data.structures.java;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+
+/**
+ * Bounded queue for any number of producers and consumers (Vyukov's array queue).
+ *
+ * Every slot carries a sequence number saying whose turn it is: slot i is free for the
+ * producer of index i when its sequence equals i, and ready for the consumer of index i when
+ * it equals i + 1. Producers CAS tail and consumers CAS head to claim an index, then hand the
+ * slot over by advancing its sequence, so neither side ever waits on a lock.
+ */
+public class MpmcArrayQueue<E> extends AbstractRingQueue<E> {
+    private static final VarHandle SEQUENCE = MethodHandles.arrayElementVarHandle(long[].class);
+
+    private final long[] sequences;
+
+    public MpmcArrayQueue(int capacity) {
+        this(capacity, WaitStrategy.parking());
+    }
+
+    public MpmcArrayQueue(int capacity, WaitStrategy waitStrategy) {
+        super(capacity, waitStrategy);
+        this.sequences = new long[this.capacity];
+        for (int i = 0; i < this.capacity; i++) {
+            sequences[i] = i;
+        }
+    }
+
+    @Override
+    boolean tryOffer(E e) {
+        while (true) {
+            long t = tail.get();
+            int index = (int) t & mask;
+            long turn = (long) SEQUENCE.getAcquire(sequences, index) - t;
+            if (turn == 0) {
+                if (tail.compareAndSet(t, t + 1)) {
+                    SLOT.set(buffer, index, e);
+                    SEQUENCE.setRelease(sequences, index, t + 1);
+                    return true;
+                }
+            } else if (turn < 0) {
+                return false; // slot still holds the element from one lap ago
+            }
+            // turn > 0: another producer took t; retry with the new tail
+        }
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    E tryPoll() {
+        while (true) {
+            long h = head.get();
+            int index = (int) h & mask;
+            long turn = (long) SEQUENCE.getAcquire(sequences, index) - (h + 1);
+            if (turn == 0) {
+                if (head.compareAndSet(h, h + 1)) {
+                    // A swap, not a plain read and clear, so a concurrent remove(Object) cannot take it too
+                    Object e = SLOT.getAndSet(buffer, index, null);
+                    SEQUENCE.setRelease(sequences, index, h + capacity);
+                    if (e != REMOVED) {
+                        return (E) e;
+                    }
+                    continue;
+                }
+            } else if (turn < 0) {
+                return null; // not yet published
+            }
+        }
+    }
+
+    @Override
+    boolean skipRemoved() {
+        long h = head.get();
+        int index = (int) h & mask;
+        if ((long) SEQUENCE.getAcquire(sequences, index) != h + 1 || SLOT.getAcquire(buffer, index) != REMOVED) {
+            return false;
+        }
+        if (head.compareAndSet(h, h + 1)) {
+            SLOT.setRelease(buffer, index, null);
+            SEQUENCE.setRelease(sequences, index, h + capacity);
+        }
+        return true; // passed, by this thread or another consumer
+    }
+
+    // Published slots only: an index claimed but not yet written is not worth waking for
+    @Override
+    boolean canOffer() {
+        long t = tail.get();
+        return (long) SEQUENCE.getAcquire(sequences, (int) t & mask) == t;
+    }
+
+    @Override
+    boolean canPoll() {
+        long h = head.get();
+        return (long) SEQUENCE.getAcquire(sequences, (int) h & mask) == h + 1;
+    }
+
+    @Override
+    public E peek() {
+        return peekFrom(head.get());
+    }
+}
@@ -0,0 +1,89 @@
+package org.avi.data.structures.java;
+
+/**
+ * Bounded queue for any number of producer threads and one consumer thread.
+ *
+ * Producers claim a slot by CAS on tail and then publish the element with a release store
+ * into the slot itself, so the consumer needs no CAS: a non-null slot is ready. Producers
+ * share a cached limit (head + capacity) and only re-read head when they reach it.
+ */
+public class MpscArrayQueue<E> extends AbstractRingQueue<E> {
+    private final Sequence producerLimit;
+
+    public MpscArrayQueue(int capacity) {
+        this(capacity, WaitStrategy.parking());
+    }
+
+    public MpscArrayQueue(int capacity, WaitStrategy waitStrategy) {
+        super(capacity, waitStrategy);
+        this.producerLimit = new Sequence(this.capacity);
+    }
+
+    @Override
+    boolean tryOffer(E e) {
+        long limit = producerLimit.get();
+        long t;
+        do {
+            t = tail.get();
+            if (t >= limit) {
+                limit = head.getAcquire() + capacity;
+                if (t >= limit) {
+                    return false;
+                }
+                producerLimit.set(limit);
+            }
+        } while (!tail.compareAndSet(t, t + 1));
+        SLOT.setRelease(buffer, (int) t & mask, e);
+        return true;
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    E tryPoll() {
+        while (true) {
+            long h = head.getPlain();
+            int index = (int) h & mask;
+            if (SLOT.getAcquire(buffer, index) == null) {
+                if (h >= tail.get()) {
+                    return null;
+                }
+                // A producer has claimed this slot but not written it yet; it is moments away unless descheduled
+                for (int spins = 0; SLOT.getAcquire(buffer, index) == null; spins++) {
+                    if (spins < 64) {
+                        Thread.onSpinWait();
+                    } else {
+                        Thread.yield();
+                    }
+                }
+            }
+            // A swap, not a plain clear, so a concurrent remove(Object) cannot take it too
+            Object e = SLOT.getAndSet(buffer, index, null);
+            head.setRelease(h + 1);
+            if (e != REMOVED) {
+                return (E) e;
+            }
+        }
+    }
+
+    @Override
+    boolean skipRemoved() {
+        long h = head.getPlain();
+        int index = (int) h & mask;
+        if (SLOT.getAcquire(buffer, index) != REMOVED) {
+            return false;
+        }
+        SLOT.setRelease(buffer, index, null);
+        head.setRelease(h + 1);
+        return true;
+    }
+
+    @Override
+    boolean canPoll() {
+        return SLOT.getAcquire(buffer, (int) head.get() & mask) != null;
+    }
+
+    @Override
+    public E peek() {
+        return peekFrom(head.get());
+    }
+}
@@ -3,220 +3,482 @@ package org.avi.data.structures.java;
 import java.util.*;
 import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.locks.Condition;
 import java.util.concurrent.locks.ReentrantLock;
 
-public class MyBlockingQueue<E> implements BlockingQueue<Object> {
-    private final Queue<Object> queue = new LinkedList<>();
+/**
+ * Bounded blocking queue over a preallocated array ring, using the two-lock queue algorithm:
+ * producers only take putLock and consumers only take takeLock, so one put and one take can
+ * run at the same time. The atomic count is the only state both sides touch; a producer
+ * writes its slot before incrementing it, so a consumer that sees the new count sees the item.
+ * drainTo and addAll move a whole batch under one lock acquisition.
+ */
+public class MyBlockingQueue<E> extends AbstractQueue<E> implements BlockingQueue<E> {
+    private final Object[] items;
     private final int capacity;
-    private final ReentrantLock lock = new ReentrantLock();
-    private final Condition notFull = lock.newCondition();
-    private final Condition notEmpty = lock.newCondition();
+    private final AtomicInteger count = new AtomicInteger();
+    private int putIndex; // guarded by putLock
+    private int takeIndex; // guarded by takeLock
+
+    private final ReentrantLock putLock = new ReentrantLock();
+    private final Condition notFull = putLock.newCondition();
+    private final ReentrantLock takeLock = new ReentrantLock();
+    private final Condition notEmpty = takeLock.newCondition();
+
     public MyBlockingQueue(int capacity) {
+        if (capacity <= 0) throw new IllegalArgumentException("capacity must be > 0");
         this.capacity = capacity;
-    }
-    @Override
-    public boolean add(Object o) {
-        if (offer(o))
-            return true;
-        else
-            throw new IllegalStateException("Queue full");
+        this.items = new Object[capacity];
     }
 
-    @Override
-    public boolean offer(Object o) {
-        Objects.requireNonNull(o);
-        lock.lock();
+    // Called by producers after the count goes from zero to non-zero
+    private void signalNotEmpty() {
+        takeLock.lock();
         try {
-            if (capacity == queue.size())
-                return false;
-            else {
-                queue.add(o);
-                notEmpty.signal();
-                return true;
-            }
+            notEmpty.signal();
         } finally {
-            lock.unlock();
+            takeLock.unlock();
         }
     }
 
-    @Override
-    public Object remove() {
-        return null;
-    }
-
-    @Override
-    public Object poll() {
-        lock.lock();
+    // Called by consumers after the count drops below capacity from full
+    private void signalNotFull() {
+        putLock.lock();
         try {
-            return (capacity == 0) ? null : dequeue();
+            notFull.signal();
         } finally {
-            lock.unlock();
+            putLock.unlock();
         }
     }
 
-    private Object dequeue() {
-        E item = (E) queue.remove();
-        notFull.signal();
-        return item;
+    // Both locks, always in the same order, for operations that touch the middle of the ring
+    private void fullyLock() {
+        putLock.lock();
+        takeLock.lock();
     }
 
-    @Override
-    public Object element() {
-        return null;
+    private void fullyUnlock() {
+        takeLock.unlock();
+        putLock.unlock();
+    }
+
+    private int inc(int i) {
+        return ++i == capacity ? 0 : i;
+    }
+
+    private void enqueue(E e) {
+        items[putIndex] = e;
+        putIndex = inc(putIndex);
+    }
+
+    @SuppressWarnings("unchecked")
+    private E dequeue() {
+        E item = (E) items[takeIndex];
+        items[takeIndex] = null;
+        takeIndex = inc(takeIndex);
+        return item;
     }
 
     @Override
-    public Object peek() {
-        lock.lock();
+    public boolean offer(E e) {
+        Objects.requireNonNull(e);
+        if (count.get() == capacity) {
+            return false;
+        }
+        int c;
+        putLock.lock();
         try {
-            E item = (E) queue.peek();
-            return item; // null when queue is empty
+            if (count.get() == capacity) {
+                return false;
+            }
+            enqueue(e);
+            c = count.getAndIncrement();
+            if (c + 1 < capacity) {
+                notFull.signal();
+            }
         } finally {
-            lock.unlock();
+            putLock.unlock();
         }
+        if (c == 0) {
+            signalNotEmpty();
+        }
+        return true;
     }
 
     @Override
-    public void put(Object o) throws InterruptedException {
-        lock.lock();
+    public void put(E e) throws InterruptedException {
+        Objects.requireNonNull(e);
+        int c;
+        putLock.lockInterruptibly();
         try {
-            while (queue.size() == capacity) {
+            while (count.get() == capacity) {
                 notFull.await();
             }
-            queue.add(o);
-            notEmpty.signal();
+            enqueue(e);
+            c = count.getAndIncrement();
+            if (c + 1 < capacity) {
+                notFull.signal();
+            }
         } finally {
-            lock.unlock();
+            putLock.unlock();
+        }
+        if (c == 0) {
+            signalNotEmpty();
         }
     }
 
     @Override
-    public boolean offer(Object o, long timeout, TimeUnit unit) throws InterruptedException {
-        Objects.requireNonNull(o);
+    public boolean offer(E e, long timeout, TimeUnit unit) throws InterruptedException {
+        Objects.requireNonNull(e);
         long nanos = unit.toNanos(timeout);
-        lock.lockInterruptibly();
+        int c;
+        putLock.lockInterruptibly();
         try {
-            while (capacity == queue.size()) {
+            while (count.get() == capacity) {
                 if (nanos <= 0L)
                     return false;
                 nanos = notFull.awaitNanos(nanos);
             }
-            queue.add(o);
-            notEmpty.signal();
-            return true;
+            enqueue(e);
+            c = count.getAndIncrement();
+            if (c + 1 < capacity) {
+                notFull.signal();
+            }
         } finally {
-            lock.unlock();
+            putLock.unlock();
+        }
+        if (c == 0) {
+            signalNotEmpty();
         }
+        return true;
     }
 
     @Override
-    public Object take() throws InterruptedException {
-        lock.lock();
+    public E poll() {
+        if (count.get() == 0) {
+            return null;
+        }
+        E item;
+        int c;
+        takeLock.lock();
         try {
-            while (queue.isEmpty()) {
+            if (count.get() == 0) {
+                return null;
+            }
+            item = dequeue();
+            c = count.getAndDecrement();
+            if (c > 1) {
+                notEmpty.signal();
+            }
+        } finally {
+            takeLock.unlock();
+        }
+        if (c == capacity) {
+            signalNotFull();
+        }
+        return item;
+    }
+
+    @Override
+    public E take() throws InterruptedException {
+        E item;
+        int c;
+        takeLock.lockInterruptibly();
+        try {
+            while (count.get() == 0) {
                 notEmpty.await();
             }
-            return dequeue();
+            item = dequeue();
+            c = count.getAndDecrement();
+            if (c > 1) {
+                notEmpty.signal();
+            }
         } finally {
-            lock.unlock();
+            takeLock.unlock();
+        }
+        if (c == capacity) {
+            signalNotFull();
         }
+        return item;
     }
 
     @Override
-    public Object poll(long timeout, TimeUnit unit) throws InterruptedException {
+    public E poll(long timeout, TimeUnit unit) throws InterruptedException {
         long nanos = unit.toNanos(timeout);
-        lock.lockInterruptibly();
+        E item;
+        int c;
+        takeLock.lockInterruptibly();
         try {
-            while (capacity == 0) {
+            while (count.get() == 0) {
                 if (nanos <= 0L)
                     return null;
                 nanos = notEmpty.awaitNanos(nanos);
             }
-            return dequeue();
+            item = dequeue();
+            c = count.getAndDecrement();
+            if (c > 1) {
+                notEmpty.signal();
+            }
         } finally {
-            lock.unlock();
+            takeLock.unlock();
         }
+        if (c == capacity) {
+            signalNotFull();
+        }
+        return item;
     }
 
     @Override
-    public int remainingCapacity() {
-        return 0;
-    }
-
-    @Override
-    public boolean remove(Object o) {
-        return false;
+    @SuppressWarnings("unchecked")
+    public E peek() {
+        if (count.get() == 0) {
+            return null;
+        }
+        takeLock.lock();
+        try {
+            return (E) items[takeIndex]; // null when queue is empty
+        } finally {
+            takeLock.unlock();
+        }
     }
 
     @Override
-    public boolean addAll(Collection c) {
-        return false;
+    public int remainingCapacity() {
+        return capacity - count.get();
     }
 
     @Override
-    public void clear() {
-
+    public int size() {
+        return count.get();
     }
 
+    /**
+     * Inserts as many elements as there is room for under a single putLock acquisition, then
+     * throws IllegalStateException if some did not fit, like AbstractQueue.addAll.
+     */
     @Override
-    public boolean retainAll(Collection c) {
-        return false;
+    @SuppressWarnings("unchecked")
+    public boolean addAll(Collection<? extends E> c) {
+        if (c == this) throw new IllegalArgumentException("Cannot add a queue to itself");
+        Object[] batch = c.toArray();
+        for (Object e : batch) {
+            Objects.requireNonNull(e);
+        }
+        if (batch.length == 0) {
+            return false;
+        }
+        int added;
+        int before;
+        putLock.lock();
+        try {
+            added = Math.min(batch.length, capacity - count.get());
+            for (int i = 0; i < added; i++) {
+                enqueue((E) batch[i]);
+            }
+            before = count.getAndAdd(added);
+            if (before + added < capacity) {
+                notFull.signal();
+            }
+        } finally {
+            putLock.unlock();
+        }
+        if (before == 0 && added > 0) {
+            signalNotEmpty();
+        }
+        if (added < batch.length) {
+            throw new IllegalStateException("Queue full after adding " + added + " of " + batch.length + " elements");
+        }
+        return true;
     }
 
     @Override
-    public boolean removeAll(Collection c) {
-        return false;
+    public int drainTo(Collection<? super E> c) {
+        return drainTo(c, Integer.MAX_VALUE);
     }
 
+    // Takes up to maxElements under a single takeLock acquisition
     @Override
-    public boolean containsAll(Collection c) {
-        return false;
+    public int drainTo(Collection<? super E> c, int maxElements) {
+        Objects.requireNonNull(c);
+        if (c == this) throw new IllegalArgumentException("Cannot drain a queue into itself");
+        if (maxElements <= 0) {
+            return 0;
+        }
+        int drained = 0;
+        int before = 0;
+        takeLock.lock();
+        try {
+            int n = Math.min(maxElements, count.get());
+            try {
+                while (drained < n) {
+                    @SuppressWarnings("unchecked")
+                    E item = (E) items[takeIndex];
+                    c.add(item); // if this throws, the item stays at the head
+                    dequeue();
+                    drained++;
+                }
+            } finally {
+                // Even when c.add threw: the count must match what actually left the ring
+                if (drained > 0) {
+                    before = count.getAndAdd(-drained);
+                }
+            }
+        } finally {
+            takeLock.unlock();
+            if (before == capacity) {
+                signalNotFull();
+            }
+        }
+        return drained;
     }
 
     @Override
-    public int size() {
-        lock.lock();
+    public boolean remove(Object o) {
+        if (o == null) return false;
+        fullyLock();
         try {
-            return queue.size();
+            int n = count.get();
+            for (int i = 0, index = takeIndex; i < n; i++, index = inc(index)) {
+                if (o.equals(items[index])) {
+                    removeAt(index, n - i - 1);
+                    return true;
+                }
+            }
+            return false;
         } finally {
-            lock.unlock();
+            fullyUnlock();
         }
-
     }
 
-    @Override
-    public boolean isEmpty() {
-        return queue.isEmpty();
+    // Closes the gap at index by shifting the following elements back one slot; needs both locks
+    private void removeAt(int index, int following) {
+        for (int i = 0; i < following; i++) {
+            int next = inc(index);
+            items[index] = items[next];
+            index = next;
+        }
+        items[index] = null;
+        putIndex = index;
+        if (count.getAndDecrement() == capacity) {
+            notFull.signal();
+        }
     }
 
     @Override
     public boolean contains(Object o) {
-        return false;
+        if (o == null) return false;
+        fullyLock();
+        try {
+            int n = count.get();
+            for (int i = 0, index = takeIndex; i < n; i++, index = inc(index)) {
+                if (o.equals(items[index])) {
+                    return true;
+                }
+            }
+            return false;
+        } finally {
+            fullyUnlock();
+        }
     }
 
     @Override
-    public Iterator iterator() {
-        return null;
+    public void clear() {
+        fullyLock();
+        try {
+            int n = count.get();
+            for (int i = 0, index = takeIndex; i < n; i++, index = inc(index)) {
+                items[index] = null;
+            }
+            takeIndex = putIndex;
+            if (count.getAndSet(0) == capacity) {
+                notFull.signal();
+            }
+        } finally {
+            fullyUnlock();
+        }
     }
 
     @Override
     public Object[] toArray() {
-        return new Object[0];
+        fullyLock();
+        try {
+            int n = count.get();
+            Object[] copy = new Object[n];
+            for (int i = 0, index = takeIndex; i < n; i++, index = inc(index)) {
+                copy[i] = items[index];
+            }
+            return copy;
+        } finally {
+            fullyUnlock();
+        }
     }
 
     @Override
-    public Object[] toArray(Object[] a) {
-        return new Object[0];
+    @SuppressWarnings("unchecked")
+    public <T> T[] toArray(T[] a) {
+        Object[] copy = toArray();
+        if (a.length < copy.length) {
+            return (T[]) Arrays.copyOf(copy, copy.length, a.getClass());
+        }
+        System.arraycopy(copy, 0, a, 0, copy.length);
+        if (a.length > copy.length) {
+            a[copy.length] = null;
+        }
+        return a;
     }
 
+    /**
+     * Iterates over a snapshot taken when the iterator is created, so it never throws
+     * ConcurrentModificationException and does not hold either lock while in use.
+     */
     @Override
-    public int drainTo(Collection c) {
-        return 0;
+    public Iterator<E> iterator() {
+        Object[] snapshot = toArray();
+        return new Iterator<>() {
+            private int cursor;
+            private int lastReturned = -1;
+
+            @Override
+            public boolean hasNext() {
+                return cursor < snapshot.length;
+            }
+
+            @Override
+            @SuppressWarnings("unchecked")
+            public E next() {
+                if (cursor >= snapshot.length) throw new NoSuchElementException();
+                lastReturned = cursor;
+                return (E) snapshot[cursor++];
+            }
+
+            @Override
+            public void remove() {
+                if (lastReturned < 0) throw new IllegalStateException();
+                removeIdentical(snapshot[lastReturned]);
+                lastReturned = -1;
+            }
+        };
+    }
+
+    // Removes this exact element if it is still queued, for Iterator.remove
+    private void removeIdentical(Object o) {
+        fullyLock();
+        try {
+            int n = count.get();
+            for (int i = 0, index = takeIndex; i < n; i++, index = inc(index)) {
+                if (items[index] == o) {
+                    removeAt(index, n - i - 1);
+                    return;
+                }
+            }
+        } finally {
+            fullyUnlock();
+        }
     }
 
     @Override
-    public int drainTo(Collection c, int maxElements) {
-        return 0;
+    public String toString() {
+        return Arrays.toString(toArray());
     }
 }
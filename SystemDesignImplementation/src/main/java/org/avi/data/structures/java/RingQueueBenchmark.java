@@ -0,0 +1,93 @@
+package org.avi.data.structures.java;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.function.Supplier;
+
+/**
+ * Throughput of the lock-free ring queues against MyBlockingQueue and ArrayBlockingQueue.
+ * Producers put and consumers take, so the wait strategy is exercised whenever one side
+ * outruns the other. Each run moves the same number of elements and reports ops/s.
+ */
+public class RingQueueBenchmark {
+    private static final int CAPACITY = 1024;
+    private static final int ELEMENTS = 10_000_000;
+    private static final Integer ITEM = 42;
+
+    public static void main(String[] args) throws InterruptedException {
+        run("1P/1C", 1, 1, List.of(
+                named("MyBlockingQueue", () -> new MyBlockingQueue<>(CAPACITY)),
+                named("ArrayBlockingQueue", () -> new ArrayBlockingQueue<>(CAPACITY)),
+                named("SpscArrayQueue busy-spin", () -> new SpscArrayQueue<>(CAPACITY, WaitStrategy.busySpin())),
+                named("SpscArrayQueue yielding", () -> new SpscArrayQueue<>(CAPACITY, WaitStrategy.yielding())),
+                named("SpscArrayQueue parking", () -> new SpscArrayQueue<>(CAPACITY, WaitStrategy.parking())),
+                named("SpscArrayQueue blocking", () -> new SpscArrayQueue<>(CAPACITY, WaitStrategy.blocking()))));
+        run("3P/1C", 3, 1, List.of(
+                named("MyBlockingQueue", () -> new MyBlockingQueue<>(CAPACITY)),
+                named("ArrayBlockingQueue", () -> new ArrayBlockingQueue<>(CAPACITY)),
+                named("MpscArrayQueue yielding", () -> new MpscArrayQueue<>(CAPACITY, WaitStrategy.yielding())),
+                named("MpscArrayQueue blocking", () -> new MpscArrayQueue<>(CAPACITY, WaitStrategy.blocking()))));
+        run("2P/2C", 2, 2, List.of(
+                named("MyBlockingQueue", () -> new MyBlockingQueue<>(CAPACITY)),
+                named("ArrayBlockingQueue", () -> new ArrayBlockingQueue<>(CAPACITY)),
+                named("MpmcArrayQueue yielding", () -> new MpmcArrayQueue<>(CAPACITY, WaitStrategy.yielding())),
+                named("MpmcArrayQueue blocking", () -> new MpmcArrayQueue<>(CAPACITY, WaitStrategy.blocking()))));
+    }
+
+    private record Candidate(String name, Supplier<BlockingQueue<Integer>> factory) {
+    }
+
+    private static Candidate named(String name, Supplier<BlockingQueue<Integer>> factory) {
+        return new Candidate(name, factory);
+    }
+
+    private static void run(String shape, int producers, int consumers, List<Candidate> candidates)
+            throws InterruptedException {
+        System.out.println("== " + shape + " ==");
+        for (Candidate candidate : candidates) {
+            measure(candidate, producers, consumers); // warm-up
+            long opsPerSecond = measure(candidate, producers, consumers);
+            System.out.printf("%-28s %,14d ops/s%n", candidate.name(), opsPerSecond);
+        }
+    }
+
+    private static long measure(Candidate candidate, int producers, int consumers) throws InterruptedException {
+        BlockingQueue<Integer> queue = candidate.factory().get();
+        int perProducer = ELEMENTS / producers;
+        int perConsumer = perProducer * producers / consumers;
+        List<Thread> threads = new ArrayList<>();
+        for (int p = 0; p < producers; p++) {
+            threads.add(new Thread(() -> {
+                try {
+                    for (int i = 0; i < perProducer; i++) {
+                        queue.put(ITEM);
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }));
+        }
+        for (int c = 0; c < consumers; c++) {
+            threads.add(new Thread(() -> {
+                try {
+                    for (int i = 0; i < perConsumer; i++) {
+                        queue.take();
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }));
+        }
+        long start = System.nanoTime();
+        for (Thread thread : threads) {
+            thread.start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        long elapsed = System.nanoTime() - start;
+        return (long) perProducer * producers * 1_000_000_000L / elapsed;
+    }
+}
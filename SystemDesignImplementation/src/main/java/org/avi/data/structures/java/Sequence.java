@@ -0,0 +1,81 @@
+package org.avi.data.structures.java;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+
+// 56 bytes before the value and 56 after keep it on its own cache line. Superclass fields
+// are laid out first, so the padding has to come from the class hierarchy.
+abstract class SequenceLhsPadding {
+    long p01, p02, p03, p04, p05, p06, p07;
+}
+
+abstract class SequenceValue extends SequenceLhsPadding {
+    volatile long value;
+}
+
+abstract class SequenceRhsPadding extends SequenceValue {
+    long p11, p12, p13, p14, p15, p16, p17;
+}
+
+/**
+ * A long counter padded on both sides so that a producer and a consumer spinning on
+ * neighbouring counters do not invalidate each other's cache line (false sharing).
+ * Plain, release and volatile accessors let each algorithm pay only for the ordering it needs.
+ */
+public final class Sequence extends SequenceRhsPadding {
+    private static final VarHandle VALUE;
+
+    static {
+        try {
+            VALUE = MethodHandles.lookup().findVarHandle(SequenceValue.class, "value", long.class);
+        } catch (ReflectiveOperationException e) {
+            throw new ExceptionInInitializerError(e);
+        }
+    }
+
+    public Sequence() {
+        this(0);
+    }
+
+    public Sequence(long initial) {
+        VALUE.setRelease(this, initial);
+    }
+
+    public long get() {
+        return value;
+    }
+
+    public long getAcquire() {
+        return (long) VALUE.getAcquire(this);
+    }
+
+    // Only for the single thread that owns the counter
+    public long getPlain() {
+        return (long) VALUE.get(this);
+    }
+
+    public void set(long v) {
+        value = v;
+    }
+
+    public void setRelease(long v) {
+        VALUE.setRelease(this, v);
+    }
+
+    public void setPlain(long v) {
+        VALUE.set(this, v);
+    }
+
+    public boolean compareAndSet(long expected, long v) {
+        return VALUE.compareAndSet(this, expected, v);
+    }
+
+    public long getAndAdd(long delta) {
+        return (long) VALUE.getAndAdd(this, delta);
+    }
+
+    @Override
+    public String toString() {
+        return Long.toString(value);
+    }
+}
@@ -0,0 +1,73 @@
+package org.avi.data.structures.java;
+
+/**
+ * Bounded queue for exactly one producer thread and one consumer thread.
+ *
+ * Each side owns its counter and writes it with a release store, so there are no CAS
+ * operations at all. Each side also keeps a private cached copy of the other side's counter
+ * and only re-reads the shared one when the cache says the ring is full (or empty), which
+ * keeps the two cores from trading cache lines on every element.
+ */
+public class SpscArrayQueue<E> extends AbstractRingQueue<E> {
+    private final Sequence headCache = new Sequence(); // producer-owned copy of head
+    private final Sequence tailCache = new Sequence(); // consumer-owned copy of tail
+
+    public SpscArrayQueue(int capacity) {
+        this(capacity, WaitStrategy.parking());
+    }
+
+    public SpscArrayQueue(int capacity, WaitStrategy waitStrategy) {
+        super(capacity, waitStrategy);
+    }
+
+    @Override
+    boolean tryOffer(E e) {
+        long t = tail.getPlain();
+        if (t - headCache.getPlain() >= capacity) {
+            headCache.setPlain(head.getAcquire());
+            if (t - headCache.getPlain() >= capacity) {
+                return false;
+            }
+        }
+        SLOT.set(buffer, (int) t & mask, e);
+        tail.setRelease(t + 1); // publishes the slot write
+        return true;
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    E tryPoll() {
+        while (true) {
+            long h = head.getPlain();
+            if (h >= tailCache.getPlain()) {
+                tailCache.setPlain(tail.getAcquire());
+                if (h >= tailCache.getPlain()) {
+                    return null;
+                }
+            }
+            // A swap, not a plain read and clear, so a concurrent remove(Object) cannot take it too
+            Object e = SLOT.getAndSet(buffer, (int) h & mask, null);
+            head.setRelease(h + 1); // hands the slot back to the producer
+            if (e != REMOVED) {
+                return (E) e;
+            }
+        }
+    }
+
+    @Override
+    boolean skipRemoved() {
+        long h = head.getPlain();
+        int index = (int) h & mask;
+        if (SLOT.getAcquire(buffer, index) != REMOVED) {
+            return false;
+        }
+        SLOT.setRelease(buffer, index, null);
+        head.setRelease(h + 1);
+        return true;
+    }
+
+    @Override
+    public E peek() {
+        return peekFrom(head.get());
+    }
+}
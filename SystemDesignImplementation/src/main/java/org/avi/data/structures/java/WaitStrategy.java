@@ -0,0 +1,136 @@
+package org.avi.data.structures.java;
+
+import java.lang.invoke.VarHandle;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.BooleanSupplier;
+
+/**
+ * How a thread waits for a lock-free queue to become ready (not full / not empty).
+ * Spinning gives the lowest handoff latency but burns a core; blocking costs a lock and a
+ * signal per wake-up but frees the CPU. Blocking instances hold state, so use one per queue.
+ */
+public interface WaitStrategy {
+
+    /**
+     * Waits until ready returns true. deadline is a System.nanoTime() value, or Long.MAX_VALUE
+     * to wait forever. Returns false if the deadline passed first.
+     */
+    boolean await(BooleanSupplier ready, long deadline) throws InterruptedException;
+
+    // Called after every successful offer or poll, to wake threads blocked in await
+    default void signalAll() {
+    }
+
+    private static boolean expired(long deadline) {
+        return deadline != Long.MAX_VALUE && System.nanoTime() - deadline >= 0;
+    }
+
+    static WaitStrategy busySpin() {
+        return (ready, deadline) -> {
+            while (!ready.getAsBoolean()) {
+                if (Thread.interrupted()) throw new InterruptedException();
+                if (expired(deadline)) return false;
+                Thread.onSpinWait();
+            }
+            return true;
+        };
+    }
+
+    static WaitStrategy yielding() {
+        return (ready, deadline) -> {
+            for (int spins = 0; !ready.getAsBoolean(); spins++) {
+                if (Thread.interrupted()) throw new InterruptedException();
+                if (expired(deadline)) return false;
+                if (spins < 100) {
+                    Thread.onSpinWait();
+                } else {
+                    Thread.yield();
+                }
+            }
+            return true;
+        };
+    }
+
+    // Spins, then yields, then parks for short intervals; no signalling needed
+    static WaitStrategy parking() {
+        return (ready, deadline) -> {
+            for (int spins = 0; !ready.getAsBoolean(); spins++) {
+                if (Thread.interrupted()) throw new InterruptedException();
+                if (expired(deadline)) return false;
+                if (spins < 100) {
+                    Thread.onSpinWait();
+                } else if (spins < 200) {
+                    Thread.yield();
+                } else {
+                    LockSupport.parkNanos(deadline == Long.MAX_VALUE ? 50_000 : Math.min(deadline - System.nanoTime(), 50_000));
+                }
+            }
+            return true;
+        };
+    }
+
+    static WaitStrategy blocking() {
+        return new Blocking();
+    }
+
+    /**
+     * Waits on a condition. A waiter registers itself before re-checking readiness under the
+     * lock, and a signaller publishes its change before reading the waiter count, so either
+     * the waiter sees the change or the signaller sees the waiter. Signallers skip the lock
+     * entirely when nobody is waiting.
+     */
+    final class Blocking implements WaitStrategy {
+        private final ReentrantLock lock = new ReentrantLock();
+        private final Condition changed = lock.newCondition();
+        private final AtomicInteger waiters = new AtomicInteger();
+
+        private Blocking() {
+        }
+
+        @Override
+        public boolean await(BooleanSupplier ready, long deadline) throws InterruptedException {
+            if (ready.getAsBoolean()) {
+                return true;
+            }
+            waiters.incrementAndGet();
+            try {
+                lock.lockInterruptibly();
+            } catch (InterruptedException e) {
+                waiters.decrementAndGet();
+                throw e;
+            }
+            try {
+                while (!ready.getAsBoolean()) {
+                    if (deadline == Long.MAX_VALUE) {
+                        changed.await();
+                    } else {
+                        long remaining = deadline - System.nanoTime();
+                        if (remaining <= 0) return false;
+                        changed.awaitNanos(remaining);
+                    }
+                }
+                return true;
+            } finally {
+                lock.unlock();
+                waiters.decrementAndGet();
+            }
+        }
+
+        @Override
+        public void signalAll() {
+            // Queues publish with release stores; order that store before the waiter count read
+            VarHandle.fullFence();
+            if (waiters.get() > 0) {
+                lock.lock();
+                try {
+                    changed.signalAll();
+                } finally {
+                    lock.unlock();
+                }
+            }
+        }
+    }
+}
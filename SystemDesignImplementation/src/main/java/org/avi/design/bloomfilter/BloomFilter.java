@@ -13,6 +13,13 @@ public class BloomFilter<T> {
         this.bitSet = new BitSet(bitSize);
     }
 
+    // Rebuild a filter from bits produced by toByteArray(), e.g. when loading it from disk
+    public BloomFilter(int bitSize, int numHashFunctions, byte[] bits) {
+        this.bitSize = bitSize;
+        this.numHashFunctions = numHashFunctions;
+        this.bitSet = BitSet.valueOf(bits);
+    }
+
     // Add an element to the filter
     public void add(T item) {
         int[] hashes = getHashes(item);
@@ -32,6 +39,19 @@ public class BloomFilter<T> {
         return true; // possibly present
     }
 
+    public int getBitSize() {
+        return bitSize;
+    }
+
+    public int getNumHashFunctions() {
+        return numHashFunctions;
+    }
+
+    // Serialized form of the bit array
+    public byte[] toByteArray() {
+        return bitSet.toByteArray();
+    }
+
     // Generate multiple hash values
     private int[] getHashes(T item) {
         int[] result = new int[numHashFunctions];